@@ -0,0 +1,145 @@
+package com.github.zimengle.imageloader;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+
+/**
+ * 在一组固定的缩略图上测量压缩格式和质量:压缩时间,解码时间和压缩后的字节数
+ * 用于在目标设备上调整{@link EncodePolicy}的参数,不打包进库;由{@link EncodeBenchmarkTest}在assets/corpus中的图片上运行
+ */
+public class EncodeBenchmark {
+
+	private static final String TAG = "EncodeBenchmark";
+
+	/**
+	 * 一种压缩方式在所有图片上的结果
+	 */
+	public static class Result {
+
+		/**
+		 * 压缩方式的说明,例如"JPEG 85"
+		 */
+		public String name;
+
+		/**
+		 * 图片个数
+		 */
+		public int count;
+
+		/**
+		 * 压缩后的总字节数
+		 */
+		public long bytes;
+
+		/**
+		 * 每轮的压缩总时间,纳秒
+		 */
+		public long encodeNanos;
+
+		/**
+		 * 每轮的解码总时间,纳秒
+		 */
+		public long decodeNanos;
+
+		@Override
+		public String toString() {
+			return name + " count:" + count + " bytes:" + bytes + " encode:" + encodeNanos / 1000000 + "ms decode:" + decodeNanos / 1000000 + "ms";
+		}
+
+	}
+
+	private final List<Bitmap> corpus;
+
+	private final int rounds;
+
+	/**
+	 * 构造器
+	 * @param corpus 测试的缩略图
+	 * @param rounds 重复次数,时间取平均
+	 */
+	public EncodeBenchmark(List<Bitmap> corpus, int rounds) {
+		this.corpus = corpus;
+		this.rounds = Math.max(1, rounds);
+	}
+
+	/**
+	 * 测量固定的格式和质量
+	 * @param format
+	 * @param quality
+	 * @return
+	 */
+	public Result run(final CompressFormat format, final int quality) {
+		return run(format + " " + quality, new EncodePolicy() {
+
+			public CompressFormat getFormat(Bitmap bitmap) {
+				return format;
+			}
+
+			public int getQuality(Bitmap bitmap, CompressFormat format) {
+				return quality;
+			}
+		});
+	}
+
+	/**
+	 * 测量压缩策略
+	 * @param name 结果的说明
+	 * @param policy
+	 * @return
+	 */
+	public Result run(String name, EncodePolicy policy) {
+		Result result = new Result();
+		result.name = name;
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		for (int round = 0; round < rounds; round++) {
+			for (Bitmap bitmap : corpus) {
+				CompressFormat format = policy.getFormat(bitmap);
+				int quality = policy.getQuality(bitmap, format);
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				long start = System.nanoTime();
+				bitmap.compress(format, quality, output);
+				long encoded = System.nanoTime();
+				byte[] data = output.toByteArray();
+				Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+				long end = System.nanoTime();
+				if (decoded != null) {
+					decoded.recycle();
+				}
+				result.encodeNanos += encoded - start;
+				result.decodeNanos += end - encoded;
+				if (round == 0) {
+					result.count++;
+					result.bytes += data.length;
+				}
+			}
+		}
+		result.encodeNanos /= rounds;
+		result.decodeNanos /= rounds;
+		LogUtils.i(TAG, result.toString());
+		return result;
+	}
+
+	/**
+	 * 测量每种可用的格式在几种质量下的结果,PNG只测一次
+	 * @param qualities
+	 * @return
+	 */
+	public List<Result> runAll(int[] qualities) {
+		List<Result> results = new ArrayList<Result>();
+		results.add(run(CompressFormat.PNG, 100));
+		for (int quality : qualities) {
+			results.add(run(CompressFormat.JPEG, quality));
+			if (Util.hasIceCreamSandwich()) {
+				results.add(run(CompressFormat.WEBP, quality));
+			}
+		}
+		return results;
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.github.zimengle.imageloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.InstrumentationTestCase;
+
+import com.github.zimengle.imageloader.EncodeBenchmark.Result;
+
+/**
+ * 在assets/corpus中的缩略图上运行{@link EncodeBenchmark},结果输出到日志
+ * 测试图片是生成的,包括照片类的渐变和噪点,纯色图形和文字,尺寸在200到320之间,和列表中的缩略图相当
+ */
+public class EncodeBenchmarkTest extends InstrumentationTestCase {
+
+	private static final String CORPUS = "corpus";
+
+	private static final int ROUNDS = 5;
+
+	private static final int[] QUALITIES = { 70, 80, 90 };
+
+	private List<Bitmap> corpus;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		LogUtils.openAllLogs();
+		corpus = loadCorpus(getInstrumentation().getContext().getAssets());
+		assertFalse("empty corpus", corpus.isEmpty());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Bitmap bitmap : corpus) {
+			bitmap.recycle();
+		}
+		corpus = null;
+		super.tearDown();
+	}
+
+	private static List<Bitmap> loadCorpus(AssetManager assets) throws IOException {
+		List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+		for (String name : assets.list(CORPUS)) {
+			InputStream input = assets.open(CORPUS + "/" + name);
+			try {
+				Bitmap bitmap = BitmapFactory.decodeStream(input);
+				assertNotNull(name, bitmap);
+				bitmaps.add(bitmap);
+			} finally {
+				input.close();
+			}
+		}
+		return bitmaps;
+	}
+
+	public void testFormats() {
+		List<Result> results = new EncodeBenchmark(corpus, ROUNDS).runAll(QUALITIES);
+		for (Result result : results) {
+			assertEquals(result.name, corpus.size(), result.count);
+			assertTrue(result.name, result.bytes > 0);
+		}
+	}
+
+	public void testAdaptivePolicy() {
+		Result result = new EncodeBenchmark(corpus, ROUNDS).run("adaptive", new AdaptiveEncodePolicy());
+		assertEquals(corpus.size(), result.count);
+		assertTrue(result.bytes > 0);
+	}
+
+}
@@ -13,6 +13,7 @@ import com.github.zimengle.imageloader.HttpImage;
 import com.github.zimengle.imageloader.HttpLoaderListener;
 import com.github.zimengle.imageloader.ImageLoader;
 import com.github.zimengle.imageloader.LogUtils;
+import com.github.zimengle.imageloader.ScrollPrefetcher.SourceProvider;
 
 
 
@@ -27,7 +28,7 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 
-public class GridViewAdapter extends BaseAdapter{
+public class GridViewAdapter extends BaseAdapter implements SourceProvider{
 	
 	private static final String TAG = "GridViewAdapter";
 	
@@ -60,6 +61,18 @@ public class GridViewAdapter extends BaseAdapter{
 		return position;
 	}
 	
+	public Object getSource(int position) {
+		try {
+			return new URL(list.get(position));
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+	
+	public ImageLoader getImageLoader() {
+		return imageLoader;
+	}
+	
 	private static class ViewHolder{
 		public ImageView imageView;
 		public ProgressBar bar;
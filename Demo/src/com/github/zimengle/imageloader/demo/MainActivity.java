@@ -6,9 +6,10 @@ import java.util.List;
 
 
 
+import com.github.zimengle.imageloader.ScrollPrefetcher;
+
 import android.app.Activity;
 import android.os.Bundle;
-import android.widget.BaseAdapter;
 import android.widget.GridView;
 
 public class MainActivity extends Activity{
@@ -31,8 +32,10 @@ public class MainActivity extends Activity{
 	    	list.add("https://raw.github.com/zimengle/Static/master/Images/"+i+".jpg");
 	    }
 	    
-		BaseAdapter adapter = new GridViewAdapter(this, list);
+		GridViewAdapter adapter = new GridViewAdapter(this, list);
 	    gridView.setAdapter(adapter);
+	    //滑动时预加载前方的图片
+	    gridView.setOnScrollListener(new ScrollPrefetcher(adapter.getImageLoader(), adapter, null, false));
 	    adapter.notifyDataSetChanged();
 	    
 	}
@@ -0,0 +1,192 @@
+package com.github.zimengle.downloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import com.github.zimengle.imageloader.LogUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 从本机的HTTP服务下载,对比几种写文件方式每次下载的时间和当前线程分配的字节数:
+ * 每次分配1MB数组,池中的数组包装成ByteBuffer经FileChannel写入,池中的数组直接写入,以及完整的{@link DefaultDownloader}
+ * 纯Java,不需要设备,编译后运行:
+ * java -cp target/classes:target/test-classes com.github.zimengle.downloader.DownloadBenchmark [每种的下载次数]
+ */
+public class DownloadBenchmark {
+
+	//内容大小:缩略图,中等图片,大图
+	private static final int[] SIZES = { 24 * 1024, 256 * 1024, 2 * 1024 * 1024 };
+
+	/**
+	 * 一种下载方式
+	 */
+	private interface Method {
+
+		public String name();
+
+		public void download(URL url, File file) throws IOException;
+
+	}
+
+	/**
+	 * 只有传输循环不同的下载,不处理续传
+	 */
+	private static abstract class CopyMethod implements Method {
+
+		public void download(URL url, File file) throws IOException {
+			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+			InputStream input = conn.getInputStream();
+			FileOutputStream output = new FileOutputStream(file);
+			try {
+				copy(input, output, conn.getContentLength());
+			} finally {
+				input.close();
+				output.close();
+				conn.disconnect();
+			}
+		}
+
+		protected abstract void copy(InputStream input, FileOutputStream output, int length) throws IOException;
+
+	}
+
+	private static final Method[] METHODS = { new CopyMethod() {
+
+		public String name() {
+			return "new 1MB array";
+		}
+
+		@Override
+		protected void copy(InputStream input, FileOutputStream output, int length) throws IOException {
+			byte[] buffer = new byte[1024 * 1024];
+			int n;
+			while ((n = input.read(buffer)) != -1) {
+				output.write(buffer, 0, n);
+			}
+		}
+	}, new CopyMethod() {
+
+		public String name() {
+			return "pooled + channel";
+		}
+
+		@Override
+		protected void copy(InputStream input, FileOutputStream output, int length) throws IOException {
+			byte[] buffer = BufferPool.getInstance().acquire(length);
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+			FileChannel channel = output.getChannel();
+			try {
+				int n;
+				while ((n = input.read(buffer)) != -1) {
+					byteBuffer.clear();
+					byteBuffer.limit(n);
+					while (byteBuffer.hasRemaining()) {
+						channel.write(byteBuffer);
+					}
+				}
+			} finally {
+				BufferPool.getInstance().release(buffer);
+			}
+		}
+	}, new CopyMethod() {
+
+		public String name() {
+			return "pooled + stream";
+		}
+
+		@Override
+		protected void copy(InputStream input, FileOutputStream output, int length) throws IOException {
+			byte[] buffer = BufferPool.getInstance().acquire(length);
+			try {
+				int n;
+				while ((n = input.read(buffer)) != -1) {
+					output.write(buffer, 0, n);
+				}
+			} finally {
+				BufferPool.getInstance().release(buffer);
+			}
+		}
+	}, new Method() {
+
+		public String name() {
+			return "DefaultDownloader";
+		}
+
+		public void download(URL url, File file) throws IOException {
+			new DefaultDownloader((HttpURLConnection) url.openConnection(), file).download();
+		}
+	} };
+
+	public static void main(String[] args) throws Exception {
+		int downloads = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		LogUtils.closeAllLogs();
+		final byte[] content = new byte[SIZES[SIZES.length - 1]];
+		new Random(1).nextBytes(content);
+		//小响应的头和内容分开发送,不关Nagle时每次要等延迟确认
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				int length = Integer.parseInt(exchange.getRequestURI().getPath().substring(1));
+				exchange.sendResponseHeaders(200, length);
+				OutputStream body = exchange.getResponseBody();
+				body.write(content, 0, length);
+				body.close();
+			}
+		});
+		server.start();
+		File directory = new File(System.getProperty("java.io.tmpdir"), "DownloadBenchmark");
+		directory.mkdirs();
+		File file = new File(directory, "image");
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+		System.out.println("size\tmethod\tus/download\tKB allocated/download");
+		try {
+			for (int size : SIZES) {
+				URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/" + size);
+				for (Method method : METHODS) {
+					//预热
+					for (int i = 0; i < downloads / 4; i++) {
+						file.delete();
+						method.download(url, file);
+					}
+					long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+					long start = System.nanoTime();
+					for (int i = 0; i < downloads; i++) {
+						file.delete();
+						method.download(url, file);
+					}
+					long elapsed = System.nanoTime() - start;
+					if (allocations != null) {
+						allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+					}
+					if (file.length() != size) {
+						throw new IllegalStateException(method.name() + " wrote " + file.length() + " of " + size);
+					}
+					System.out.println(size / 1024 + "KB\t" + method.name() + "\t" + elapsed / 1000 / downloads + "\t"
+							+ (allocations == null ? "-" : String.valueOf(allocated / 1024 / downloads)));
+				}
+			}
+		} finally {
+			server.stop(0);
+			file.delete();
+			new File(directory, "mengleloader.meta").delete();
+			directory.delete();
+		}
+	}
+
+}
@@ -0,0 +1,227 @@
+package com.github.zimengle.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import com.github.zimengle.imageloader.LogUtils;
+import com.github.zimengle.imageloader.TestFiles;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * {@link SegmentedDownloader}从本机的HTTP服务分段下载,中断后续传和取消,纯Java,在JVM上运行
+ */
+public class SegmentedDownloaderTest extends TestCase {
+
+	//足够分成4段
+	private static final int LENGTH = 3 * 1024 * 1024 + 17;
+
+	private static final byte[] CONTENT = new byte[LENGTH];
+
+	static {
+		new Random(1).nextBytes(CONTENT);
+	}
+
+	private HttpServer server;
+
+	private File directory;
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	//大于0时,不从头开始的范围请求只发送该字节数后断开
+	private volatile int failAfter = -1;
+
+	//每发送一块后的停顿,给取消留出时间
+	private volatile long pause = 0;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		LogUtils.closeAllLogs();
+		directory = TestFiles.createDirectory("SegmentedDownloaderTest");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				serve(exchange);
+			}
+		});
+		server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop(0);
+		TestFiles.deleteAll(directory);
+		super.tearDown();
+	}
+
+	/**
+	 * 支持Range时按最大段数下载,每段一个请求
+	 */
+	public void testDownloadsInSegments() throws IOException {
+		File file = new File(directory, "segments");
+		assertTrue(newDownloader("/segments", file).download());
+		assertTrue(Arrays.equals(CONTENT, read(file)));
+		assertEquals(4, requests.get());
+		assertFalse(SegmentedDownloader.getTempFile(file).exists());
+	}
+
+	/**
+	 * 服务器不支持Range时只用第一个连接
+	 */
+	public void testFallsBackToOneConnection() throws IOException {
+		File file = new File(directory, "norange");
+		SegmentedDownloader downloader = newDownloader("/norange", file);
+		assertTrue(downloader.download());
+		assertTrue(Arrays.equals(CONTENT, read(file)));
+		assertEquals(1, requests.get());
+		assertEquals(LENGTH, downloader.getContiguousLength());
+	}
+
+	/**
+	 * 中途断开的段抛出异常并保存每段的位置,再次下载从保存的位置继续
+	 */
+	public void testResumesAfterFailure() throws IOException {
+		File file = new File(directory, "resume");
+		failAfter = 300 * 1024;
+		try {
+			newDownloader("/resume", file).download();
+			fail("truncated segment not reported");
+		} catch (IOException e) {
+			//预期的失败
+		}
+		assertTrue(SegmentedDownloader.getTempFile(file).exists());
+
+		failAfter = -1;
+		final AtomicLong firstLoaded = new AtomicLong(-1);
+		SegmentedDownloader downloader = newDownloader("/resume", file);
+		downloader.setDownloadListener(new Listener() {
+
+			@Override
+			public void transfer(long loaded, long total, HttpURLConnection connection) {
+				firstLoaded.compareAndSet(-1, loaded);
+			}
+		});
+		assertTrue(downloader.download());
+		assertTrue(Arrays.equals(CONTENT, read(file)));
+		//第一次下载的部分没有重新下载
+		assertTrue("first loaded " + firstLoaded.get(), firstLoaded.get() > 300 * 1024);
+	}
+
+	/**
+	 * 取消后断开连接引起的异常不抛出,返回false并通知取消,临时文件留给续传
+	 */
+	public void testCancelReturnsFalse() throws IOException {
+		File file = new File(directory, "cancel");
+		pause = 5;
+		final SegmentedDownloader downloader = newDownloader("/cancel", file);
+		final AtomicInteger cancels = new AtomicInteger();
+		downloader.setDownloadListener(new Listener() {
+
+			@Override
+			public void transfer(long loaded, long total, HttpURLConnection connection) {
+				if (loaded > 100 * 1024) {
+					downloader.cancel();
+				}
+			}
+
+			@Override
+			public void cancel(HttpURLConnection connection) {
+				cancels.incrementAndGet();
+			}
+		});
+		assertFalse(downloader.download());
+		assertEquals(1, cancels.get());
+		assertFalse(file.exists());
+		assertTrue(SegmentedDownloader.getTempFile(file).exists());
+	}
+
+	private SegmentedDownloader newDownloader(String path, File file) throws IOException {
+		URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+		return new SegmentedDownloader((HttpURLConnection) url.openConnection(), file, 4);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		exchange.getResponseHeaders().add("ETag", "\"content\"");
+		int start = 0, end = LENGTH - 1, status = 200;
+		if (range != null && !exchange.getRequestURI().getPath().contains("norange")) {
+			String[] bounds = range.substring("bytes=".length()).split("-");
+			start = Integer.parseInt(bounds[0]);
+			if (bounds.length > 1 && bounds[1].length() > 0) {
+				end = Integer.parseInt(bounds[1]);
+			}
+			status = 206;
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + LENGTH);
+		}
+		int length = end - start + 1;
+		exchange.sendResponseHeaders(status, length);
+		int limit = failAfter > 0 && start > 0 ? Math.min(length, failAfter) : length;
+		OutputStream body = exchange.getResponseBody();
+		try {
+			for (int offset = 0; offset < limit; offset += 8192) {
+				body.write(CONTENT, start + offset, Math.min(8192, limit - offset));
+				if (pause > 0) {
+					body.flush();
+					Thread.sleep(pause);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (limit < length) {
+				//长度不足时断开,客户端读到提前结束
+				exchange.close();
+			} else {
+				body.close();
+			}
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[(int) input.length()];
+			input.readFully(data);
+			return data;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * 空实现的监听器
+	 */
+	private static class Listener implements DownloadListener {
+
+		public void start(HttpURLConnection connection) {
+		}
+
+		public void transfer(long loaded, long total, HttpURLConnection connection) {
+		}
+
+		public void success(HttpURLConnection connection) {
+		}
+
+		public void cancel(HttpURLConnection connection) {
+		}
+
+	}
+
+}
@@ -0,0 +1,184 @@
+package com.github.zimengle.downloader;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import com.github.zimengle.downloader.TempMetaFile.Meta;
+import com.github.zimengle.imageloader.LogUtils;
+import com.github.zimengle.imageloader.TestFiles;
+
+/**
+ * {@link TempMetaFile}的日志重放,损坏记录的恢复,重写和旧格式迁移,纯Java,在JVM上运行
+ * 每次重新创建实例模拟重启,不使用单例
+ */
+public class TempMetaFileTest extends TestCase {
+
+	private static final int LOG_MAGIC = 0x4d4c4d31;
+
+	private File directory;
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		LogUtils.closeAllLogs();
+		directory = TestFiles.createDirectory("TempMetaFileTest");
+		file = new File(directory, "mengleloader.meta");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestFiles.deleteAll(directory);
+		super.tearDown();
+	}
+
+	/**
+	 * 写入和删除后重新打开,条目和分段位置都恢复
+	 */
+	public void testReplay() {
+		TempMetaFile metas = new TempMetaFile(file);
+		for (int i = 0; i < 60; i++) {
+			Meta meta = new Meta("e" + i, (long) i, i);
+			if (i % 2 == 0) {
+				meta.positions = new long[] { i, i * 2, i * 3 };
+			}
+			metas.put("u" + i, meta);
+			if (i % 3 != 0) {
+				metas.remove("u" + i);
+			}
+		}
+		metas.sync();
+
+		TempMetaFile reopened = new TempMetaFile(file);
+		for (int i = 0; i < 60; i++) {
+			Meta meta = reopened.get("u" + i);
+			if (i % 3 != 0) {
+				assertNull("u" + i, meta);
+				continue;
+			}
+			assertNotNull("u" + i, meta);
+			assertEquals("e" + i, meta.etag);
+			assertEquals(Long.valueOf(i), meta.lastModify);
+			assertEquals(Integer.valueOf(i), meta.contentLength);
+			if (i % 2 == 0) {
+				assertTrue(Arrays.equals(new long[] { i, i * 2, i * 3 }, meta.positions));
+			} else {
+				assertNull(meta.positions);
+			}
+		}
+	}
+
+	/**
+	 * 尾部写了一半的记录被截掉,之前的记录不受影响
+	 */
+	public void testTornTailTruncated() throws IOException {
+		TempMetaFile metas = new TempMetaFile(file);
+		metas.put("a", new Meta("ea", 1L, 1));
+		metas.put("b", new Meta("eb", 2L, 2));
+		long valid = file.length();
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		try {
+			raw.seek(raw.length());
+			//长度为9的记录只写了两个字节
+			raw.write(new byte[] { 0, 0, 0, 9, 1, 2 });
+		} finally {
+			raw.close();
+		}
+
+		TempMetaFile reopened = new TempMetaFile(file);
+		assertEquals("ea", reopened.get("a").etag);
+		assertEquals("eb", reopened.get("b").etag);
+		assertEquals(valid, file.length());
+		//截掉后可以继续追加
+		reopened.put("c", new Meta("ec", 3L, 3));
+		assertEquals("ec", new TempMetaFile(file).get("c").etag);
+	}
+
+	/**
+	 * 校验失败的记录和之后的记录都被丢弃
+	 */
+	public void testCorruptRecordDropped() throws IOException {
+		TempMetaFile metas = new TempMetaFile(file);
+		metas.put("a", new Meta("ea", 1L, 1));
+		long second = file.length();
+		metas.put("b", new Meta("eb", 2L, 2));
+		metas.put("c", new Meta("ec", 3L, 3));
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		try {
+			//第二条记录的内容,跳过长度
+			raw.seek(second + 6);
+			int b = raw.read();
+			raw.seek(second + 6);
+			raw.write(b ^ 0xff);
+		} finally {
+			raw.close();
+		}
+
+		TempMetaFile reopened = new TempMetaFile(file);
+		assertEquals("ea", reopened.get("a").etag);
+		assertNull(reopened.get("b"));
+		assertNull(reopened.get("c"));
+		assertEquals(second, file.length());
+	}
+
+	/**
+	 * 同一个key反复更新时重写日志,文件不会一直增长
+	 */
+	public void testCompaction() {
+		TempMetaFile metas = new TempMetaFile(file);
+		metas.put("a", new Meta("ea", 1L, 1));
+		long single = file.length();
+		for (int i = 0; i < 1000; i++) {
+			Meta meta = new Meta("eb", 2L, 2);
+			meta.positions = new long[] { i, i + 1 };
+			metas.put("b", meta);
+		}
+		assertTrue("length " + file.length(), file.length() < single * 200);
+		Meta meta = new TempMetaFile(file).get("b");
+		assertTrue(Arrays.equals(new long[] { 999, 1000 }, meta.positions));
+	}
+
+	/**
+	 * 旧版本用对象流保存的map被读出并改写成日志格式
+	 */
+	public void testMigratesObjectStream() throws IOException {
+		HashMap<String, Meta> old = new HashMap<String, Meta>();
+		old.put("a", new Meta("ea", 1L, 1));
+		old.put("b", new Meta(null, 2L, 2));
+		ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(file));
+		try {
+			output.writeObject(old);
+		} finally {
+			output.close();
+		}
+
+		TempMetaFile metas = new TempMetaFile(file);
+		assertEquals("ea", metas.get("a").etag);
+		assertEquals(Long.valueOf(2), metas.get("b").lastModify);
+		assertEquals(LOG_MAGIC, readMagic());
+
+		TempMetaFile reopened = new TempMetaFile(file);
+		assertEquals("ea", reopened.get("a").etag);
+		assertNull(reopened.get("b").etag);
+	}
+
+	private int readMagic() throws IOException {
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			return input.readInt();
+		} finally {
+			input.close();
+		}
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.github.zimengle.downloader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.github.zimengle.imageloader.LogUtils;
+
+/**
+ * {@link UniqueURLDownloader}的合并和取消,用阻塞到放行的假下载器,纯Java,在JVM上运行
+ */
+public class UniqueURLDownloaderTest extends TestCase {
+
+	//等待线程进入阻塞的时间
+	private static final long SETTLE = 100;
+
+	private static final AtomicInteger URLS = new AtomicInteger();
+
+	/**
+	 * 阻塞到放行的下载,同一URL共享"文件是否已下载"
+	 */
+	private static class FakeDownloader implements Downloader {
+
+		private final Remote remote;
+
+		private DownloadListener listener;
+
+		private volatile boolean canceled = false;
+
+		public FakeDownloader(Remote remote) {
+			this.remote = remote;
+		}
+
+		public boolean download() throws IOException {
+			if (remote.downloaded.get()) {
+				return true;
+			}
+			int running = remote.running.incrementAndGet();
+			remote.maxRunning.set(Math.max(remote.maxRunning.get(), running));
+			remote.runs.incrementAndGet();
+			try {
+				if (listener != null) {
+					listener.start(null);
+				}
+				try {
+					remote.release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (canceled) {
+					return false;
+				}
+				remote.downloaded.set(true);
+				if (listener != null) {
+					listener.success(null);
+				}
+				return true;
+			} finally {
+				remote.running.decrementAndGet();
+			}
+		}
+
+		public void cancel() {
+			canceled = true;
+		}
+
+		public String getURL() {
+			return remote.url;
+		}
+
+		public void setDownloadListener(DownloadListener downloadListener) {
+			this.listener = downloadListener;
+		}
+
+	}
+
+	/**
+	 * 一个URL的下载状态
+	 */
+	private static class Remote {
+
+		private final String url = "http://localhost/" + URLS.incrementAndGet();
+
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private final AtomicBoolean downloaded = new AtomicBoolean();
+
+		private final AtomicInteger running = new AtomicInteger();
+
+		private final AtomicInteger maxRunning = new AtomicInteger();
+
+		private final AtomicInteger runs = new AtomicInteger();
+
+		public UniqueURLDownloader newDownloader() {
+			return new UniqueURLDownloader(new FakeDownloader(this));
+		}
+
+	}
+
+	/**
+	 * 只统计开始次数的监听器
+	 */
+	private static class StartCounter implements DownloadListener {
+
+		private final AtomicInteger starts = new AtomicInteger();
+
+		public void start(HttpURLConnection connection) {
+			starts.incrementAndGet();
+		}
+
+		public void transfer(long loaded, long total, HttpURLConnection connection) {
+		}
+
+		public void success(HttpURLConnection connection) {
+		}
+
+		public void cancel(HttpURLConnection connection) {
+		}
+
+	}
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		LogUtils.closeAllLogs();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+		super.tearDown();
+	}
+
+	/**
+	 * 后来的调用者订阅正在执行的下载,补发开始,共用结果,只下载一次
+	 */
+	public void testSubscribersShareOneDownload() throws Exception {
+		Remote remote = new Remote();
+		UniqueURLDownloader first = remote.newDownloader();
+		UniqueURLDownloader second = remote.newDownloader();
+		StartCounter counter = new StartCounter();
+		second.setDownloadListener(counter);
+		Future<Boolean> firstResult = submit(first);
+		Thread.sleep(SETTLE);
+		Future<Boolean> secondResult = submit(second);
+		Thread.sleep(SETTLE);
+		assertEquals(1, counter.starts.get());
+
+		remote.release.countDown();
+		assertTrue(firstResult.get(1, TimeUnit.SECONDS));
+		assertTrue(secondResult.get(1, TimeUnit.SECONDS));
+		assertEquals(1, remote.runs.get());
+	}
+
+	/**
+	 * 订阅者取消只停止自己的等待,不影响执行的下载
+	 */
+	public void testSubscriberCancelLeavesDownload() throws Exception {
+		Remote remote = new Remote();
+		UniqueURLDownloader first = remote.newDownloader();
+		UniqueURLDownloader second = remote.newDownloader();
+		Future<Boolean> firstResult = submit(first);
+		Thread.sleep(SETTLE);
+		Future<Boolean> secondResult = submit(second);
+		Thread.sleep(SETTLE);
+
+		second.cancel();
+		assertFalse(secondResult.get(1, TimeUnit.SECONDS));
+		assertFalse(firstResult.isDone());
+		remote.release.countDown();
+		assertTrue(firstResult.get(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * 所有调用者都取消后取消实际的下载;执行的线程退出之前,新的调用者等待而不是同时下载,
+	 * 等待中的调用者可以取消
+	 */
+	public void testCanceledDownloadDrainsBeforeRestart() throws Exception {
+		Remote remote = new Remote();
+		UniqueURLDownloader first = remote.newDownloader();
+		UniqueURLDownloader second = remote.newDownloader();
+		Future<Boolean> firstResult = submit(first);
+		Thread.sleep(SETTLE);
+		Future<Boolean> secondResult = submit(second);
+		Thread.sleep(SETTLE);
+		first.cancel();
+		second.cancel();
+		assertFalse(secondResult.get(1, TimeUnit.SECONDS));
+
+		//执行的线程还在阻塞
+		UniqueURLDownloader third = remote.newDownloader();
+		Future<Boolean> thirdResult = submit(third);
+		UniqueURLDownloader fourth = remote.newDownloader();
+		Future<Boolean> fourthResult = submit(fourth);
+		Thread.sleep(SETTLE);
+		assertFalse(thirdResult.isDone());
+		assertEquals(1, remote.runs.get());
+		fourth.cancel();
+		assertFalse(fourthResult.get(1, TimeUnit.SECONDS));
+
+		remote.release.countDown();
+		assertFalse(firstResult.get(1, TimeUnit.SECONDS));
+		assertTrue(thirdResult.get(1, TimeUnit.SECONDS));
+		assertEquals(2, remote.runs.get());
+		assertEquals(1, remote.maxRunning.get());
+	}
+
+	private Future<Boolean> submit(final UniqueURLDownloader downloader) {
+		return executor.submit(new Callable<Boolean>() {
+
+			public Boolean call() throws Exception {
+				return downloader.download();
+			}
+		});
+	}
+
+}
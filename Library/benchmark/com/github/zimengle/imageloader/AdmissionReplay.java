@@ -0,0 +1,276 @@
+package com.github.zimengle.imageloader;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 回放访问序列,比较内存缓存使用Lru和W-TinyLFU准入策略时的命中率和字节命中率
+ * 没有指定文件时回放几种生成的访问序列,各自输出结果,不判断哪种策略更好:
+ * <ul>
+ * <li>scroll:列表中常用的头像按幂律反复出现,同时快速滑过只看一次的大缩略图,偶尔往回滑动重新看到刚看过的几张</li>
+ * <li>scroll-far:同上,往回滑动更远,最远30张</li>
+ * <li>chat:只有大图,一半是新的,一半往回看最近的12张以内</li>
+ * <li>zipf:3000张大小不同的图片,按幂律访问</li>
+ * <li>loop:循环浏览比缓存稍大的一组大图</li>
+ * <li>phases:常用的头像每隔一段时间整体换一批</li>
+ * </ul>
+ * 纯Java,不需要设备,编译后运行:
+ * java -cp target/classes:target/test-classes com.github.zimengle.imageloader.AdmissionReplay [序列文件]
+ * 序列文件每行一次访问,格式为"key 字节数"
+ */
+public class AdmissionReplay {
+
+	//和ImageCache的默认内存缓存相近
+	private static final int CACHE_SIZE = 16 * 1024 * 1024;
+
+	private static final int AVATARS = 400;
+
+	//128*128的RGB_565
+	private static final int AVATAR_BYTES = 128 * 128 * 2;
+
+	//384*384的RGB_565
+	private static final int THUMBNAIL_BYTES = 384 * 384 * 2;
+
+	private static final int STEPS = 200000;
+
+	private static final String[] TRACES = { "scroll", "scroll-far", "chat", "zipf", "loop", "phases" };
+
+	/**
+	 * 一次访问
+	 */
+	private static class Access {
+
+		private final String key;
+
+		private final int size;
+
+		public Access(String key, int size) {
+			this.key = key;
+			this.size = size;
+		}
+
+	}
+
+	/**
+	 * 回放的结果
+	 */
+	private static class Result {
+
+		private long hits;
+
+		private long requests;
+
+		private long hitBytes;
+
+		private long requestBytes;
+
+		@Override
+		public String toString() {
+			return String.format("hit ratio %.4f, byte hit ratio %.4f", hits / (double) requests, hitBytes / (double) requestBytes);
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0) {
+			compare(args[0], read(args[0]));
+			return;
+		}
+		for (String name : TRACES) {
+			compare(name, generate(name, new Random(42)));
+		}
+	}
+
+	private static void compare(String name, List<Access> trace) {
+		Result lru = replay(trace, null);
+		Result tinyLfu = replay(trace, new FrequencySketch(CACHE_SIZE / (128 * 128 * 2)));
+		System.out.println(name + ", accesses: " + trace.size());
+		System.out.println("  lru:      " + lru);
+		System.out.println("  tinylfu:  " + tinyLfu);
+	}
+
+	private static List<Access> generate(String name, Random random) {
+		if ("scroll".equals(name)) {
+			return scrollTrace(random, 8);
+		} else if ("scroll-far".equals(name)) {
+			return scrollTrace(random, 30);
+		} else if ("chat".equals(name)) {
+			return chatTrace(random);
+		} else if ("zipf".equals(name)) {
+			return zipfTrace(random);
+		} else if ("loop".equals(name)) {
+			return loopTrace();
+		} else {
+			return phasesTrace(random);
+		}
+	}
+
+	private static Result replay(List<Access> trace, FrequencySketch sketch) {
+		ConcurrentLruCache<String, Integer> cache = new ConcurrentLruCache<String, Integer>(CACHE_SIZE, sketch) {
+			@Override
+			protected int sizeOf(String key, Integer value) {
+				return value;
+			}
+		};
+		Result result = new Result();
+		for (Access access : trace) {
+			result.requests++;
+			result.requestBytes += access.size;
+			if (cache.get(access.key) != null) {
+				result.hits++;
+				result.hitBytes += access.size;
+			} else {
+				cache.put(access.key, access.size);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 生成滑动列表的访问序列
+	 * @param random
+	 * @param maxBack 往回滑动最远的张数
+	 * @return
+	 */
+	private static List<Access> scrollTrace(Random random, int maxBack) {
+		double[] cumulative = cumulative(AVATARS, 1);
+		List<Access> trace = new ArrayList<Access>();
+		int position = 0;
+		for (int step = 0; step < STEPS; step++) {
+			int action = random.nextInt(10);
+			if (action < 5) {
+				//列表项中的头像
+				trace.add(new Access("avatar" + pick(random, cumulative), AVATAR_BYTES));
+			} else if (action < 9) {
+				//往下滑动,新的缩略图
+				trace.add(new Access("thumbnail" + position++, THUMBNAIL_BYTES));
+			} else {
+				//往回滑动,重新看到最近的几张
+				int back = Math.min(position, 1 + random.nextInt(maxBack));
+				trace.add(new Access("thumbnail" + (position - back), THUMBNAIL_BYTES));
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * 生成聊天记录中看图的访问序列,没有反复出现的图片
+	 * @param random
+	 * @return
+	 */
+	private static List<Access> chatTrace(Random random) {
+		List<Access> trace = new ArrayList<Access>();
+		int position = 0;
+		for (int step = 0; step < STEPS; step++) {
+			if (random.nextBoolean()) {
+				trace.add(new Access("image" + position++, THUMBNAIL_BYTES));
+			} else {
+				int back = Math.min(position, 1 + random.nextInt(12));
+				trace.add(new Access("image" + (position - back), THUMBNAIL_BYTES));
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * 生成按幂律访问的序列,70%是头像,其余是大缩略图
+	 * @param random
+	 * @return
+	 */
+	private static List<Access> zipfTrace(Random random) {
+		int images = 3000;
+		int[] sizes = new int[images];
+		for (int i = 0; i < images; i++) {
+			sizes[i] = random.nextInt(10) < 7 ? AVATAR_BYTES : THUMBNAIL_BYTES;
+		}
+		double[] cumulative = cumulative(images, 0.9);
+		List<Access> trace = new ArrayList<Access>();
+		for (int step = 0; step < STEPS; step++) {
+			int image = pick(random, cumulative);
+			trace.add(new Access("image" + image, sizes[image]));
+		}
+		return trace;
+	}
+
+	/**
+	 * 生成循环浏览的访问序列,一轮的大小是缓存的1.25倍
+	 * @return
+	 */
+	private static List<Access> loopTrace() {
+		int images = CACHE_SIZE * 5 / 4 / THUMBNAIL_BYTES;
+		List<Access> trace = new ArrayList<Access>();
+		for (int step = 0; step < STEPS; step++) {
+			trace.add(new Access("image" + step % images, THUMBNAIL_BYTES));
+		}
+		return trace;
+	}
+
+	/**
+	 * 生成常用的头像分4段整体更换的访问序列
+	 * @param random
+	 * @return
+	 */
+	private static List<Access> phasesTrace(Random random) {
+		double[] cumulative = cumulative(AVATARS * 3 / 2, 1);
+		List<Access> trace = new ArrayList<Access>();
+		for (int step = 0; step < STEPS; step++) {
+			int phase = step / (STEPS / 4);
+			trace.add(new Access("avatar" + phase + "-" + pick(random, cumulative), AVATAR_BYTES));
+		}
+		return trace;
+	}
+
+	/**
+	 * 幂律分布的累积概率,排名r的概率和1/r^exponent成正比,未归一化
+	 * @param count
+	 * @param exponent
+	 * @return
+	 */
+	private static double[] cumulative(int count, double exponent) {
+		double[] cumulative = new double[count];
+		double sum = 0;
+		for (int i = 0; i < count; i++) {
+			sum += 1.0 / Math.pow(i + 1, exponent);
+			cumulative[i] = sum;
+		}
+		return cumulative;
+	}
+
+	private static int pick(Random random, double[] cumulative) {
+		double x = random.nextDouble() * cumulative[cumulative.length - 1];
+		int low = 0, high = cumulative.length - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (cumulative[mid] < x) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static List<Access> read(String path) throws IOException {
+		List<Access> trace = new ArrayList<Access>();
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				trace.add(new Access(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 1));
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+
+}
@@ -0,0 +1,182 @@
+package com.github.zimengle.imageloader;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * 多线程读写时{@link ConcurrentLruCache}和support-v4的{@link LruCache}的吞吐量对比,未命中时放入
+ * 两种访问:key按幂律分布,和列表滑动时内存缓存的访问相近;只访问缓存中的key,只有读取
+ * <p>
+ * 单线程时ConcurrentLruCache只读取的吞吐量高于LruCache,但每次放入要分配条目,在分段的map和队列中各操作一次,
+ * 淘汰时还要比较各分段的队首,幂律分布下约30%的访问未命中,总吞吐量低于LruCache;
+ * 内存缓存未命中后要读磁盘和解码,耗时是毫秒级,放入的这部分开销可以忽略,UI线程上的读取不等待解码线程的放入和淘汰更重要
+ * <p>
+ * LruCache是纯Java的,support-v4已经是依赖,编译后运行:
+ * java -cp target/classes:target/test-classes com.github.zimengle.imageloader.ConcurrentLruCacheBenchmark [秒数]
+ */
+public class ConcurrentLruCacheBenchmark {
+
+	//缓存的条目数
+	private static final int CAPACITY = 2000;
+
+	//不同key的个数
+	private static final int KEY_SPACE = 20000;
+
+	//每个线程预先生成的key个数
+	private static final int TRACE_LENGTH = 1 << 16;
+
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+
+	/**
+	 * 被测的缓存
+	 */
+	private interface Cache {
+
+		public Object get(Integer key);
+
+		public void put(Integer key, Object value);
+
+	}
+
+	/**
+	 * 替换前使用的support-v4的LruCache,一把锁保护按访问排序的LinkedHashMap
+	 */
+	private static class SupportLruCache implements Cache {
+
+		private final LruCache<Integer, Object> cache = new LruCache<Integer, Object>(CAPACITY);
+
+		public Object get(Integer key) {
+			return cache.get(key);
+		}
+
+		public void put(Integer key, Object value) {
+			cache.put(key, value);
+		}
+
+	}
+
+	private static class ConcurrentCache implements Cache {
+
+		private final ConcurrentLruCache<Integer, Object> cache;
+
+		public ConcurrentCache(FrequencySketch sketch) {
+			cache = new ConcurrentLruCache<Integer, Object>(CAPACITY, sketch);
+		}
+
+		public Object get(Integer key) {
+			return cache.get(key);
+		}
+
+		public void put(Integer key, Object value) {
+			cache.put(key, value);
+		}
+
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		Integer[][] zipf = new Integer[THREADS[THREADS.length - 1]][];
+		Integer[][] hits = new Integer[zipf.length][];
+		for (int i = 0; i < zipf.length; i++) {
+			zipf[i] = zipf(new Random(i), TRACE_LENGTH);
+			hits[i] = uniform(new Random(i), TRACE_LENGTH, CAPACITY / 2);
+		}
+		System.out.println("trace\tthreads\tcache\tops/ms\thit rate");
+		for (int threads : THREADS) {
+			run("zipf", "LruCache", new SupportLruCache(), threads, zipf, seconds);
+			run("zipf", "Concurrent", new ConcurrentCache(null), threads, zipf, seconds);
+			run("zipf", "TinyLfu", new ConcurrentCache(new FrequencySketch(CAPACITY)), threads, zipf, seconds);
+		}
+		for (int threads : THREADS) {
+			run("hits", "LruCache", new SupportLruCache(), threads, hits, seconds);
+			run("hits", "Concurrent", new ConcurrentCache(null), threads, hits, seconds);
+		}
+	}
+
+	private static void run(String traceName, String name, final Cache cache, int threads, final Integer[][] traces, int seconds) throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong operations = new AtomicLong();
+		final AtomicLong hits = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(threads);
+		final Object value = new Object();
+		for (int t = 0; t < threads; t++) {
+			final Integer[] trace = traces[t];
+			new Thread() {
+				@Override
+				public void run() {
+					long count = 0, hit = 0;
+					int i = 0;
+					while (!stop.get()) {
+						Integer key = trace[i++ & (TRACE_LENGTH - 1)];
+						if (cache.get(key) != null) {
+							hit++;
+						} else {
+							cache.put(key, value);
+						}
+						count++;
+					}
+					operations.addAndGet(count);
+					hits.addAndGet(hit);
+					done.countDown();
+				}
+			}.start();
+		}
+		long start = System.currentTimeMillis();
+		Thread.sleep(seconds * 1000L);
+		stop.set(true);
+		done.await();
+		long elapsed = System.currentTimeMillis() - start;
+		System.out.println(traceName + "\t" + threads + "\t" + name + "\t" + operations.get() / elapsed + "\t"
+				+ String.format("%.3f", hits.get() / (double) operations.get()));
+	}
+
+	/**
+	 * 均匀分布的key,都能放入缓存,预热后只有读取
+	 * @param random
+	 * @param length
+	 * @param space 不同key的个数
+	 * @return
+	 */
+	private static Integer[] uniform(Random random, int length, int space) {
+		Integer[] keys = new Integer[length];
+		for (int i = 0; i < length; i++) {
+			keys[i] = Integer.valueOf(random.nextInt(space));
+		}
+		return keys;
+	}
+
+	/**
+	 * 按幂律分布生成key,排名r的key出现的概率和1/r成正比
+	 * @param random
+	 * @param length
+	 * @return
+	 */
+	private static Integer[] zipf(Random random, int length) {
+		double[] cumulative = new double[KEY_SPACE];
+		double sum = 0;
+		for (int i = 0; i < KEY_SPACE; i++) {
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		Integer[] keys = new Integer[length];
+		for (int i = 0; i < length; i++) {
+			double x = random.nextDouble() * sum;
+			int low = 0, high = KEY_SPACE - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (cumulative[mid] < x) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			keys[i] = Integer.valueOf(low);
+		}
+		return keys;
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.github.zimengle.imageloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link DiskLruCache}的日志重放和下载中的临时文件,纯Java,在JVM上运行
+ */
+public class DiskLruCacheTest extends TestCase {
+
+	private static final long MAX_SIZE = 10000;
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		LogUtils.closeAllLogs();
+		directory = TestFiles.createDirectory("DiskLruCacheTest");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestFiles.deleteAll(directory);
+		super.tearDown();
+	}
+
+	/**
+	 * 随机的写入,读取和删除与按访问顺序的LinkedHashMap对照,重新打开后条目,大小和淘汰顺序都一致
+	 */
+	public void testJournalReplay() throws IOException {
+		DiskLruCache cache = DiskLruCache.open(directory, MAX_SIZE);
+		Map<String, Integer> model = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++) {
+			String key = "k" + random.nextInt(300);
+			switch (random.nextInt(3)) {
+			case 0:
+				int length = 50 + random.nextInt(200);
+				write(cache, key, length);
+				put(model, key, length);
+				break;
+			case 1:
+				assertEquals(key + " at " + i, model.get(key) != null, cache.get(key) != null);
+				break;
+			default:
+				assertEquals(key + " at " + i, model.remove(key) != null, cache.remove(key));
+			}
+		}
+		assertEquals(sum(model), cache.size());
+		assertEquals(model.size(), cache.count());
+
+		DiskLruCache reopened = DiskLruCache.open(directory, MAX_SIZE);
+		assertEquals(sum(model), reopened.size());
+		assertEquals(model.size(), reopened.count());
+		for (String key : model.keySet()) {
+			assertTrue(key, reopened.contains(key));
+		}
+		//写入大的条目,按重放的访问顺序淘汰
+		write(reopened, "big", 4000);
+		put(model, "big", 4000);
+		for (int i = 0; i < 300; i++) {
+			String key = "k" + i;
+			assertEquals(key, model.containsKey(key), reopened.contains(key));
+		}
+		assertEquals(sum(model), reopened.size());
+	}
+
+	/**
+	 * 写入中途崩溃的临时文件在重放时删除,条目不存在
+	 */
+	public void testUncommittedEditDiscarded() throws IOException {
+		DiskLruCache cache = DiskLruCache.open(directory, MAX_SIZE);
+		write(cache, "committed", 100);
+		File tmp = cache.edit("crashed");
+		writeFile(tmp, 100);
+
+		DiskLruCache reopened = DiskLruCache.open(directory, MAX_SIZE);
+		assertTrue(reopened.contains("committed"));
+		assertFalse(reopened.contains("crashed"));
+		assertFalse(tmp.exists());
+		assertEquals(100, reopened.size());
+	}
+
+	/**
+	 * 打开时过期的下载临时文件和写入临时文件被删除,新的下载临时文件计入容量
+	 */
+	public void testPartialsOnOpen() throws IOException {
+		File stale = new File(directory, DiskLruCache.hashKey("u1") + ".temp");
+		writeFile(stale, 100);
+		stale.setLastModified(System.currentTimeMillis() - 4L * 24 * 60 * 60 * 1000);
+		File fresh = new File(directory, DiskLruCache.hashKey("u2") + ".stemp");
+		writeFile(fresh, 300);
+		File tmp = new File(directory, DiskLruCache.hashKey("u2") + ".tmp");
+		writeFile(tmp, 50);
+
+		DiskLruCache cache = DiskLruCache.open(directory, 1000);
+		assertEquals(300, cache.size());
+		assertFalse(stale.exists());
+		assertTrue(fresh.exists());
+		assertFalse(tmp.exists());
+	}
+
+	/**
+	 * 超出容量时先删除不在下载中的临时文件,下载中的保留,结束后才可以被淘汰
+	 */
+	public void testActivePartialSurvivesTrim() throws IOException {
+		File idle = new File(directory, DiskLruCache.hashKey("u2") + ".stemp");
+		writeFile(idle, 300);
+		DiskLruCache cache = DiskLruCache.open(directory, 1000);
+		File active = new File(directory, DiskLruCache.hashKey("u3") + ".temp");
+		cache.beginPartial(active);
+		writeFile(active, 400);
+		for (int i = 0; i < 3; i++) {
+			write(cache, "k" + i, 250);
+		}
+		assertFalse(idle.exists());
+		assertTrue(active.exists());
+		assertEquals(3, cache.count());
+
+		cache.endPartial(active);
+		assertFalse(active.exists());
+		assertEquals(750, cache.size());
+	}
+
+	/**
+	 * 下载完成后临时文件改名为缓存文件,提交后不再按临时文件计算
+	 */
+	public void testCommitClearsPartial() throws IOException {
+		DiskLruCache cache = DiskLruCache.open(directory, 1000);
+		File file = cache.getFile("u4");
+		File partial = new File(file + ".temp");
+		cache.beginPartial(partial);
+		writeFile(partial, 100);
+		cache.endPartial(partial);
+		assertEquals(100, cache.size());
+
+		cache.beginPartial(partial);
+		assertTrue(partial.renameTo(file));
+		cache.endPartial(partial);
+		assertTrue(cache.commit("u4"));
+		assertEquals(100, cache.size());
+		assertEquals(1, cache.count());
+	}
+
+	private static void write(DiskLruCache cache, String key, int length) throws IOException {
+		writeFile(cache.edit(key), length);
+		assertTrue(cache.commit(key));
+	}
+
+	private static void writeFile(File file, int length) throws IOException {
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(new byte[length]);
+		} finally {
+			output.close();
+		}
+	}
+
+	private static void put(Map<String, Integer> model, String key, int length) {
+		model.put(key, length);
+		long size = sum(model);
+		Iterator<Integer> iterator = model.values().iterator();
+		while (size > MAX_SIZE) {
+			size -= iterator.next();
+			iterator.remove();
+		}
+	}
+
+	private static long sum(Map<String, Integer> model) {
+		long size = 0;
+		for (int length : model.values()) {
+			size += length;
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,244 @@
+package com.github.zimengle.imageloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link SegmentStore}的读写,崩溃恢复,淘汰,并发和从{@link DiskLruCache}迁移,纯Java,在JVM上运行
+ */
+public class SegmentStoreTest extends TestCase {
+
+	private static final long MAX_SIZE = 200000;
+
+	private static final int SEGMENT_SIZE = 20000;
+
+	private static final int KEYS = 400;
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		LogUtils.closeAllLogs();
+		directory = TestFiles.createDirectory("SegmentStoreTest");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestFiles.deleteAll(directory);
+		super.tearDown();
+	}
+
+	/**
+	 * 随机的写入,读取和删除与map对照:命中的数据一致,删除后不再命中,容量不超过一个段
+	 * 段尾追加不完整的记录后重新打开,截掉不完整的记录,删除的数据不会恢复
+	 */
+	public void testRandomOperationsAndReopen() throws IOException {
+		SegmentStore store = SegmentStore.open(directory, MAX_SIZE, SEGMENT_SIZE);
+		Map<String, byte[]> model = new HashMap<String, byte[]>();
+		Random random = new Random(2);
+		int hits = 0;
+		for (int i = 0; i < 30000; i++) {
+			String key = "k" + random.nextInt(KEYS);
+			int op = random.nextInt(10);
+			if (op < 4) {
+				byte[] data = new byte[100 + random.nextInt(900)];
+				random.nextBytes(data);
+				assertTrue(store.write(key, data));
+				model.put(key, data);
+			} else if (op < 9) {
+				byte[] data = store.read(key);
+				if (data != null) {
+					hits++;
+					assertTrue(key + " at " + i, Arrays.equals(model.get(key), data));
+				}
+			} else {
+				store.remove(key);
+				model.remove(key);
+				assertFalse(store.contains(key));
+			}
+			assertTrue("size " + store.size(), store.size() <= MAX_SIZE + SEGMENT_SIZE);
+		}
+		assertTrue(hits > 0);
+
+		File[] segments = directory.listFiles();
+		Arrays.sort(segments);
+		RandomAccessFile last = new RandomAccessFile(segments[segments.length - 1], "rw");
+		try {
+			last.seek(last.length());
+			//记录头的魔数后面写入中断
+			last.write(new byte[] { 0x49, 0x4d, 0x47, 0x31, 1, 2, 3 });
+		} finally {
+			last.close();
+		}
+		SegmentStore reopened = SegmentStore.open(directory, MAX_SIZE, SEGMENT_SIZE);
+		assertEquals(store.count(), reopened.count());
+		assertEquals(store.size(), reopened.size());
+		for (int i = 0; i < KEYS; i++) {
+			String key = "k" + i;
+			assertEquals(key, store.contains(key), reopened.contains(key));
+			if (!model.containsKey(key)) {
+				assertFalse("resurrected " + key, reopened.contains(key));
+			} else if (reopened.contains(key)) {
+				assertTrue(key, Arrays.equals(model.get(key), reopened.read(key)));
+			}
+		}
+	}
+
+	/**
+	 * 淘汰段时被访问过的数据复制到当前段,复制不会让容量超出上限
+	 */
+	public void testSizeBoundedWhileKeepingAccessed() throws IOException {
+		SegmentStore store = SegmentStore.open(directory, 60000, 10000);
+		byte[] data = new byte[800];
+		for (int i = 0; i < 3000; i++) {
+			store.write("t" + i, data);
+			//最近写入的都被访问过,淘汰时都要保留
+			for (int j = Math.max(0, i - 60); j <= i; j++) {
+				store.read("t" + j);
+			}
+			assertTrue("size " + store.size() + " at " + i, store.size() <= 60000);
+		}
+		assertTrue(store.contains("t2999"));
+	}
+
+	/**
+	 * 一个线程写入和删除,其他线程读取,读到的数据都是完整的某个版本
+	 */
+	public void testConcurrentReadsDuringCompaction() throws Exception {
+		final SegmentStore store = SegmentStore.open(directory, MAX_SIZE, SEGMENT_SIZE);
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicLong reads = new AtomicLong();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					Random random = new Random(id);
+					try {
+						while (!stop.get()) {
+							int key = random.nextInt(300);
+							if (id == 0) {
+								if (random.nextInt(10) < 8) {
+									store.write("k" + key, version(key, random.nextInt(256), 100 + random.nextInt(900)));
+								} else {
+									store.remove("k" + key);
+								}
+							} else {
+								byte[] data = store.read("k" + key);
+								if (data != null) {
+									reads.incrementAndGet();
+									if (!isVersion(key, data)) {
+										throw new AssertionError("corrupt k" + key);
+									}
+								}
+							}
+						}
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		Thread.sleep(2000);
+		stop.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertTrue(reads.get() > 0);
+		assertTrue("size " + store.size(), store.size() <= MAX_SIZE + SEGMENT_SIZE);
+	}
+
+	/**
+	 * 映射的数据在被删除后仍然可读
+	 */
+	public void testMapOutlivesRemove() throws IOException {
+		SegmentStore store = SegmentStore.open(directory, MAX_SIZE, SEGMENT_SIZE);
+		byte[] data = new byte[5000];
+		new Random(4).nextBytes(data);
+		for (int i = 0; i < 20; i++) {
+			store.write("k" + i, data);
+		}
+		assertNull(store.map("missing"));
+		ByteBuffer buffer = store.map("k7");
+		assertEquals(data.length, buffer.remaining());
+		store.remove("k7");
+		byte[] mapped = new byte[buffer.remaining()];
+		buffer.get(mapped);
+		assertTrue(Arrays.equals(data, mapped));
+	}
+
+	/**
+	 * 目录中DiskLruCache的缓存文件复制到段中后删除;切换回DiskLruCache时段文件被删除
+	 */
+	public void testMigrationBothWays() throws Exception {
+		DiskLruCache cache = DiskLruCache.open(directory, 1000000);
+		Map<String, byte[]> model = new HashMap<String, byte[]>();
+		Random random = new Random(3);
+		for (int i = 0; i < 50; i++) {
+			byte[] data = new byte[500 + random.nextInt(500)];
+			random.nextBytes(data);
+			assertTrue(cache.write("k" + i, data));
+			model.put("k" + i, data);
+		}
+
+		SegmentStore store = SegmentStore.open(directory, 1000000, SEGMENT_SIZE);
+		assertEquals(model.size(), store.count());
+		for (Map.Entry<String, byte[]> entry : model.entrySet()) {
+			assertTrue(entry.getKey(), Arrays.equals(entry.getValue(), store.read(entry.getKey())));
+		}
+		for (String name : directory.list()) {
+			assertTrue(name, name.startsWith("segment."));
+		}
+
+		DiskLruCache back = DiskLruCache.open(directory, 1000000);
+		assertFalse(back.contains("k1"));
+		for (String name : directory.list()) {
+			assertFalse(name, name.startsWith("segment."));
+		}
+	}
+
+	//数据的前三个字节是key和版本,其余由它们决定
+	private static byte[] version(int key, int version, int length) {
+		byte[] data = new byte[length];
+		for (int i = 3; i < length; i++) {
+			data[i] = (byte) (key * 31 + version * 7 + i);
+		}
+		data[0] = (byte) key;
+		data[1] = (byte) (key >> 8);
+		data[2] = (byte) version;
+		return data;
+	}
+
+	private static boolean isVersion(int key, byte[] data) {
+		if (((data[0] & 0xff) | ((data[1] & 0xff) << 8)) != key) {
+			return false;
+		}
+		int version = data[2] & 0xff;
+		for (int i = 3; i < data.length; i++) {
+			if (data[i] != (byte) (key * 31 + version * 7 + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
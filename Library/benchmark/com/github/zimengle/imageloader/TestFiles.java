@@ -0,0 +1,39 @@
+package com.github.zimengle.imageloader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 测试用的临时目录
+ */
+public class TestFiles {
+
+	/**
+	 * 在系统临时目录下创建空目录
+	 * @param prefix
+	 * @return
+	 * @throws IOException
+	 */
+	public static File createDirectory(String prefix) throws IOException {
+		File directory = File.createTempFile(prefix, "");
+		if (!directory.delete() || !directory.mkdirs()) {
+			throw new IOException("can not create " + directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * 递归删除
+	 * @param file
+	 */
+	public static void deleteAll(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+}
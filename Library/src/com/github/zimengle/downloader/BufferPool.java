@@ -0,0 +1,92 @@
+package com.github.zimengle.downloader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 下载用的传输缓冲区池,按大小分档复用,避免每次下载都分配大数组
+ * 按内容长度选择不小于它的最小一档,未知长度时使用中间一档
+ */
+public class BufferPool {
+	
+	//每档的大小,从小到大
+	private static final int[] SIZES = {4*1024, 16*1024, 64*1024};
+	
+	//长度未知时使用的档
+	private static final int DEFAULT_INDEX = 1;
+	
+	//每档最多保留的个数
+	private static final int MAX_PER_SIZE = 8;
+	
+	private static BufferPool instance = null;
+	
+	/**
+	 * 单例模式
+	 * @return
+	 */
+	public static BufferPool getInstance(){
+		if(instance == null){
+			synchronized (BufferPool.class) {
+				if(instance == null){
+					instance = new BufferPool();
+				}
+			}
+		}
+		return instance;
+	}
+	
+	private List<List<byte[]>> free = new ArrayList<List<byte[]>>();
+	
+	private BufferPool() {
+		for(int i = 0;i < SIZES.length;i++){
+			free.add(new ArrayList<byte[]>(MAX_PER_SIZE));
+		}
+	}
+	
+	/**
+	 * 获取缓冲区,用完后调用{@link #release(byte[])}放回
+	 * @param expectedLength 要传输的字节数,未知时小于0
+	 * @return
+	 */
+	public byte[] acquire(long expectedLength){
+		int index = indexOf(expectedLength);
+		List<byte[]> buffers = free.get(index);
+		synchronized (buffers) {
+			if(!buffers.isEmpty()){
+				return buffers.remove(buffers.size() - 1);
+			}
+		}
+		return new byte[SIZES[index]];
+	}
+	
+	/**
+	 * 放回缓冲区,不是池中分配的大小或者该档已满时丢弃
+	 * @param buffer
+	 */
+	public void release(byte[] buffer){
+		for(int i = 0;i < SIZES.length;i++){
+			if(SIZES[i] == buffer.length){
+				List<byte[]> buffers = free.get(i);
+				synchronized (buffers) {
+					if(buffers.size() < MAX_PER_SIZE){
+						buffers.add(buffer);
+					}
+				}
+				return;
+			}
+		}
+	}
+	
+	private static int indexOf(long expectedLength){
+		if(expectedLength < 0){
+			return DEFAULT_INDEX;
+		}
+		for(int i = 0;i < SIZES.length;i++){
+			if(expectedLength <= SIZES[i]){
+				return i;
+			}
+		}
+		return SIZES.length - 1;
+	}
+	
+}
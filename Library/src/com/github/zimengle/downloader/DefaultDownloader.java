@@ -18,8 +18,6 @@ public class DefaultDownloader implements Downloader{
 	
 	private static final String TAG = "DefaultDownloader";
 	
-	private static final int BUFFER = 1024*1024;
-	
 	private File tempFile;
 	
 	private File diskFile;
@@ -31,12 +29,21 @@ public class DefaultDownloader implements Downloader{
 	private TempMetaFile tempMetaFile;
 	
 	public DefaultDownloader(HttpURLConnection conn,File diskFile) {
-		this.tempFile = new File(diskFile+".temp");
+		this.tempFile = getTempFile(diskFile);
 		this.diskFile = diskFile;
 		this.conn  = conn;
 		this.tempMetaFile = TempMetaFile.getInstance(new File(diskFile.getParent(),"mengleloader.meta"));
 	}
 	
+	/**
+	 * 下载过程中使用的临时文件,已下载的数据按顺序写入
+	 * @param diskFile 下载位置
+	 * @return
+	 */
+	public static File getTempFile(File diskFile) {
+		return new File(diskFile+".temp");
+	}
+	
 	public void setDownloadListener(DownloadListener downloadListener) {
 		this.downloadListener = downloadListener;
 	}
@@ -92,14 +99,16 @@ public class DefaultDownloader implements Downloader{
 		tempMetaFile.put(getURL(), newMeta);
 		long loaded = startPos,total = conn.getContentLength()+loaded;
 		int n = -1;
-		byte[] buffer = new byte[BUFFER];
+		//按剩余长度从缓冲区池中取,下载过程中不再分配;
+		//直接从数组写入文件,FileChannel写堆内的ByteBuffer时还要复制到临时的direct buffer
+		byte[] buffer = BufferPool.getInstance().acquire(conn.getContentLength());
 		InputStream input = null;
 		FileOutputStream output = null;
 		try{
 			input = conn.getInputStream();
 			output = new FileOutputStream(tempFile, append);
 			while ( (n=input.read(buffer)) != -1) {
-				output.write(buffer,0,n);
+				output.write(buffer, 0, n);
 				loaded += n;
 				fireTransfer(loaded, total, conn);
 			}
@@ -111,6 +120,8 @@ public class DefaultDownloader implements Downloader{
 		}catch(IOException e){
 			throw e;
 		}finally{
+			BufferPool.getInstance().release(buffer);
+			tempMetaFile.sync();
 			if(input != null){
 				input.close();
 			}
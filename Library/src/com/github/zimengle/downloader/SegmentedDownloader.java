@@ -0,0 +1,506 @@
+package com.github.zimengle.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.zimengle.downloader.TempMetaFile.Meta;
+import com.github.zimengle.imageloader.LogUtils;
+
+/**
+ * 分段下载器,用于较大的图片
+ * 按Content-Length把内容分成几段,每段一个连接并行下载,按位置写入预先分配长度的临时文件;
+ * 每段的下载位置记录在元数据中,断点续传时每段从自己的位置继续
+ * 内容较小或者服务器不支持Range时只用一个连接
+ */
+public class SegmentedDownloader implements Downloader {
+	
+	private static final String TAG = "SegmentedDownloader";
+	
+	/**
+	 * 默认的段数
+	 */
+	public static final int DEFAULT_SEGMENTS = 4;
+	
+	/**
+	 * 每段的最小字节数,内容较小时减少段数
+	 */
+	public static final int MIN_SEGMENT_SIZE = 512*1024;
+	
+	//每段下载该字节数后保存一次进度
+	private static final int SAVE_INTERVAL = 256*1024;
+	
+	//所有下载共用的分段线程数
+	private static final int MAX_THREADS = 4;
+	
+	//空闲的线程超时后退出,线程都在忙时拒绝,由调用者自己下载
+	private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(0, MAX_THREADS, 30, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				
+				private final AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread(Runnable runnable) {
+					return new Thread(runnable, "SegmentedDownloader-"+count.incrementAndGet());
+				}
+			});
+	
+	/**
+	 * 一段的范围和当前位置
+	 */
+	private static class Segment {
+		
+		//不包括
+		private final long end;
+		
+		private volatile long position;
+		
+		//已被某个线程开始下载
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		
+		public Segment(long position, long end) {
+			this.position = position;
+			this.end = end;
+		}
+		
+	}
+	
+	private File tempFile;
+	
+	private File diskFile;
+	
+	private HttpURLConnection conn;
+	
+	private int segmentCount;
+	
+	private DownloadListener downloadListener;
+	
+	private TempMetaFile tempMetaFile;
+	
+	//连接之前复制的请求头,用于打开其他段的连接
+	private Map<String, List<String>> requestProperties;
+	
+	//所有打开的连接,取消时断开
+	private List<HttpURLConnection> connections = new ArrayList<HttpURLConnection>();
+	
+	//停止所有段,取消或者任一段失败时设置
+	private volatile boolean cancel = false;
+	
+	//是否被外部取消,取消后断开连接引起的异常不再抛出
+	private volatile boolean canceled = false;
+	
+	private Meta meta;
+	
+	//取得总长度后创建,其他线程查询进度时读取
+	private volatile Segment[] segments;
+	
+	private long total;
+	
+	private AtomicLong loaded = new AtomicLong();
+	
+	public SegmentedDownloader(HttpURLConnection conn,File diskFile) {
+		this(conn, diskFile, DEFAULT_SEGMENTS);
+	}
+	
+	/**
+	 * 构造器
+	 * @param conn 未连接的连接,用于获取长度和下载第一段
+	 * @param diskFile 下载位置
+	 * @param segmentCount 最大段数
+	 */
+	public SegmentedDownloader(HttpURLConnection conn,File diskFile,int segmentCount) {
+		this.tempFile = getTempFile(diskFile);
+		this.diskFile = diskFile;
+		this.conn = conn;
+		this.segmentCount = Math.max(1, segmentCount);
+		this.tempMetaFile = TempMetaFile.getInstance(new File(diskFile.getParent(),"mengleloader.meta"));
+	}
+	
+	/**
+	 * 下载过程中使用的临时文件,预先分配了全部长度,各段按位置写入;
+	 * 和DefaultDownloader的临时文件区分,它不能续传这样的文件
+	 * @param diskFile 下载位置
+	 * @return
+	 */
+	public static File getTempFile(File diskFile) {
+		return new File(diskFile+".stemp");
+	}
+	
+	public void setDownloadListener(DownloadListener downloadListener) {
+		this.downloadListener = downloadListener;
+	}
+	
+	/**
+	 * 取消下载,断开所有连接;{@link #download()}保存进度后返回false
+	 */
+	public void cancel() {
+		canceled = true;
+		abort();
+		LogUtils.d(TAG, "cancel:"+getURL());
+	}
+	
+	/**
+	 * 停止所有段,断开所有连接
+	 */
+	private void abort() {
+		cancel = true;
+		synchronized (connections) {
+			for(HttpURLConnection connection : connections){
+				connection.disconnect();
+			}
+		}
+	}
+	
+	/**
+	 * 临时文件开头已连续写入的字节数,可以从中解码预览;之后的部分可能还是预分配的空洞
+	 * 前面的段下载完成后包括下一段已写入的部分,只用一个连接时就是已下载的字节数
+	 * @return 还没有取得总长度时返回0
+	 */
+	public long getContiguousLength() {
+		Segment[] segments = this.segments;
+		if(segments == null){
+			return 0;
+		}
+		long length = 0;
+		for(Segment segment : segments){
+			length = segment.position;
+			if(length < segment.end){
+				break;
+			}
+		}
+		return length;
+	}
+	
+	public boolean download() throws IOException {
+		//如果已经下载,则直接返回
+		if(diskFile.exists()){
+			return true;
+		}
+		if(!tempFile.getParentFile().exists()){
+			tempFile.getParentFile().mkdirs();
+		}
+		Meta oldMeta = tempFile.exists() ? tempMetaFile.get(getURL()) : null;
+		long[] oldPositions = oldMeta == null ? null : oldMeta.positions;
+		//第一个连接从第一段的位置开始,同时获取总长度
+		long probeStart = oldPositions == null ? 0 : oldPositions[0];
+		requestProperties = new HashMap<String, List<String>>(conn.getRequestProperties());
+		synchronized (connections) {
+			connections.add(conn);
+		}
+		conn.setRequestProperty("Range", new Range(probeStart).getRangeHeader());
+		fireStart(conn);
+		int status;
+		try{
+			conn.connect();
+			status = conn.getResponseCode();
+		}catch(IOException e){
+			//取消时断开连接引起的异常
+			if(canceled){
+				fireCancel(conn);
+				return false;
+			}
+			throw e;
+		}
+		if(canceled){
+			fireCancel(conn);
+			return false;
+		}
+		int count;
+		if(status == 206){
+			total = parseTotal(conn.getHeaderField("Content-Range"));
+			count = total <= 0 ? 1 : (int) Math.max(1, Math.min(segmentCount, total / MIN_SEGMENT_SIZE));
+		}else if(status == 200){
+			//不支持Range,从头开始用一个连接
+			total = conn.getContentLength();
+			count = 1;
+			probeStart = 0;
+		}else{
+			conn.disconnect();
+			return false;
+		}
+		meta = new Meta(conn.getHeaderField("ETag"), conn.getLastModified(), (int) total);
+		boolean resume = status == 206 && oldPositions != null && oldPositions.length == count
+				&& oldMeta.contentLength != null && oldMeta.contentLength.intValue() == total && meta.check(oldMeta);
+		//全部创建后再发布,查询进度的线程不会看到空的段
+		Segment[] created = new Segment[count];
+		for(int i = 0;i < count;i++){
+			long start = total <= 0 ? 0 : total * i / count;
+			long end = total <= 0 ? Long.MAX_VALUE : total * (i + 1) / count;
+			created[i] = new Segment(resume ? oldPositions[i] : start, end);
+			loaded.addAndGet(created[i].position - start);
+		}
+		segments = created;
+		LogUtils.d(TAG, "fetch start:"+getURL()+" total:"+total+" segments:"+count+(resume ? " resume" : ""));
+		RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+		try{
+			if(!resume){
+				file.setLength(0);
+			}
+			if(total > 0){
+				file.setLength(total);
+			}
+			saveProgress();
+			FileChannel channel = file.getChannel();
+			//第一个连接的起点和第一段的位置一致时直接使用
+			HttpURLConnection first = probeStart == segments[0].position ? conn : null;
+			if(first == null){
+				conn.disconnect();
+			}
+			fetchAll(first, channel);
+			if(canceled){
+				saveProgress();
+				fireCancel(conn);
+				return false;
+			}
+		}finally{
+			file.close();
+			//取消或失败时保存的进度立即落盘,下次可以续传
+			tempMetaFile.sync();
+		}
+		tempFile.renameTo(diskFile);
+		tempMetaFile.remove(getURL());
+		fireSuccess(conn);
+		LogUtils.d(TAG, "fetch complete:"+getURL());
+		return true;
+	}
+	
+	/**
+	 * 第一段在当前线程下载,其他段交给共用的线程池;线程都在忙时,当前线程下载完第一段后依次下载还没有开始的段
+	 * @param first 第一段可以直接使用的连接
+	 * @param channel
+	 * @throws IOException 任一段失败,其他段被取消,抛出最先发生的异常;被外部取消时不抛出
+	 */
+	private void fetchAll(HttpURLConnection first,final FileChannel channel) throws IOException {
+		//只记录最先发生的异常,之后其他段的异常是断开连接引起的
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final CountDownLatch finished = new CountDownLatch(segments.length);
+		for(int i = 1;i < segments.length;i++){
+			final int index = i;
+			try{
+				EXECUTOR.execute(new Runnable() {
+					
+					public void run() {
+						fetch(index, null, channel, error, finished);
+					}
+				});
+			}catch(RejectedExecutionException e){
+				//线程都在忙,由当前线程下载
+			}
+		}
+		fetch(0, first, channel, error, finished);
+		for(int i = 1;i < segments.length;i++){
+			fetch(i, null, channel, error, finished);
+		}
+		boolean interrupted = false;
+		while(true){
+			try {
+				finished.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+				cancel();
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+		//被取消的段的异常是断开连接引起的
+		if(canceled){
+			return;
+		}
+		Throwable cause = error.get();
+		if(cause != null){
+			saveProgress();
+			if(cause instanceof IOException){
+				throw (IOException) cause;
+			}
+			if(cause instanceof Error){
+				throw (Error) cause;
+			}
+			throw (RuntimeException) cause;
+		}
+	}
+	
+	/**
+	 * 下载一段,已被其他线程开始的段直接返回;第一个异常记录下来并取消其他段
+	 * @param index
+	 * @param connection
+	 * @param channel
+	 * @param error
+	 * @param finished
+	 */
+	private void fetch(int index,HttpURLConnection connection,FileChannel channel,AtomicReference<Throwable> error,CountDownLatch finished){
+		Segment segment = segments[index];
+		if(!segment.claimed.compareAndSet(false, true)){
+			return;
+		}
+		try{
+			if(!cancel){
+				fetch(segment, connection, channel);
+			}else if(connection != null){
+				connection.disconnect();
+			}
+		}catch(Throwable e){
+			error.compareAndSet(null, e);
+			abort();
+		}finally{
+			finished.countDown();
+		}
+	}
+	
+	private void fetch(Segment segment,HttpURLConnection connection,FileChannel channel) throws IOException {
+		if(segment.position >= segment.end){
+			if(connection != null){
+				connection.disconnect();
+			}
+			return;
+		}
+		if(connection == null){
+			connection = open(segment.position, segment.end == Long.MAX_VALUE ? null : segment.end - 1);
+		}
+		byte[] buffer = BufferPool.getInstance().acquire(segment.end - segment.position);
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+		InputStream input = null;
+		try{
+			input = connection.getInputStream();
+			long unsaved = 0;
+			int n;
+			while(!cancel && segment.position < segment.end
+					&& (n = input.read(buffer, 0, (int) Math.min(buffer.length, segment.end - segment.position))) != -1){
+				byteBuffer.clear();
+				byteBuffer.limit(n);
+				long position = segment.position;
+				while(byteBuffer.hasRemaining()){
+					position += channel.write(byteBuffer, position);
+				}
+				segment.position = position;
+				fireTransfer(loaded.addAndGet(n), total, connection);
+				unsaved += n;
+				if(unsaved >= SAVE_INTERVAL){
+					unsaved = 0;
+					channel.force(false);
+					saveProgress();
+				}
+			}
+			if(!cancel && segment.end != Long.MAX_VALUE && segment.position < segment.end){
+				throw new IOException("segment truncated:"+getURL());
+			}
+		}finally{
+			BufferPool.getInstance().release(buffer);
+			if(input != null){
+				input.close();
+			}
+			connection.disconnect();
+		}
+	}
+	
+	/**
+	 * 打开一段的连接
+	 * @param start
+	 * @param end 包括,为null时到结尾
+	 * @return
+	 * @throws IOException 服务器没有返回206
+	 */
+	private HttpURLConnection open(long start,Long end) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) conn.getURL().openConnection();
+		for(Map.Entry<String, List<String>> entry : requestProperties.entrySet()){
+			if(entry.getKey() == null || "Range".equalsIgnoreCase(entry.getKey())){
+				continue;
+			}
+			for(String value : entry.getValue()){
+				connection.addRequestProperty(entry.getKey(), value);
+			}
+		}
+		connection.setConnectTimeout(conn.getConnectTimeout());
+		connection.setReadTimeout(conn.getReadTimeout());
+		connection.setRequestProperty("Range", (end == null ? new Range(start) : new Range(start, end)).getRangeHeader());
+		synchronized (connections) {
+			if(cancel){
+				throw new IOException("canceled:"+getURL());
+			}
+			connections.add(connection);
+		}
+		int status = connection.getResponseCode();
+		if(status != 206){
+			connection.disconnect();
+			throw new IOException("unexpected status "+status+" for range:"+getURL());
+		}
+		return connection;
+	}
+	
+	/**
+	 * 记录每段的位置
+	 */
+	private synchronized void saveProgress(){
+		long[] positions = new long[segments.length];
+		for(int i = 0;i < segments.length;i++){
+			positions[i] = segments[i].position;
+		}
+		Meta progress = new Meta(meta.etag, meta.lastModify, meta.contentLength);
+		progress.positions = positions;
+		tempMetaFile.put(getURL(), progress);
+	}
+	
+	/**
+	 * 解析Content-Range中的总长度,例如"bytes 0-99/1000"
+	 * @param contentRange
+	 * @return 未知时返回-1
+	 */
+	private static long parseTotal(String contentRange){
+		if(contentRange == null){
+			return -1;
+		}
+		int slash = contentRange.lastIndexOf('/');
+		try {
+			return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public String getURL() {
+		return conn.getURL().toString();
+	}
+
+	private void fireStart(HttpURLConnection connection) {
+		if(downloadListener != null){
+			downloadListener.start(connection);
+		}
+	}
+
+	private void fireTransfer(long loaded,long total, HttpURLConnection connection) {
+		if(downloadListener != null){
+			downloadListener.transfer(loaded, total, connection);
+		}
+	}
+
+	private void fireSuccess(HttpURLConnection connection) {
+		if(downloadListener != null){
+			downloadListener.success(connection);
+		}
+	}
+
+	private void fireCancel(HttpURLConnection connection) {
+		if(downloadListener != null){
+			downloadListener.cancel(connection);
+		}
+	}
+
+}
@@ -1,24 +1,63 @@
 package com.github.zimengle.downloader;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
-import java.io.StreamCorruptedException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.github.zimengle.imageloader.LogUtils;
 
 /**
- * 下载文件的元数据记录,通过对象流方式保存到文件中,以便在断点下载过程中校验文件的完整性
+ * 下载文件的元数据记录,保存到文件中,以便在断点下载过程中校验文件的完整性
+ * 文件是只追加的二进制日志,每次修改追加一条带校验的记录,不重写整个文件;
+ * 启动时重放日志,尾部不完整或校验失败的记录被截掉;无效记录过多时重写;
+ * fsync在后台线程中按时间和记录数合并,不持有锁,下载结束时也会同步;崩溃时最多丢失最近一秒的记录,只影响断点续传
  * @author zhangzimeng<zhangzimeng01@baidu.com>
  *
  */
 public class TempMetaFile {
 	
+	private static final String TAG = "TempMetaFile";
+	
+	//日志文件头
+	private static final int MAGIC = 0x4d4c4d31;
+	
+	//旧版本对象流文件的开头
+	private static final int OBJECT_STREAM_MAGIC = 0xaced;
+	
+	private static final byte OP_PUT = 1;
+	
+	private static final byte OP_REMOVE = 2;
+	
+	//单条记录的最大长度,超过时认为文件已损坏
+	private static final int MAX_RECORD_SIZE = 64*1024;
+	
+	//记录数超过有效条目的该倍数并且超过最小记录数时重写
+	private static final int COMPACT_RATIO = 2;
+	
+	private static final int COMPACT_MIN_RECORDS = 64;
+	
+	//第一条未同步的记录写入后经过该时间同步,未同步的记录数达到上限时立即同步
+	private static final long SYNC_INTERVAL = 1000;
+	
+	private static final int SYNC_RECORDS = 32;
+	
 	/**
 	 * 元数据,包含etag,lastmodify,contentlength
 	 * @author zhangzimeng<zhangzimeng01@baidu.com>
@@ -28,6 +67,10 @@ public class TempMetaFile {
 		public String etag;
 		public Long lastModify ;
 		public Integer contentLength ;
+		/**
+		 * 分段下载时每段已写入的位置,一个连接下载时为null
+		 */
+		public long[] positions;
 		
 		public Meta() {
 			// TODO Auto-generated constructor stub
@@ -48,7 +91,7 @@ public class TempMetaFile {
 			if(etag != null && etag.equals(meta.etag)){
 				return true;
 			}
-			if(lastModify != null && meta.lastModify == lastModify && contentLength != null && meta.contentLength == contentLength){
+			if(lastModify != null && lastModify.equals(meta.lastModify) && contentLength != null && contentLength.equals(meta.contentLength)){
 				return true;
 			}
 			return false;
@@ -75,57 +118,339 @@ public class TempMetaFile {
 	
 	private File metaFile;
 	
-	private Map<String, Meta> map;
+	private Map<String, Meta> map = new HashMap<String, TempMetaFile.Meta>();
+	
+	//追加写入,需要时打开
+	private FileOutputStream output;
+	
+	//日志中的记录数
+	private int recordCount = 0;
+	
+	private int unsyncedCount = 0;
+	
+	//是否已安排同步
+	private boolean syncScheduled = false;
+	
+	//后台同步线程
+	private final ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "TempMetaFile-sync");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
-	private TempMetaFile(File metaFile) {
+	private final Runnable syncTask = new Runnable() {
+		
+		public void run() {
+			sync();
+		}
+	};
+	
+	//测试中直接创建,重新打开同一个文件
+	TempMetaFile(File metaFile) {
 		this.metaFile = metaFile;
 		init();
 	}
 	
-	@SuppressWarnings("unchecked")
 	private void init() {
 		File dir = metaFile.getParentFile();
 		if(!dir.exists()){
 			dir.mkdirs();
 		}
-		if(!metaFile.exists()){
-			try {
-				metaFile.createNewFile();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		if(metaFile.length() > 0 && !replay()){
+			//旧格式或文件头损坏,重写
+			compact();
+		}
+	}
+	
+	/**
+	 * 重放日志
+	 * @return 文件头是否正确
+	 */
+	private boolean replay(){
+		DataInputStream input = null;
+		long validLength = 4;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(metaFile)));
+			int magic;
+			try{
+				magic = input.readInt();
+			}catch(EOFException e){
+				return false;
 			}
+			if(magic != MAGIC){
+				if(magic >>> 16 == OBJECT_STREAM_MAGIC){
+					readObjectStream();
+				}
+				return false;
+			}
+			CRC32 crc = new CRC32();
+			while(true){
+				int length;
+				try{
+					length = input.readInt();
+				}catch(EOFException e){
+					break;
+				}
+				if(length <= 0 || length > MAX_RECORD_SIZE){
+					break;
+				}
+				byte[] record = new byte[length];
+				input.readFully(record);
+				crc.reset();
+				crc.update(record);
+				if(input.readInt() != (int) crc.getValue()){
+					break;
+				}
+				apply(record);
+				recordCount++;
+				validLength += 8 + length;
+			}
+		} catch (EOFException e) {
+			//最后一条记录不完整
+		} catch (IOException e) {
+			LogUtils.e(TAG, "replay error", e);
+		} finally {
+			if(input != null){
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		if(validLength < metaFile.length()){
+			LogUtils.w(TAG, "truncate "+metaFile+" at "+validLength);
+			truncate(validLength);
 		}
+		return true;
+	}
+	
+	/**
+	 * 读取旧版本用对象流保存的整个map
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObjectStream(){
 		ObjectInputStream input = null;
 		try {
-			 input = new ObjectInputStream(new FileInputStream(metaFile));
-			 map = (Map<String, Meta>) input.readObject();
-		} catch (StreamCorruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			input = new ObjectInputStream(new FileInputStream(metaFile));
+			map.putAll((Map<String, Meta>) input.readObject());
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LogUtils.e(TAG, "read old meta error", e);
 		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}finally{
+			LogUtils.e(TAG, "read old meta error", e);
+		} catch (ClassCastException e) {
+			LogUtils.e(TAG, "read old meta error", e);
+		} finally {
 			if(input != null){
 				try {
 					input.close();
 				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
 				}
 			}
 		}
-		if(map == null){
-			map = new HashMap<String, TempMetaFile.Meta>();
+	}
+	
+	private void truncate(long length){
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(metaFile, "rw");
+			file.setLength(length);
+		} catch (IOException e) {
+			LogUtils.e(TAG, "truncate error", e);
+		} finally {
+			if(file != null){
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	private void apply(byte[] record) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+		byte op = input.readByte();
+		String key = input.readUTF();
+		if(op == OP_PUT){
+			Meta meta = new Meta();
+			if(input.readBoolean()){
+				meta.etag = input.readUTF();
+			}
+			if(input.readBoolean()){
+				meta.lastModify = input.readLong();
+			}
+			if(input.readBoolean()){
+				meta.contentLength = input.readInt();
+			}
+			if(input.available() > 0 && input.readBoolean()){
+				meta.positions = new long[input.readInt()];
+				for(int i = 0;i < meta.positions.length;i++){
+					meta.positions[i] = input.readLong();
+				}
+			}
+			map.put(key, meta);
+		}else if(op == OP_REMOVE){
+			map.remove(key);
+		}
+	}
+	
+	private static byte[] encode(byte op,String key,Meta meta) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(op);
+		record.writeUTF(key);
+		if(meta != null){
+			record.writeBoolean(meta.etag != null);
+			if(meta.etag != null){
+				record.writeUTF(meta.etag);
+			}
+			record.writeBoolean(meta.lastModify != null);
+			if(meta.lastModify != null){
+				record.writeLong(meta.lastModify);
+			}
+			record.writeBoolean(meta.contentLength != null);
+			if(meta.contentLength != null){
+				record.writeInt(meta.contentLength);
+			}
+			record.writeBoolean(meta.positions != null);
+			if(meta.positions != null){
+				record.writeInt(meta.positions.length);
+				for(long position : meta.positions){
+					record.writeLong(position);
+				}
+			}
+		}
+		record.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * 记录加上长度和校验,一次写入
+	 * @param record
+	 * @return
+	 */
+	private static byte[] frame(byte[] record){
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 8);
+		DataOutputStream frame = new DataOutputStream(bytes);
+		try {
+			frame.writeInt(record.length);
+			frame.write(record);
+			frame.writeInt((int) crc.getValue());
+		} catch (IOException e) {
+			//写入内存不会失败
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * 追加一条记录,安排后台同步,无效记录过多时重写
+	 * @param op
+	 * @param key
+	 * @param meta
+	 */
+	private void append(byte op,String key,Meta meta){
+		try {
+			if(output == null){
+				boolean empty = metaFile.length() == 0;
+				output = new FileOutputStream(metaFile, true);
+				if(empty){
+					output.write(new byte[]{(byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC});
+				}
+			}
+			output.write(frame(encode(op, key, meta)));
+			recordCount++;
+			unsyncedCount++;
+			if(!syncScheduled){
+				syncScheduled = true;
+				syncExecutor.schedule(syncTask, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+			}else if(unsyncedCount == SYNC_RECORDS){
+				syncExecutor.execute(syncTask);
+			}
+		} catch (IOException e) {
+			LogUtils.e(TAG, "append error", e);
+		}
+		if(recordCount > COMPACT_MIN_RECORDS && recordCount > map.size() * COMPACT_RATIO){
+			compact();
+		}
+	}
+	
+	/**
+	 * 只保留当前条目重写日志,先写临时文件再替换
+	 */
+	private void compact(){
+		closeOutput();
+		File tmp = new File(metaFile.getPath() + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeInt(MAGIC);
+			for(Map.Entry<String, Meta> entry : map.entrySet()){
+				data.write(frame(encode(OP_PUT, entry.getKey(), entry.getValue())));
+			}
+			data.flush();
+			out.write(bytes.toByteArray());
+			out.getFD().sync();
+			out.close();
+			out = null;
+			if(!tmp.renameTo(metaFile)){
+				metaFile.delete();
+				tmp.renameTo(metaFile);
+			}
+			recordCount = map.size();
+			unsyncedCount = 0;
+		} catch (IOException e) {
+			LogUtils.e(TAG, "compact error", e);
+		} finally {
+			if(out != null){
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+				tmp.delete();
+			}
+		}
+	}
+	
+	/**
+	 * 关闭追加的文件,不用同步:重写时新文件已同步,删除时不再需要
+	 */
+	private void closeOutput(){
+		if(output != null){
+			try {
+				output.close();
+			} catch (IOException e) {
+			}
+			output = null;
+		}
+		unsyncedCount = 0;
+	}
+	
+	/**
+	 * 把已追加的记录同步到磁盘,只在取得文件时加锁,fsync期间其他线程可以继续读写
+	 * 后台定时调用,下载结束时也应调用,保证最后的进度不会丢失
+	 */
+	public void sync(){
+		FileOutputStream out;
+		synchronized (this) {
+			syncScheduled = false;
+			if(output == null || unsyncedCount == 0){
+				return;
+			}
+			out = output;
+			unsyncedCount = 0;
+		}
+		try {
+			out.getFD().sync();
+		} catch (IOException e) {
+			//同步期间被重写或删除时文件已关闭,重写的文件已经同步过
+			LogUtils.w(TAG, "sync error:"+e);
 		}
-		
 	}
 	
 	/**
@@ -135,7 +460,7 @@ public class TempMetaFile {
 	 */
 	public synchronized void put(String key,Meta meta){
 		map.put(key, meta);
-		save();
+		append(OP_PUT, key, meta);
 	}
 	
 	/**
@@ -150,9 +475,9 @@ public class TempMetaFile {
 	/**
 	 * 清空
 	 */
-	public void clear(){
+	public synchronized void clear(){
 		map.clear();
-		save();
+		compact();
 	}
 	
 	/**
@@ -160,51 +485,19 @@ public class TempMetaFile {
 	 * @param key
 	 */
 	public synchronized void remove(String key){
-		map.remove(key);
-		save();
+		if(map.remove(key) != null){
+			append(OP_REMOVE, key, null);
+		}
 	}
 	
 	/**
 	 * 删除元数据文件
 	 */
-	public void delete(){
+	public synchronized void delete(){
+		closeOutput();
+		map.clear();
+		recordCount = 0;
 		metaFile.delete();
 	}
 	
-	/**
-	 *  保存
-	 */
-	private void save(){
-		ObjectOutputStream out = null;
-		try {
-			 out = new ObjectOutputStream(new FileOutputStream(metaFile));
-			 out.writeObject(map);
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}finally{
-			if(out != null){
-				try {
-					out.close();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
-		}
-		
-	}
-	
-
-	
-	
-	
-	
-	
-	
-	
-	
 }
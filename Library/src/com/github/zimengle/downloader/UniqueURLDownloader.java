@@ -1,51 +1,321 @@
 package com.github.zimengle.downloader;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.net.HttpURLConnection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * 
- * 唯一URL下载,保证所有下载只有一个URL下载正在执行,同一URL采取排队策略
+ * 唯一URL下载,保证同一URL只有一个下载正在执行
+ * 同一URL的后续调用订阅正在执行的下载,等待它完成后使用下载好的文件,不再建立连接;下载失败时同样失败
+ * 每个调用者可以单独取消等待,所有调用者都取消后才取消实际的下载;
+ * 取消后的下载直到执行的线程退出才从map中移除,期间的新调用者等它退出后重新开始,不会同时有两个连接写同一个临时文件
  * @author zhangzimeng<zhangzimeng01@baidu.com>
  *
  */
 public class UniqueURLDownloader implements Downloader {
+	
+	/**
+	 * 一次正在执行的下载,转发下载进度给所有订阅者
+	 */
+	private static class Flight implements DownloadListener {
+		
+		private final Downloader downloader;
+		
+		private final List<DownloadListener> listeners = new CopyOnWriteArrayList<DownloadListener>();
+		
+		//未取消的调用者个数,包括执行下载的调用者
+		private int subscribers = 1;
+		
+		private boolean done = false;
+		
+		private boolean success = false;
+		
+		private IOException error;
+		
+		private boolean started = false;
+		
+		//开始时的连接,用于给后来的订阅者补发开始
+		private HttpURLConnection connection;
+		
+		public Flight(Downloader downloader) {
+			this.downloader = downloader;
+		}
+		
+		/**
+		 * 订阅
+		 * @return 下载已被取消时返回false
+		 */
+		public synchronized boolean subscribe(){
+			if(subscribers == 0){
+				return false;
+			}
+			subscribers++;
+			return true;
+		}
+		
+		/**
+		 * 取消订阅
+		 * @return 是否是最后一个
+		 */
+		public synchronized boolean unsubscribe(){
+			subscribers--;
+			notifyAll();
+			return subscribers == 0;
+		}
+		
+		public synchronized void complete(boolean success,IOException error){
+			this.done = true;
+			this.success = success;
+			this.error = error;
+			notifyAll();
+		}
+		
+		/**
+		 * 唤醒等待的线程,让它检查自己是否已取消
+		 */
+		public synchronized void wake(){
+			notifyAll();
+		}
+		
+		/**
+		 * 添加监听器,下载已经开始时补发开始
+		 * @param listener
+		 */
+		public void addListener(DownloadListener listener){
+			boolean replay;
+			HttpURLConnection startConnection;
+			synchronized (this) {
+				listeners.add(listener);
+				replay = started;
+				startConnection = connection;
+			}
+			if(replay){
+				listener.start(startConnection);
+			}
+		}
+		
+		public void start(HttpURLConnection connection) {
+			Iterator<DownloadListener> iterator;
+			//和addListener互斥,每个监听器只收到一次开始
+			synchronized (this) {
+				started = true;
+				this.connection = connection;
+				iterator = listeners.iterator();
+			}
+			while(iterator.hasNext()){
+				iterator.next().start(connection);
+			}
+		}
+
+		public void transfer(long loaded, long total, HttpURLConnection connection) {
+			for(DownloadListener listener : listeners){
+				listener.transfer(loaded, total, connection);
+			}
+		}
 
-	//一个url对应一个下载器队列
-	private static Map<String, Downloader> map = new HashMap<String, Downloader>();
+		public void success(HttpURLConnection connection) {
+			for(DownloadListener listener : listeners){
+				listener.success(connection);
+			}
+		}
+
+		public void cancel(HttpURLConnection connection) {
+			for(DownloadListener listener : listeners){
+				listener.cancel(connection);
+			}
+		}
+		
+	}
+
+	//正在执行的下载,key为url
+	private static ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
 
 	private Downloader downloader;
+	
+	private DownloadListener downloadListener;
+	
+	//当前参与的下载
+	private Flight flight;
+	
+	//正在等待退出的已取消的下载
+	private Flight draining;
+	
+	private volatile boolean cancel = false;
 
 	public UniqueURLDownloader(Downloader downloader) {
 		this.downloader = downloader;
 	}
 
-	public synchronized boolean download() throws IOException {
-		
-		synchronized (map) {
-			Downloader prevDownloader = map.get(getURL());
-			if(prevDownloader != null){
+	public boolean download() throws IOException {
+		String url = getURL();
+		while(!cancel){
+			Flight own = new Flight(downloader);
+			Flight current = flights.putIfAbsent(url, own);
+			if(current == null){
+				if(!join(own)){
+					flights.remove(url, own);
+					own.complete(false, null);
+					return false;
+				}
+				return execute(url, own);
+			}
+			if(current.subscribe()){
+				if(!join(current)){
+					leave(current);
+					return false;
+				}
+				return await(current);
+			}
+			//已被所有调用者取消,等执行的线程退出并从map中移除后重新开始
+			if(!drain(current)){
 				return false;
 			}
-			map.put(getURL(), downloader);
 		}
+		return false;
+	}
+	
+	/**
+	 * 等待已取消的下载退出
+	 * @param current
+	 * @return 当前调用者被取消时返回false
+	 */
+	private boolean drain(Flight current){
+		synchronized (this) {
+			if(cancel){
+				return false;
+			}
+			draining = current;
+		}
+		try{
+			synchronized (current) {
+				while(!current.done && !cancel){
+					try {
+						current.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+			}
+		}finally{
+			synchronized (this) {
+				draining = null;
+			}
+		}
+		return !cancel;
+	}
+	
+	/**
+	 * 执行下载,完成后通知订阅者
+	 * @param url
+	 * @param own
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean execute(String url,Flight own) throws IOException {
+		if(downloadListener != null){
+			own.addListener(downloadListener);
+		}
+		downloader.setDownloadListener(own);
 		boolean result = false;
+		IOException error = null;
 		try{
 			result = downloader.download();
+		}catch(IOException e){
+			error = e;
+			throw e;
 		}finally{
-			synchronized (map) {
-				map.remove(getURL());
+			flights.remove(url, own);
+			own.complete(result, error);
+		}
+		return result && !cancel;
+	}
+	
+	/**
+	 * 等待正在执行的下载完成
+	 * @param current
+	 * @return
+	 * @throws IOException 下载失败
+	 */
+	private boolean await(Flight current) throws IOException {
+		if(downloadListener != null){
+			current.addListener(downloadListener);
+		}
+		try{
+			synchronized (current) {
+				while(!current.done && !cancel){
+					try {
+						current.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				if(cancel){
+					return false;
+				}
+				if(current.error != null){
+					throw new IOException("shared download failed:"+getURL(), current.error);
+				}
+				if(!current.success){
+					return false;
+				}
+			}
+		}finally{
+			if(downloadListener != null){
+				current.listeners.remove(downloadListener);
 			}
 		}
-		
-		return result;
+		//同一路径时文件已存在直接返回,保存路径不同时自己下载
+		return downloader.download();
 	}
 
+	/**
+	 * 参与下载
+	 * @param current
+	 * @return 已被取消时返回false
+	 */
+	private synchronized boolean join(Flight current){
+		if(cancel){
+			return false;
+		}
+		flight = current;
+		return true;
+	}
+	
+	/**
+	 * 退出下载,最后一个退出时取消实际的下载,执行的线程退出时才从map中移除
+	 * @param current
+	 */
+	private void leave(Flight current){
+		if(current.unsubscribe()){
+			current.downloader.cancel();
+		}
+	}
+
+	/**
+	 * 取消当前调用者,最后一个调用者取消时取消实际的下载
+	 */
 	public void cancel() {
-		downloader.cancel();
+		Flight current,waiting;
+		synchronized (this) {
+			if(cancel){
+				return;
+			}
+			cancel = true;
+			current = flight;
+			waiting = draining;
+		}
+		if(current != null){
+			leave(current);
+		}
+		if(waiting != null){
+			waiting.wake();
+		}
 	}
 
 	public String getURL() {
@@ -54,7 +324,7 @@ public class UniqueURLDownloader implements Downloader {
 	}
 
 	public void setDownloadListener(DownloadListener downloadListener) {
-		downloader.setDownloadListener(downloadListener);
+		this.downloadListener = downloadListener;
 		
 	}
 
@@ -0,0 +1,58 @@
+package com.github.zimengle.imageloader;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+
+/**
+ * 按缩略图尺寸和透明度选择格式和质量
+ * 有透明像素的使用PNG;小缩略图在4.0以上使用WebP,否则使用JPEG;
+ * 质量按像素数分档,缩略图越小,压缩失真越不明显,质量可以越低
+ * 参数可以用Benchmark工程中的EncodeBenchmark在目标设备上测量后调整
+ */
+public class AdaptiveEncodePolicy implements EncodePolicy {
+
+	/**
+	 * 不大于该像素数时使用WebP
+	 */
+	public int webpMaxArea = 200 * 200;
+
+	/**
+	 * 质量分档的像素数上限,从小到大,和{@link #qualities}对应
+	 */
+	public int[] areas = { 96 * 96, 200 * 200, 400 * 400 };
+
+	/**
+	 * 每档的质量
+	 */
+	public int[] qualities = { 70, 78, 85 };
+
+	/**
+	 * 超过所有分档时的质量
+	 */
+	public int quality = 90;
+
+	public CompressFormat getFormat(Bitmap bitmap) {
+		if (bitmap.getConfig() != Config.RGB_565 && bitmap.hasAlpha()) {
+			return CompressFormat.PNG;
+		}
+		if (Util.hasIceCreamSandwich() && bitmap.getWidth() * bitmap.getHeight() <= webpMaxArea) {
+			return CompressFormat.WEBP;
+		}
+		return CompressFormat.JPEG;
+	}
+
+	public int getQuality(Bitmap bitmap, CompressFormat format) {
+		if (format == CompressFormat.PNG) {
+			return 100;
+		}
+		int area = bitmap.getWidth() * bitmap.getHeight();
+		for (int i = 0; i < areas.length && i < qualities.length; i++) {
+			if (area <= areas[i]) {
+				return qualities[i];
+			}
+		}
+		return quality;
+	}
+
+}
@@ -0,0 +1,212 @@
+package com.github.zimengle.imageloader;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory.Options;
+
+/**
+ * Bitmap复用池,按照宽高和格式分组,解码时通过{@link Options#inBitmap}复用像素内存,减少GC
+ * 需要API 11以上,API 19以下要求尺寸完全一致并且inSampleSize为1
+ */
+public class BitmapPool {
+
+	/**
+	 * 复用池的key,宽高和格式
+	 */
+	private static class Key {
+
+		private int width;
+
+		private int height;
+
+		private Config config;
+
+		public Key(int width, int height, Config config) {
+			this.width = width;
+			this.height = height;
+			this.config = config;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key another = (Key) o;
+			return width == another.width && height == another.height && config == another.config;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = width * 31 + height;
+			return result * 31 + (config == null ? 0 : config.hashCode());
+		}
+
+	}
+
+	private Map<Key, LinkedList<Bitmap>> groups = new HashMap<Key, LinkedList<Bitmap>>();
+
+	//放入的先后顺序,超出容量时先回收最早放入的
+	private LinkedList<Bitmap> order = new LinkedList<Bitmap>();
+
+	private int maxSize;
+
+	private int size = 0;
+
+	/**
+	 * 构造器
+	 * @param maxSize 最大字节数
+	 */
+	public BitmapPool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * 是否支持复用
+	 * @return
+	 */
+	public static boolean isSupported() {
+		return Util.hasHoneycomb();
+	}
+
+	/**
+	 * 放入复用池,不再被使用的bitmap才能放入
+	 * @param bitmap
+	 */
+	public void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		if (!isSupported() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+			bitmap.recycle();
+			return;
+		}
+		int bitmapSize = Util.getBitmapSize(bitmap);
+		if (bitmapSize > maxSize) {
+			bitmap.recycle();
+			return;
+		}
+		synchronized (this) {
+			Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+			LinkedList<Bitmap> group = groups.get(key);
+			if (group == null) {
+				group = new LinkedList<Bitmap>();
+				groups.put(key, group);
+			}
+			if (group.contains(bitmap)) {
+				return;
+			}
+			group.addLast(bitmap);
+			order.addLast(bitmap);
+			size += bitmapSize;
+			trimToSize(maxSize);
+		}
+	}
+
+	/**
+	 * 取出尺寸和格式完全一致的bitmap
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return 没有时返回null
+	 */
+	public synchronized Bitmap get(int width, int height, Config config) {
+		LinkedList<Bitmap> group = groups.get(new Key(width, height, config));
+		if (group == null || group.isEmpty()) {
+			return null;
+		}
+		Bitmap bitmap = group.removeLast();
+		order.remove(bitmap);
+		size -= Util.getBitmapSize(bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * 为解码设置复用的bitmap,解码结果同时设为可变,以便以后放回复用池
+	 * @param options
+	 * @param width 解码后的宽
+	 * @param height 解码后的高
+	 */
+	@TargetApi(11)
+	public void prepare(Options options, int width, int height) {
+		if (!isSupported()) {
+			return;
+		}
+		options.inMutable = true;
+		if (options.inSampleSize <= 1) {
+			Config config = options.inPreferredConfig == null ? Config.ARGB_8888 : options.inPreferredConfig;
+			options.inBitmap = get(width, height, config);
+		}
+	}
+
+	/**
+	 * 复用失败时放回复用的bitmap,并清除解码选项
+	 * @param options
+	 */
+	@TargetApi(11)
+	public void reject(Options options) {
+		if (!isSupported()) {
+			return;
+		}
+		Bitmap bitmap = options.inBitmap;
+		options.inBitmap = null;
+		if (bitmap != null) {
+			put(bitmap);
+		}
+	}
+
+	/**
+	 * 解码结束后清除解码选项中的复用bitmap
+	 * @param options
+	 */
+	@TargetApi(11)
+	public static void clear(Options options) {
+		if (isSupported()) {
+			options.inBitmap = null;
+		}
+	}
+
+	/**
+	 * 回收复用池中的bitmap,直到不超过指定大小
+	 * @param maxSize
+	 */
+	public synchronized void trimToSize(int maxSize) {
+		while (size > maxSize && !order.isEmpty()) {
+			Bitmap bitmap = order.removeFirst();
+			LinkedList<Bitmap> group = groups.get(new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+			if (group != null) {
+				group.remove(bitmap);
+			}
+			size -= Util.getBitmapSize(bitmap);
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * 清空复用池
+	 */
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * 复用池当前的字节数
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public int maxSize() {
+		return maxSize;
+	}
+
+}
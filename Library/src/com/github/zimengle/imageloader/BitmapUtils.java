@@ -1,6 +1,7 @@
 package com.github.zimengle.imageloader;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.content.ContentResolver;
 import android.content.Context;
@@ -11,7 +12,6 @@ import android.graphics.BitmapFactory.Options;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Rect;
 import android.graphics.Bitmap.Config;
 import android.media.ExifInterface;
 import android.provider.MediaStore.Images.Media;
@@ -22,6 +22,15 @@ public class BitmapUtils {
 
 	private static final int UNCONSTRAINED = -1;
 
+	//未压缩像素数据的头:魔数,宽,高,格式,每行字节数
+	private static final int RAW_MAGIC = 0x494d4752;
+
+	private static final int RAW_HEADER_SIZE = 20;
+
+	private static final int RAW_RGB_565 = 0;
+
+	private static final int RAW_ARGB_8888 = 1;
+
 	private static int computeInitialSampleSize(BitmapFactory.Options options,
 			int minSideLength, int maxNumOfPixels) {
 		double w = options.outWidth;
@@ -166,8 +175,28 @@ public class BitmapUtils {
 	 */
 	public static Bitmap getThumbnail(Context context, String imagePath,
 			int destWidth, int destHeight, Options opts) {
+		return getThumbnail(context, imagePath, destWidth, destHeight, opts, null);
+	}
+
+	/**
+	 * 获取缩略图,裁剪/旋转/缩放一次绘制完成,不产生中间bitmap;
+	 * 按原尺寸解码的原图用完后放入复用池,同样尺寸的图片解码时复用;
+	 * 缩小解码的原图尺寸取决于每张图片,很少能被复用,直接回收,避免挤掉缩略图尺寸的bitmap;
+	 * 结果优先从复用池中获取
+	 * @param context
+	 * @param imagePath
+	 * @param destWidth
+	 * @param destHeight
+	 * @param opts
+	 * @param pool 复用池,为null时不复用
+	 * @return
+	 */
+	public static Bitmap getThumbnail(Context context, String imagePath,
+			int destWidth, int destHeight, Options opts, BitmapPool pool) {
 
 		try {
+			//自己解码出来的原图才可以放入复用池
+			boolean reusable = false;
 			Bitmap source = createThumbnailFromEXIF(imagePath, destWidth,
 					UNCONSTRAINED);
 			if (source == null) {
@@ -189,18 +218,29 @@ public class BitmapUtils {
 				opts.inSampleSize = scale;
 				opts.inScaled = true;
 				opts.inJustDecodeBounds = false;
-				opts.inPurgeable = true;
+				//复用的bitmap由复用池管理,不能是purgeable的
+				opts.inPurgeable = pool == null;
 				opts.inInputShareable = true;
+				if (pool != null) {
+					pool.prepare(opts, width, height);
+				}
 				if (!opts.mCancel) {
-					source = BitmapFactory.decodeFile(imagePath, opts);
+					source = decodeFile(imagePath, opts, pool);
+					//和prepare一致,只有inSampleSize为1时才能复用
+					reusable = pool != null && scale == 1;
+				}
+				if (pool != null) {
+					//解码失败时复用的bitmap还没有被占用
+					if (source == null) {
+						pool.reject(opts);
+					} else {
+						BitmapPool.clear(opts);
+					}
 				}
 			}
 
 			if (source != null) {
-				Matrix m = new Matrix();
 				int orientation = getOrientation(context, imagePath);
-				if (orientation != -1)
-					m.postRotate(orientation);
 				int size = Math.min(source.getWidth(), source.getHeight());
 				int x = 0, y = 0;
 				if (size < source.getWidth()) {
@@ -209,28 +249,135 @@ public class BitmapUtils {
 				if (size < source.getHeight()) {
 					y = (source.getHeight() - size) / 2;
 				}
-				Bitmap tmp = Bitmap.createBitmap(source, x, y, size, size, m,
-						true);
-				if (tmp != source) {
-					source.recycle();
+				//以裁剪区域中心为原点旋转缩放,再移到目标中心
+				Matrix m = new Matrix();
+				m.setTranslate(-(x + size / 2f), -(y + size / 2f));
+				if (orientation != -1)
+					m.postRotate(orientation);
+				m.postScale(destWidth / (float) size, destHeight / (float) size);
+				m.postTranslate(destWidth / 2f, destHeight / 2f);
+				Bitmap bitmap = pool == null ? null : pool.get(destWidth,
+						destHeight, Config.RGB_565);
+				if (bitmap == null) {
+					bitmap = Bitmap.createBitmap(destWidth, destHeight,
+							Config.RGB_565);
 				}
-				Bitmap bitmap = Bitmap.createBitmap(destWidth, destHeight,
-						Config.RGB_565);
 				Canvas canvas = new Canvas(bitmap);
-				Rect src = new Rect(0, 0, tmp.getWidth(), tmp.getHeight());
-				Rect dst = new Rect(0, 0, destWidth, destHeight);
-				Paint paint = new Paint();
-				canvas.drawBitmap(tmp, src, dst, paint);
-				tmp.recycle();
+				canvas.drawBitmap(source, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+				if (reusable) {
+					pool.put(source);
+				} else {
+					source.recycle();
+				}
 				return bitmap;
 			} else {
 				return null;
 			}
 		} catch (OutOfMemoryError e) {
-			// TODO: handle exception
-			e.printStackTrace();
+			//交给调用者处理,调用者可以释放缓存后重试
+			LogUtils.e("BitmapUtils", "thumbnail oom " + imagePath, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * 解码文件,复用bitmap失败时放回复用池并重新解码
+	 * @param path
+	 * @param opts
+	 * @param pool 复用池,可以为null
+	 * @return
+	 */
+	public static Bitmap decodeFile(String path, Options opts, BitmapPool pool) {
+		try {
+			return BitmapFactory.decodeFile(path, opts);
+		} catch (IllegalArgumentException e) {
+			if (pool == null) {
+				throw e;
+			}
+			pool.reject(opts);
+			return BitmapFactory.decodeFile(path, opts);
+		}
+	}
+
+	/**
+	 * 复制解码选项,共享的选项在解码时会被修改,不能多个线程同时使用
+	 * @param opts
+	 * @return
+	 */
+	public static Options copyOptions(Options opts) {
+		Options copy = new Options();
+		if (opts != null) {
+			copy.inPreferredConfig = opts.inPreferredConfig;
+			copy.inSampleSize = opts.inSampleSize;
+			copy.inDither = opts.inDither;
+			copy.inScaled = opts.inScaled;
+			copy.inPurgeable = opts.inPurgeable;
+			copy.inInputShareable = opts.inInputShareable;
+		}
+		return copy;
+	}
+
+	/**
+	 * 把像素原样保存为字节数组,读取时直接复制,不用解码
+	 * 像素数据的长度是每行字节数乘以高度,与{@link Bitmap#copyPixelsToBuffer(java.nio.Buffer)}写入的一致
+	 * @param bitmap
+	 * @return 不是RGB_565或ARGB_8888时返回null
+	 */
+	public static byte[] encodeRaw(Bitmap bitmap) {
+		Config config = bitmap.getConfig();
+		if (config != Config.RGB_565 && config != Config.ARGB_8888) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_SIZE + bitmap.getRowBytes() * bitmap.getHeight());
+		buffer.putInt(RAW_MAGIC);
+		buffer.putInt(bitmap.getWidth());
+		buffer.putInt(bitmap.getHeight());
+		buffer.putInt(config == Config.RGB_565 ? RAW_RGB_565 : RAW_ARGB_8888);
+		buffer.putInt(bitmap.getRowBytes());
+		bitmap.copyPixelsToBuffer(buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * 是否是{@link #encodeRaw(Bitmap)}保存的数据,不改变buffer的位置
+	 * @param data
+	 * @return
+	 */
+	public static boolean isRaw(ByteBuffer data) {
+		return data.remaining() >= RAW_HEADER_SIZE && data.getInt(data.position()) == RAW_MAGIC;
+	}
 
+	/**
+	 * 从未压缩的像素数据创建bitmap,优先使用复用池中尺寸和格式相同的bitmap
+	 * 数据可以是映射的文件,像素直接从buffer复制到bitmap,不经过Java堆;不改变buffer的位置
+	 * @param data
+	 * @param pool 复用池,可以为null
+	 * @return 数据不完整或每行字节数与本机的bitmap不一致时返回null
+	 */
+	public static Bitmap decodeRaw(ByteBuffer data, BitmapPool pool) {
+		if (!isRaw(data)) {
+			return null;
+		}
+		ByteBuffer buffer = data.duplicate();
+		buffer.position(buffer.position() + 4);
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		Config config = buffer.getInt() == RAW_RGB_565 ? Config.RGB_565 : Config.ARGB_8888;
+		int rowBytes = buffer.getInt();
+		if (width <= 0 || height <= 0 || rowBytes <= 0 || buffer.remaining() != (long) rowBytes * height) {
+			return null;
+		}
+		Bitmap bitmap = pool == null ? null : pool.get(width, height, config);
+		if (bitmap == null) {
+			bitmap = Bitmap.createBitmap(width, height, config);
+		}
+		if (bitmap.getRowBytes() != rowBytes) {
+			if (pool != null) {
+				pool.put(bitmap);
+			}
 			return null;
 		}
+		bitmap.copyPixelsFromBuffer(buffer);
+		return bitmap;
 	}
 }
@@ -0,0 +1,740 @@
+package com.github.zimengle.imageloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分段加锁的并发Lru缓存,用法同{@link android.support.v4.util.LruCache}
+ * 读取不加锁,只标记条目被访问过;写入只锁key所在的分段;
+ * 每个分段按入队先后维护队列,超出容量时从各分段的队首中选出最早入队的条目,
+ * 入队后被访问过的移到队尾再保留一轮(CLOCK),是近似的Lru,每次淘汰的开销和条目数无关
+ * <p>
+ * 指定{@link FrequencySketch}时使用W-TinyLFU准入策略:新条目先进入窗口,窗口至少保留几个条目,
+ * 移出窗口时和主区最久未访问的条目比较每单位大小的访问频率,高的留下,快速滑动时只访问一次的条目不会挤掉常用的条目;
+ * 窗口按大小计算,初始为容量的1%,之后按命中的字节比例爬山调整:往回滑动多时变大,保留最近的条目,否则变小;
+ * 每次{@link #get(Object)}记为一次访问,同一次访问中的再次检查使用{@link #peek(Object)}
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentLruCache<K, V> {
+
+	//分段数,必须是2的幂
+	private static final int SEGMENT_COUNT = 16;
+
+	//准入窗口至少保留的条目数,大约一屏的缩略图,往回滑动时刚看过的还在窗口中
+	private static final int MIN_WINDOW_ENTRIES = 8;
+
+	//窗口最多占容量的百分比
+	private static final int MAX_WINDOW_PERCENT = 80;
+
+	//每访问容量的多少倍字节调整一次窗口
+	private static final int SAMPLE_FACTOR = 10;
+
+	//一次淘汰最多把被访问过的条目移到队尾的次数,超过后淘汰队首的条目,避免持续读取时无法淘汰
+	private static final int MAX_ROTATIONS = 256;
+
+	/**
+	 * 缓存条目
+	 */
+	private static class Node<K, V> {
+
+		private final K key;
+
+		private final V value;
+
+		private final int size;
+
+		//入队的逻辑时间,用于比较各分段队首的先后,修改需要持有分段的锁
+		private volatile long queued;
+
+		//入队后是否被访问过,读取时不加锁设置
+		private volatile boolean referenced;
+
+		//是否在准入窗口中,修改需要持有分段的锁
+		private volatile boolean window;
+
+		//队列中的前后条目,需要持有分段的锁
+		private Node<K, V> prev;
+
+		private Node<K, V> next;
+
+		public Node(K key, V value, int size, boolean window) {
+			this.key = key;
+			this.value = value;
+			this.size = size;
+			this.window = window;
+		}
+
+	}
+
+	/**
+	 * 按入队先后排列的双向链表,修改需要持有分段的锁
+	 */
+	private static class AccessQueue<K, V> {
+
+		private Node<K, V> head;
+
+		private Node<K, V> tail;
+
+		//所有队列的队首入队时间连续存放,淘汰时不加锁比较,不用逐个访问各分段的条目
+		private final AtomicLongArray heads;
+
+		private final int slot;
+
+		public AccessQueue(AtomicLongArray heads, int slot) {
+			this.heads = heads;
+			this.slot = slot;
+		}
+
+		private void add(Node<K, V> node) {
+			node.prev = tail;
+			node.next = null;
+			if (tail == null) {
+				head = node;
+				//持有锁时写入,读取者加锁后会再检查,不需要立即可见
+				heads.lazySet(slot, node.queued);
+			} else {
+				tail.next = node;
+			}
+			tail = node;
+		}
+
+		private void remove(Node<K, V> node) {
+			if (node.prev == null) {
+				head = node.next;
+				heads.lazySet(slot, head == null ? Long.MAX_VALUE : head.queued);
+			} else {
+				node.prev.next = node.next;
+			}
+			if (node.next == null) {
+				tail = node.prev;
+			} else {
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+		}
+
+	}
+
+	/**
+	 * 快照时条目的顺序,排序期间不再变化
+	 */
+	private static class Candidate<K, V> {
+
+		private final Node<K, V> node;
+
+		private final long queued;
+
+		private final boolean referenced;
+
+		public Candidate(Node<K, V> node) {
+			this.node = node;
+			this.queued = node.queued;
+			this.referenced = node.referenced;
+		}
+
+	}
+
+	/**
+	 * 分段,读取直接访问map,修改map和队列需要持有lock
+	 */
+	private static class Segment<K, V> {
+
+		private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		//主区的队列,不使用准入策略时所有条目都在主区
+		private final AccessQueue<K, V> main;
+
+		//准入窗口的队列
+		private final AccessQueue<K, V> window;
+
+		public Segment(AtomicLongArray heads, int index) {
+			main = new AccessQueue<K, V>(heads, slotOf(index, false));
+			window = new AccessQueue<K, V>(heads, slotOf(index, true));
+		}
+
+		private AccessQueue<K, V> queueOf(boolean window) {
+			return window ? this.window : main;
+		}
+
+	}
+
+	private final Segment<K, V>[] segments;
+
+	//各分段队首的入队时间,队列为空时为Long.MAX_VALUE,位置见{@link #slotOf(int, boolean)}
+	private final AtomicLongArray heads = new AtomicLongArray(SEGMENT_COUNT * 2);
+
+	//逻辑时钟,每次入队加一
+	private final AtomicLong clock = new AtomicLong();
+
+	private final AtomicLong size = new AtomicLong();
+
+	//准入窗口中的条目数
+	private final AtomicInteger windowCount = new AtomicInteger();
+
+	//准入窗口中条目的大小
+	private final AtomicLong windowSize = new AtomicLong();
+
+	//准入窗口的容量,单位同maxSize,采样结束时调整
+	private volatile long windowMaxSize;
+
+	//本轮采样中命中和未命中条目的大小
+	private final AtomicLong sampleHitSize = new AtomicLong();
+
+	private final AtomicLong sampleMissSize = new AtomicLong();
+
+	//调整窗口的状态,需要持有climbLock
+	private final Object climbLock = new Object();
+
+	//上一轮采样的命中比例,还没有时为-1
+	private double previousHitRate = -1;
+
+	//每次调整的大小,逐渐减小,最后在最优附近小幅摆动
+	private long climbStep;
+
+	private boolean growWindow = true;
+
+	//访问频率,为null时是普通的Lru
+	private final FrequencySketch sketch;
+
+	private volatile int maxSize;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * 构造器
+	 * @param maxSize 最大容量,单位由{@link #sizeOf(Object, Object)}决定
+	 */
+	public ConcurrentLruCache(int maxSize) {
+		this(maxSize, null);
+	}
+
+	/**
+	 * 构造器
+	 * @param maxSize 最大容量,单位由{@link #sizeOf(Object, Object)}决定
+	 * @param sketch 访问频率,不为null时使用W-TinyLFU准入策略
+	 */
+	public ConcurrentLruCache(int maxSize, FrequencySketch sketch) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+		this.sketch = sketch;
+		resetWindow(maxSize);
+		for (int i = 0; i < heads.length(); i++) {
+			heads.set(i, Long.MAX_VALUE);
+		}
+		segments = newSegments(SEGMENT_COUNT);
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment<K, V>(heads, i);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Segment<K, V>[] newSegments(int count) {
+		//不能创建泛型数组,通配符数组转换后元素类型由构造器保证
+		return (Segment<K, V>[]) new Segment<?, ?>[count];
+	}
+
+	/**
+	 * 分段的队首在{@link #heads}中的位置
+	 * @param index 分段序号
+	 * @param window 窗口还是主区
+	 * @return
+	 */
+	private static int slotOf(int index, boolean window) {
+		return window ? SEGMENT_COUNT + index : index;
+	}
+
+	private Segment<K, V> segmentFor(Object key) {
+		int h = key.hashCode();
+		//打散hash,避免低位相同的key落在同一分段
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[h & (SEGMENT_COUNT - 1)];
+	}
+
+	/**
+	 * 获取缓存,不加锁
+	 * @param key
+	 * @return
+	 */
+	public final V get(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		Node<K, V> node = segmentFor(key).map.get(key);
+		if (sketch != null) {
+			sketch.increment(key.hashCode());
+		}
+		if (node == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		//已经标记过时不再写,减少多个读取线程之间的缓存行争用
+		if (!node.referenced) {
+			node.referenced = true;
+		}
+		hitCount.incrementAndGet();
+		if (sketch != null) {
+			sample(node.size, true);
+		}
+		return node.value;
+	}
+
+	/**
+	 * 获取缓存,不加锁,不记录访问和命中率
+	 * 用于同一次访问中{@link #get(Object)}之后的再次检查,避免一次访问被计数多次影响准入
+	 * @param key
+	 * @return
+	 */
+	public final V peek(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		Node<K, V> node = segmentFor(key).map.get(key);
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * 放入缓存,替换已有的值
+	 * @param key
+	 * @param value
+	 * @return 之前的值
+	 */
+	public final V put(K key, V value) {
+		return put(key, value, false);
+	}
+
+	/**
+	 * 不存在时才放入缓存,检查和放入是原子的
+	 * @param key
+	 * @param value
+	 * @return 已有的值,放入成功时返回null
+	 */
+	public final V putIfAbsent(K key, V value) {
+		return put(key, value, true);
+	}
+
+	private V put(K key, V value, boolean onlyIfAbsent) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+		Segment<K, V> segment = segmentFor(key);
+		Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value), sketch != null);
+		Node<K, V> previous;
+		segment.lock.lock();
+		try {
+			node.queued = clock.incrementAndGet();
+			//查找和放入合并为一次map操作
+			previous = onlyIfAbsent ? segment.map.putIfAbsent(key, node) : segment.map.put(key, node);
+			if (previous != null && onlyIfAbsent) {
+				previous.referenced = true;
+				return previous.value;
+			}
+			if (previous != null) {
+				segment.queueOf(previous.window).remove(previous);
+				if (previous.window) {
+					windowCount.decrementAndGet();
+					windowSize.addAndGet(-previous.size);
+				}
+			}
+			segment.queueOf(node.window).add(node);
+			size.addAndGet(node.size - (previous == null ? 0 : previous.size));
+			if (node.window) {
+				windowCount.incrementAndGet();
+				windowSize.addAndGet(node.size);
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+		if (previous == null && sketch != null) {
+			//未命中后放入,按放入的大小计入采样
+			sample(node.size, false);
+		}
+		if (previous != null) {
+			entryRemoved(false, key, previous.value, value);
+		}
+		trimToSize(maxSize);
+		return previous == null ? null : previous.value;
+	}
+
+	/**
+	 * 删除缓存
+	 * @param key
+	 * @return 删除的值
+	 */
+	public final V remove(K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+		Segment<K, V> segment = segmentFor(key);
+		Node<K, V> previous;
+		segment.lock.lock();
+		try {
+			previous = segment.map.remove(key);
+			if (previous != null) {
+				segment.queueOf(previous.window).remove(previous);
+				size.addAndGet(-previous.size);
+				if (previous.window) {
+					windowCount.decrementAndGet();
+					windowSize.addAndGet(-previous.size);
+				}
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+		if (previous == null) {
+			return null;
+		}
+		entryRemoved(false, key, previous.value, null);
+		return previous.value;
+	}
+
+	/**
+	 * 淘汰条目,直到不超过指定容量
+	 * @param maxSize
+	 */
+	public void trimToSize(int maxSize) {
+		while (size.get() > maxSize || (sketch != null && windowFull())) {
+			boolean changed = sketch == null ? evictLru() : evictTinyLfu(maxSize);
+			//队列都已为空
+			if (!changed) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * 淘汰最久未访问的条目
+	 * @return 队列为空时返回false
+	 */
+	private boolean evictLru() {
+		Node<K, V> victim = eldest(false, true);
+		if (victim == null) {
+			return false;
+		}
+		entryRemoved(true, victim.key, victim.value, null);
+		return true;
+	}
+
+	/**
+	 * 窗口超出容量时,最久未访问的条目移入主区;
+	 * 同时总容量也超出时,和主区最久未访问的条目比较频率,淘汰频率低的
+	 * @param maxSize
+	 * @return 队列为空时返回false
+	 */
+	private boolean evictTinyLfu(int maxSize) {
+		if (windowFull()) {
+			Node<K, V> candidate = eldest(true, false);
+			if (candidate == null) {
+				return false;
+			}
+			if (size.get() > maxSize) {
+				Node<K, V> victim = eldest(false, false);
+				if (victim != null && !admissible(candidate, victim)) {
+					evict(candidate);
+					return true;
+				}
+				if (victim != null) {
+					evict(victim);
+				}
+			}
+			admit(candidate);
+			return true;
+		}
+		Node<K, V> victim = eldest(false, true);
+		if (victim == null) {
+			victim = eldest(true, true);
+		}
+		if (victim == null) {
+			return false;
+		}
+		entryRemoved(true, victim.key, victim.value, null);
+		return true;
+	}
+
+	/**
+	 * 找出各分段队首中最早入队的条目,入队后被访问过的清除标记移到队尾
+	 * @param window 从窗口还是主区中查找
+	 * @param remove 是否在找到时直接移除,和查找在同一次加锁中,调用者负责回调{@link #entryRemoved(boolean, Object, Object, Object)}
+	 * @return 队列都为空时返回null
+	 */
+	private Node<K, V> eldest(boolean window, boolean remove) {
+		int rotations = 0;
+		while (true) {
+			Segment<K, V> eldest = null;
+			long queued = Long.MAX_VALUE;
+			//其他分段中最早的队首,最早的分段中比它早的条目可以在一次加锁中连续处理,不用每次重新比较所有分段
+			long next = Long.MAX_VALUE;
+			for (int i = 0; i < SEGMENT_COUNT; i++) {
+				long headQueued = heads.get(slotOf(i, window));
+				if (headQueued < queued) {
+					next = queued;
+					eldest = segments[i];
+					queued = headQueued;
+				} else if (headQueued < next) {
+					next = headQueued;
+				}
+			}
+			if (eldest == null) {
+				return null;
+			}
+			eldest.lock.lock();
+			try {
+				AccessQueue<K, V> queue = eldest.queueOf(window);
+				Node<K, V> head;
+				while ((head = queue.head) != null && head.queued <= next) {
+					if (!head.referenced || rotations++ >= MAX_ROTATIONS) {
+						if (remove) {
+							unlink(eldest, head);
+						}
+						return head;
+					}
+					head.referenced = false;
+					queue.remove(head);
+					head.queued = clock.incrementAndGet();
+					queue.add(head);
+				}
+			} finally {
+				eldest.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 淘汰条目,期间被替换或删除的不淘汰
+	 * @param node
+	 * @return 是否淘汰
+	 */
+	private boolean evict(Node<K, V> node) {
+		Segment<K, V> segment = segmentFor(node.key);
+		segment.lock.lock();
+		try {
+			if (segment.map.get(node.key) != node) {
+				return false;
+			}
+			unlink(segment, node);
+		} finally {
+			segment.lock.unlock();
+		}
+		entryRemoved(true, node.key, node.value, null);
+		return true;
+	}
+
+	/**
+	 * 从分段中移除条目,需要持有分段的锁
+	 * @param segment
+	 * @param node
+	 */
+	private void unlink(Segment<K, V> segment, Node<K, V> node) {
+		segment.map.remove(node.key);
+		segment.queueOf(node.window).remove(node);
+		size.addAndGet(-node.size);
+		if (node.window) {
+			windowCount.decrementAndGet();
+			windowSize.addAndGet(-node.size);
+		}
+	}
+
+	/**
+	 * 条目从窗口移入主区的队尾
+	 * @param node
+	 * @return 是否移动
+	 */
+	private boolean admit(Node<K, V> node) {
+		Segment<K, V> segment = segmentFor(node.key);
+		segment.lock.lock();
+		try {
+			if (segment.map.get(node.key) != node || !node.window) {
+				return false;
+			}
+			segment.window.remove(node);
+			node.window = false;
+			node.queued = clock.incrementAndGet();
+			segment.main.add(node);
+			windowCount.decrementAndGet();
+			windowSize.addAndGet(-node.size);
+			return true;
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * 候选条目是否可以替换主区的条目,比较每单位大小的访问频率:
+	 * 大条目占用的空间可以放下多个小条目,只有访问次数按大小折算后更多才留下
+	 * @param candidate 移出窗口的条目
+	 * @param victim 主区最久未访问的条目
+	 * @return
+	 */
+	private boolean admissible(Node<K, V> candidate, Node<K, V> victim) {
+		long candidateFrequency = sketch.frequency(candidate.key.hashCode());
+		long victimFrequency = sketch.frequency(victim.key.hashCode());
+		return candidateFrequency * victim.size > victimFrequency * candidate.size;
+	}
+
+	/**
+	 * 窗口是否超出容量,窗口按大小计算,至少保留{@link #MIN_WINDOW_ENTRIES}个条目;
+	 * 缩略图相对缓存较大时,窗口的容量可能放不下一个条目,这时仍然保留最近的几个
+	 * @return
+	 */
+	private boolean windowFull() {
+		return windowCount.get() > MIN_WINDOW_ENTRIES && windowSize.get() > windowMaxSize;
+	}
+
+	/**
+	 * 窗口恢复到初始的容量
+	 * @param maxSize
+	 */
+	private void resetWindow(int maxSize) {
+		synchronized (climbLock) {
+			windowMaxSize = maxSize / 100;
+			climbStep = maxSize / 16;
+			previousHitRate = -1;
+			growWindow = true;
+		}
+	}
+
+	/**
+	 * 记录一次访问,每访问容量的{@link #SAMPLE_FACTOR}倍后按这一轮命中的比例调整窗口:
+	 * 比上一轮低时反向调整,调整的大小逐渐减小
+	 * @param size 访问的条目的大小
+	 * @param hit 是否命中
+	 */
+	private void sample(int size, boolean hit) {
+		long sampled = (hit ? sampleHitSize : sampleMissSize).addAndGet(size);
+		long total = sampled + (hit ? sampleMissSize : sampleHitSize).get();
+		long sampleSize = (long) SAMPLE_FACTOR * maxSize;
+		if (total < sampleSize) {
+			return;
+		}
+		synchronized (climbLock) {
+			long hitSize = sampleHitSize.get();
+			long missSize = sampleMissSize.get();
+			//其他线程已经结束了这一轮
+			if (hitSize + missSize < sampleSize) {
+				return;
+			}
+			sampleHitSize.addAndGet(-hitSize);
+			sampleMissSize.addAndGet(-missSize);
+			double hitRate = hitSize / (double) (hitSize + missSize);
+			if (previousHitRate >= 0) {
+				if (hitRate < previousHitRate) {
+					growWindow = !growWindow;
+				}
+				climbStep = Math.max(maxSize / 200, climbStep * 98 / 100);
+			}
+			previousHitRate = hitRate;
+			long windowMaxSize = this.windowMaxSize + (growWindow ? climbStep : -climbStep);
+			this.windowMaxSize = Math.max(0, Math.min((long) maxSize * MAX_WINDOW_PERCENT / 100, windowMaxSize));
+		}
+	}
+
+	/**
+	 * 清空缓存
+	 */
+	public final void evictAll() {
+		trimToSize(-1);
+	}
+
+	/**
+	 * 修改最大容量
+	 * @param maxSize
+	 */
+	public void resize(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+		resetWindow(maxSize);
+		trimToSize(maxSize);
+	}
+
+	private int safeSizeOf(K key, V value) {
+		int result = sizeOf(key, value);
+		if (result < 0) {
+			throw new IllegalStateException("Negative size: " + key + "=" + value);
+		}
+		return result;
+	}
+
+	/**
+	 * 条目的大小,默认为1
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	protected int sizeOf(K key, V value) {
+		return 1;
+	}
+
+	/**
+	 * 条目被淘汰,删除或替换时回调,不持有任何锁
+	 * @param evicted 是否因为容量不足被淘汰
+	 * @param key
+	 * @param oldValue
+	 * @param newValue 替换时的新值,否则为null
+	 */
+	protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+	}
+
+	public final int size() {
+		return (int) size.get();
+	}
+
+	public final int maxSize() {
+		return maxSize;
+	}
+
+	public final long hitCount() {
+		return hitCount.get();
+	}
+
+	public final long missCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * 当前缓存内容的副本,大致按访问时间从早到晚排序,入队后被访问过的排在后面
+	 * @return
+	 */
+	public final Map<K, V> snapshot() {
+		List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>();
+		for (Segment<K, V> segment : segments) {
+			for (Node<K, V> node : segment.map.values()) {
+				candidates.add(new Candidate<K, V>(node));
+			}
+		}
+		Collections.sort(candidates, new Comparator<Candidate<K, V>>() {
+
+			public int compare(Candidate<K, V> lhs, Candidate<K, V> rhs) {
+				if (lhs.referenced != rhs.referenced) {
+					return lhs.referenced ? 1 : -1;
+				}
+				return lhs.queued < rhs.queued ? -1 : (lhs.queued == rhs.queued ? 0 : 1);
+			}
+
+		});
+		Map<K, V> snapshot = new LinkedHashMap<K, V>();
+		for (Candidate<K, V> candidate : candidates) {
+			snapshot.put(candidate.node.key, candidate.node.value);
+		}
+		return snapshot;
+	}
+
+}
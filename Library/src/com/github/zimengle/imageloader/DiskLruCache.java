@@ -0,0 +1,983 @@
+package com.github.zimengle.imageloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 有容量上限的磁盘Lru缓存
+ * key经过SHA-1后取64位作为文件名,避免hashCode冲突返回错误的图片;
+ * 所有操作追加到日志文件,启动时在后台线程重放日志恢复访问顺序,写入中途崩溃的文件会被删除;
+ * 日志中冗余的记录过多时重写日志
+ * <p>
+ * 条目保存在以64位hash为key的内存索引中,查找只访问索引,不调用File.exists(),
+ * 索引加载完成之前的操作会等待加载完成
+ * <p>
+ * 每个条目一个文件,可以由外部直接写入文件,例如下载器;缩略图较多时可以使用{@link SegmentStore}
+ * <p>
+ * 外部写入的未完成文件(缓存文件名加后缀,例如中断的下载)也计入容量:加载时统计目录中已有的,
+ * 太久没有修改的直接删除;写入期间由{@link #beginPartial(File)}和{@link #endPartial(File)}标记,不会被删除;
+ * 超出容量时先删除未完成的文件,再按Lru删除缓存文件
+ */
+public class DiskLruCache implements DiskStore {
+
+	private static final String TAG = "DiskLruCache";
+
+	private static final String JOURNAL_FILE = "journal";
+
+	private static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+	private static final String MAGIC = "imageloader.DiskLruCache";
+
+	private static final String VERSION = "2";
+
+	private static final String CLEAN = "CLEAN";
+
+	private static final String DIRTY = "DIRTY";
+
+	private static final String REMOVE = "REMOVE";
+
+	private static final String READ = "READ";
+
+	//正在写入的临时文件后缀
+	private static final String TMP_SUFFIX = ".tmp";
+
+	//超过该时间没有修改的未完成文件在加载时删除,不会再续传
+	private static final long STALE_PARTIAL_AGE = 3 * 24 * 60 * 60 * 1000L;
+
+	//冗余记录超过该数量并且超过条目数时重写日志
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * 开放寻址的内存索引,64位hash到文件大小,不创建对象
+	 * 槽位之间用before/after下标串成按访问顺序排列的双向链表,头部是最久未访问的条目,不单独记录访问时间;
+	 * 同一图片的不同缩略图尺寸在key中区分,各自是一个条目,不需要记录变体
+	 */
+	private static class Index {
+
+		//0表示空位,hash为0的key映射为1
+		private static final long EMPTY = 0;
+
+		private long[] hashes = new long[64];
+
+		private long[] lengths = new long[64];
+
+		private int[] before = new int[64];
+
+		private int[] after = new int[64];
+
+		//最久未访问和最近访问的槽位,空时为-1
+		private int head = -1;
+
+		private int tail = -1;
+
+		private int count = 0;
+
+		private static long normalize(long hash) {
+			return hash == EMPTY ? 1 : hash;
+		}
+
+		private int slotOf(long hash) {
+			long h = hash * 0x9E3779B97F4A7C15L;
+			return (int) (h >>> 32) & (hashes.length - 1);
+		}
+
+		private int find(long hash) {
+			int mask = hashes.length - 1;
+			for (int i = slotOf(hash);; i = (i + 1) & mask) {
+				if (hashes[i] == hash) {
+					return i;
+				}
+				if (hashes[i] == EMPTY) {
+					return -1;
+				}
+			}
+		}
+
+		public boolean contains(long hash) {
+			return find(normalize(hash)) >= 0;
+		}
+
+		/**
+		 * 放入或更新
+		 * @return 之前的大小,不存在时返回-1
+		 */
+		public long put(long hash, long length) {
+			hash = normalize(hash);
+			int i = find(hash);
+			if (i >= 0) {
+				long old = lengths[i];
+				lengths[i] = length;
+				unlink(i);
+				linkLast(i);
+				return old;
+			}
+			if ((count + 1) * 2 > hashes.length) {
+				resize(hashes.length * 2);
+			}
+			int mask = hashes.length - 1;
+			for (i = slotOf(hash); hashes[i] != EMPTY; i = (i + 1) & mask) {
+			}
+			hashes[i] = hash;
+			lengths[i] = length;
+			linkLast(i);
+			count++;
+			return -1;
+		}
+
+		/**
+		 * 移到最近访问的位置
+		 * @return 是否存在
+		 */
+		public boolean touch(long hash) {
+			int i = find(normalize(hash));
+			if (i < 0) {
+				return false;
+			}
+			unlink(i);
+			linkLast(i);
+			return true;
+		}
+
+		/**
+		 * 删除,后面的条目向前移动,不留删除标记
+		 * @return 文件大小,不存在时返回-1
+		 */
+		public long remove(long hash) {
+			int i = find(normalize(hash));
+			if (i < 0) {
+				return -1;
+			}
+			long length = lengths[i];
+			unlink(i);
+			int mask = hashes.length - 1;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (hashes[j] == EMPTY) {
+					break;
+				}
+				int k = slotOf(hashes[j]);
+				//j的理想位置不在(i,j]之间时可以移到i
+				boolean movable = i <= j ? (k <= i || k > j) : (k <= i && k > j);
+				if (movable) {
+					hashes[i] = hashes[j];
+					lengths[i] = lengths[j];
+					relink(j, i);
+					i = j;
+				}
+			}
+			hashes[i] = EMPTY;
+			count--;
+			return length;
+		}
+
+		/**
+		 * 最久未访问的条目
+		 * @return 空时返回EMPTY
+		 */
+		public long eldest() {
+			return head < 0 ? EMPTY : hashes[head];
+		}
+
+		private void linkLast(int i) {
+			before[i] = tail;
+			after[i] = -1;
+			if (tail < 0) {
+				head = i;
+			} else {
+				after[tail] = i;
+			}
+			tail = i;
+		}
+
+		private void unlink(int i) {
+			if (before[i] < 0) {
+				head = after[i];
+			} else {
+				after[before[i]] = after[i];
+			}
+			if (after[i] < 0) {
+				tail = before[i];
+			} else {
+				before[after[i]] = before[i];
+			}
+		}
+
+		/**
+		 * 条目从槽位from移到to,链表中的位置不变
+		 */
+		private void relink(int from, int to) {
+			before[to] = before[from];
+			after[to] = after[from];
+			if (before[to] < 0) {
+				head = to;
+			} else {
+				after[before[to]] = to;
+			}
+			if (after[to] < 0) {
+				tail = to;
+			} else {
+				before[after[to]] = to;
+			}
+		}
+
+		private void resize(int capacity) {
+			long[] oldHashes = hashes;
+			long[] oldLengths = lengths;
+			int[] oldAfter = after;
+			int oldHead = head;
+			hashes = new long[capacity];
+			lengths = new long[capacity];
+			before = new int[capacity];
+			after = new int[capacity];
+			head = -1;
+			tail = -1;
+			count = 0;
+			//按链表顺序重新放入,访问顺序不变
+			for (int i = oldHead; i >= 0; i = oldAfter[i]) {
+				put(oldHashes[i], oldLengths[i]);
+			}
+		}
+
+	}
+
+	private final File directory;
+
+	private final File journalFile;
+
+	private long maxSize;
+
+	private long size = 0;
+
+	private final Index index = new Index();
+
+	//未完成的文件名到大小,按记录的先后排列,超出容量时先删除最早的
+	private final LinkedHashMap<String, Long> partials = new LinkedHashMap<String, Long>();
+
+	private long partialSize = 0;
+
+	//正在写入的未完成文件名和写入者个数,不会被删除
+	private final Map<String, Integer> activePartials = new HashMap<String, Integer>();
+
+	private Writer journalWriter;
+
+	private int redundantOpCount = 0;
+
+	private final CountDownLatch loaded = new CountDownLatch(1);
+
+	private DiskLruCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.journalFile = new File(directory, JOURNAL_FILE);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * 打开缓存目录,在后台线程中加载索引
+	 * @param directory
+	 * @param maxSize 最大字节数
+	 * @return
+	 * @throws IOException 目录不可用
+	 */
+	public static DiskLruCache open(File directory, long maxSize) throws IOException {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("can not create " + directory);
+		}
+		final DiskLruCache cache = new DiskLruCache(directory, maxSize);
+		Thread thread = new Thread("DiskLruCache-" + directory.getName()) {
+
+			@Override
+			public void run() {
+				cache.load();
+			}
+		};
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+		return cache;
+	}
+
+	/**
+	 * key对应的64位hash,SHA-1的前8个字节
+	 * @param key
+	 * @return
+	 */
+	public static long hash(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (bytes[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * key对应的文件名
+	 * @param key
+	 * @return 64位hash的16进制
+	 */
+	public static String hashKey(String key) {
+		return toName(hash(key));
+	}
+
+	private static String toName(long hash) {
+		char[] chars = new char[16];
+		for (int i = 15; i >= 0; i--) {
+			chars[i] = HEX[(int) (hash & 0xf)];
+			hash >>>= 4;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * 解析文件名
+	 * @param name
+	 * @return 不是缓存文件名时抛出NumberFormatException
+	 */
+	static long parseName(String name) {
+		if (name.length() != 16) {
+			throw new NumberFormatException(name);
+		}
+		long hash = 0;
+		for (int i = 0; i < 16; i++) {
+			int digit = Character.digit(name.charAt(i), 16);
+			if (digit < 0) {
+				throw new NumberFormatException(name);
+			}
+			hash = (hash << 4) | digit;
+		}
+		return hash;
+	}
+
+	/**
+	 * 加载索引:重放日志,接管日志中没有记录的完整文件,然后整理到容量以内
+	 */
+	private void load() {
+		synchronized (this) {
+			try {
+				boolean valid = false;
+				if (journalFile.exists()) {
+					try {
+						readJournal();
+						valid = true;
+					} catch (IOException e) {
+						LogUtils.e(TAG, "journal is corrupt, rebuilding", e);
+					}
+				}
+				int adopted = adoptFiles();
+				if (valid && adopted == 0) {
+					journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "US-ASCII"));
+				} else {
+					rebuildJournal();
+				}
+				trim(maxSize);
+			} catch (IOException e) {
+				LogUtils.e(TAG, "load error:" + directory, e);
+			} finally {
+				loaded.countDown();
+			}
+		}
+	}
+
+	private void awaitLoaded() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				loaded.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 重放日志,写入未完成的条目删除临时文件
+	 * @throws IOException
+	 */
+	private void readJournal() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"));
+		try {
+			if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+				throw new IOException("unexpected journal header");
+			}
+			Set<String> dirty = new HashSet<String>();
+			int lineCount = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(" ");
+				long hash;
+				try {
+					hash = parseName(parts.length < 2 ? "" : parts[1]);
+				} catch (NumberFormatException e) {
+					//最后一行可能在崩溃时只写了一半
+					break;
+				}
+				if (CLEAN.equals(parts[0]) && parts.length == 3) {
+					long length = Long.parseLong(parts[2]);
+					long old = index.put(hash, length);
+					size += length - Math.max(0, old);
+					dirty.remove(parts[1]);
+				} else if (DIRTY.equals(parts[0])) {
+					dirty.add(parts[1]);
+				} else if (REMOVE.equals(parts[0])) {
+					long old = index.remove(hash);
+					if (old >= 0) {
+						size -= old;
+					}
+				} else if (READ.equals(parts[0])) {
+					index.touch(hash);
+				} else {
+					break;
+				}
+				lineCount++;
+			}
+			redundantOpCount = lineCount - index.count;
+			for (String name : dirty) {
+				new File(directory, name + TMP_SUFFIX).delete();
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("unexpected journal line");
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * 列出目录,日志中有但文件已不存在的条目删除,文件存在但日志中没有的(例如外部写入完成后还没有提交)接管;
+	 * 未完成的文件计入容量,自己遗留的临时文件和太久没有修改的删除
+	 * 只在加载时列一次目录
+	 * @return 变化的条目数
+	 */
+	private int adoptFiles() {
+		String[] names = directory.list();
+		if (names == null) {
+			return 0;
+		}
+		Index present = new Index();
+		int changed = 0;
+		long now = System.currentTimeMillis();
+		for (String name : names) {
+			//切换存储方式之前SegmentStore留下的段文件,缩略图可以重新生成,直接删除
+			if (SegmentStore.isSegmentName(name)) {
+				new File(directory, name).delete();
+				continue;
+			}
+			if (isPartialName(name)) {
+				File file = new File(directory, name);
+				//加载完成之前不会开始写入,临时文件都是上次遗留的
+				if (name.endsWith(TMP_SUFFIX) || now - file.lastModified() > STALE_PARTIAL_AGE) {
+					file.delete();
+				} else {
+					long length = file.length();
+					partials.put(name, length);
+					partialSize += length;
+				}
+				continue;
+			}
+			long hash;
+			try {
+				hash = parseName(name);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			present.put(hash, 0);
+			if (!index.contains(hash)) {
+				long length = new File(directory, name).length();
+				index.put(hash, length);
+				size += length;
+				changed++;
+			}
+		}
+		long[] missing = new long[index.count];
+		int missingCount = 0;
+		for (int i = 0; i < index.hashes.length; i++) {
+			long hash = index.hashes[i];
+			if (hash != Index.EMPTY && !present.contains(hash)) {
+				missing[missingCount++] = hash;
+			}
+		}
+		for (int i = 0; i < missingCount; i++) {
+			size -= index.remove(missing[i]);
+		}
+		return changed + missingCount;
+	}
+
+	/**
+	 * 是否是缓存文件名
+	 * @param name
+	 * @return
+	 */
+	static boolean isEntryName(String name) {
+		try {
+			parseName(name);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 是否是缓存目录中的文件:日志,缓存文件和未完成的文件
+	 * @param name
+	 * @return
+	 */
+	static boolean isCacheFileName(String name) {
+		return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name) || isEntryName(name) || isPartialName(name);
+	}
+
+	/**
+	 * 是否是缓存文件名加后缀的未完成文件
+	 * @param name
+	 * @return
+	 */
+	private static boolean isPartialName(String name) {
+		if (name.length() <= 17 || name.charAt(16) != '.') {
+			return false;
+		}
+		try {
+			parseName(name.substring(0, 16));
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 只保留当前条目重写日志,先写临时文件再替换
+	 * @throws IOException
+	 */
+	private void rebuildJournal() throws IOException {
+		if (journalWriter != null) {
+			journalWriter.close();
+			journalWriter = null;
+		}
+		File tmp = new File(directory, JOURNAL_FILE_TMP);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"));
+		try {
+			writer.write(MAGIC + "\n" + VERSION + "\n");
+			//按访问顺序写入,重放后顺序不变
+			for (int i = index.head; i >= 0; i = index.after[i]) {
+				writer.write(CLEAN + " " + toName(index.hashes[i]) + " " + index.lengths[i] + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(journalFile)) {
+			journalFile.delete();
+			tmp.renameTo(journalFile);
+		}
+		journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "US-ASCII"));
+		redundantOpCount = 0;
+	}
+
+	/**
+	 * 写入日志,READ只影响访问顺序,不立即刷新
+	 */
+	private void journal(String op, long hash, long length) {
+		if (journalWriter == null) {
+			return;
+		}
+		try {
+			String name = toName(hash);
+			journalWriter.write(length < 0 ? op + " " + name + "\n" : op + " " + name + " " + length + "\n");
+			if (!READ.equals(op)) {
+				journalWriter.flush();
+			}
+			if (!CLEAN.equals(op)) {
+				redundantOpCount++;
+			}
+			if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= index.count) {
+				rebuildJournal();
+			}
+		} catch (IOException e) {
+			LogUtils.e(TAG, "journal error", e);
+		}
+	}
+
+	/**
+	 * 获取缓存文件,并记录访问,只查内存索引
+	 * @param key
+	 * @return 未命中返回null
+	 */
+	public File get(String key) {
+		long hash = hash(key);
+		awaitLoaded();
+		synchronized (this) {
+			if (!index.touch(hash)) {
+				return null;
+			}
+			journal(READ, hash, -1);
+		}
+		return new File(directory, toName(hash));
+	}
+
+	/**
+	 * 读取缓存文件的全部数据,文件长度从打开的文件描述符获取,不再按路径查询
+	 * 文件被外部删除或损坏时从索引中删除,下次直接未命中
+	 * @param key
+	 * @return 未命中或读取失败返回null
+	 */
+	public byte[] read(String key) {
+		File file = get(key);
+		if (file == null) {
+			return null;
+		}
+		FileInputStream input = null;
+		try {
+			input = new FileInputStream(file);
+			byte[] data = new byte[(int) input.getChannel().size()];
+			int offset = 0, n;
+			while (offset < data.length && (n = input.read(data, offset, data.length - offset)) != -1) {
+				offset += n;
+			}
+			if (offset == data.length) {
+				return data;
+			}
+		} catch (IOException e) {
+			LogUtils.e(TAG, "read error:" + file, e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		remove(key);
+		return null;
+	}
+
+	/**
+	 * 映射缓存文件,每次打开新的文件描述符,映射后即关闭
+	 * 文件被外部删除或损坏时从索引中删除,下次直接未命中
+	 * @param key
+	 * @return 未命中或读取失败返回null
+	 */
+	public ByteBuffer map(String key) {
+		File file = get(key);
+		if (file == null) {
+			return null;
+		}
+		RandomAccessFile input = null;
+		try {
+			input = new RandomAccessFile(file, "r");
+			return input.getChannel().map(MapMode.READ_ONLY, 0, input.length());
+		} catch (IOException e) {
+			LogUtils.e(TAG, "map error:" + file, e);
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		remove(key);
+		return null;
+	}
+
+	/**
+	 * 写入临时文件后提交
+	 * @param key
+	 * @param data
+	 * @return 是否成功
+	 */
+	public boolean write(String key, byte[] data) {
+		File file = edit(key);
+		FileOutputStream output = null;
+		boolean success = false;
+		try {
+			output = new FileOutputStream(file);
+			output.write(data);
+			success = true;
+		} catch (IOException e) {
+			LogUtils.e(TAG, "write error:" + file, e);
+		} finally {
+			if (output != null) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					success = false;
+				}
+			}
+		}
+		if (success) {
+			return commit(key);
+		}
+		abort(key);
+		return false;
+	}
+
+	/**
+	 * 是否已缓存,不记录访问,只查内存索引
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(String key) {
+		long hash = hash(key);
+		awaitLoaded();
+		synchronized (this) {
+			return index.contains(hash);
+		}
+	}
+
+	/**
+	 * key对应的缓存文件路径,文件不一定存在,由调用者写入后调用{@link #commit(String)};
+	 * 写入者需要保证文件出现时已经完整,例如先写临时文件再重命名
+	 * @param key
+	 * @return
+	 */
+	public File getFile(String key) {
+		return new File(directory, hashKey(key));
+	}
+
+	/**
+	 * 开始写入,返回临时文件,写入完成后调用{@link #commit(String)}或{@link #abort(String)}
+	 * @param key
+	 * @return
+	 */
+	public File edit(String key) {
+		long hash = hash(key);
+		awaitLoaded();
+		synchronized (this) {
+			journal(DIRTY, hash, -1);
+		}
+		return new File(directory, toName(hash) + TMP_SUFFIX);
+	}
+
+	/**
+	 * 提交写入,临时文件存在时重命名为缓存文件
+	 * @param key
+	 * @return 是否成功
+	 */
+	public boolean commit(String key) {
+		long hash = hash(key);
+		awaitLoaded();
+		synchronized (this) {
+			String name = toName(hash);
+			File file = new File(directory, name);
+			File tmp = new File(directory, name + TMP_SUFFIX);
+			if (tmp.exists()) {
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+					journal(REMOVE, hash, -1);
+					return false;
+				}
+			}
+			long length = file.length();
+			if (length == 0 && !file.exists()) {
+				journal(REMOVE, hash, -1);
+				return false;
+			}
+			long old = index.put(hash, length);
+			size += length - Math.max(0, old);
+			journal(CLEAN, hash, length);
+			//下载完成后临时文件已重命名
+			removePartials(name);
+			trim(maxSize);
+			return true;
+		}
+	}
+
+	/**
+	 * 放弃写入
+	 * @param key
+	 */
+	public void abort(String key) {
+		long hash = hash(key);
+		awaitLoaded();
+		synchronized (this) {
+			new File(directory, toName(hash) + TMP_SUFFIX).delete();
+			journal(REMOVE, hash, -1);
+		}
+	}
+
+	/**
+	 * 删除缓存
+	 * @param key
+	 * @return 是否存在
+	 */
+	public boolean remove(String key) {
+		long hash = hash(key);
+		awaitLoaded();
+		synchronized (this) {
+			long length = index.remove(hash);
+			new File(directory, toName(hash)).delete();
+			if (length < 0) {
+				return false;
+			}
+			size -= length;
+			journal(REMOVE, hash, -1);
+			return true;
+		}
+	}
+
+	/**
+	 * 开始外部写入未完成的文件,例如下载的临时文件,写入期间不会被删除
+	 * @param file 缓存目录中缓存文件名加后缀的文件
+	 */
+	public void beginPartial(File file) {
+		awaitLoaded();
+		synchronized (this) {
+			String name = file.getName();
+			Integer writers = activePartials.get(name);
+			activePartials.put(name, writers == null ? 1 : writers + 1);
+			Long length = partials.remove(name);
+			if (length != null) {
+				partialSize -= length;
+			}
+		}
+	}
+
+	/**
+	 * 结束外部写入,文件还存在时(例如下载中断)计入容量,超出容量时会被先删除
+	 * @param file
+	 */
+	public void endPartial(File file) {
+		awaitLoaded();
+		synchronized (this) {
+			String name = file.getName();
+			Integer writers = activePartials.remove(name);
+			if (writers != null && writers > 1) {
+				activePartials.put(name, writers - 1);
+				return;
+			}
+			long length = file.length();
+			if (length > 0) {
+				Long old = partials.put(name, length);
+				partialSize += length - (old == null ? 0 : old);
+				trim(maxSize);
+			}
+		}
+	}
+
+	/**
+	 * 删除缓存文件对应的未完成文件中已经不存在的记录
+	 * @param name 缓存文件名
+	 */
+	private void removePartials(String name) {
+		if (partials.isEmpty()) {
+			return;
+		}
+		Iterator<Map.Entry<String, Long>> iterator = partials.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			if (entry.getKey().startsWith(name) && !new File(directory, entry.getKey()).exists()) {
+				partialSize -= entry.getValue();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * 删除最久未访问的文件,直到不超过指定大小
+	 * @param maxSize
+	 */
+	public void trimToSize(long maxSize) {
+		awaitLoaded();
+		synchronized (this) {
+			trim(maxSize);
+		}
+	}
+
+	private void trim(long maxSize) {
+		//未完成的文件只是下载的中间结果,先删除
+		Iterator<Map.Entry<String, Long>> iterator = partials.entrySet().iterator();
+		while (size + partialSize > maxSize && iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			new File(directory, entry.getKey()).delete();
+			partialSize -= entry.getValue();
+			iterator.remove();
+		}
+		while (size + partialSize > maxSize && index.count > 0) {
+			long hash = index.eldest();
+			size -= index.remove(hash);
+			new File(directory, toName(hash)).delete();
+			journal(REMOVE, hash, -1);
+		}
+	}
+
+	/**
+	 * 修改最大容量
+	 * @param maxSize
+	 */
+	public void setMaxSize(long maxSize) {
+		awaitLoaded();
+		synchronized (this) {
+			this.maxSize = maxSize;
+			trim(maxSize);
+		}
+	}
+
+	/**
+	 * 占用的字节数,包括未完成的文件
+	 * @return
+	 */
+	public long size() {
+		awaitLoaded();
+		synchronized (this) {
+			return size + partialSize;
+		}
+	}
+
+	public synchronized long maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * 条目个数
+	 * @return
+	 */
+	public int count() {
+		awaitLoaded();
+		synchronized (this) {
+			return index.count;
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * 删除所有缓存
+	 */
+	public void clear() {
+		trimToSize(0);
+	}
+
+}
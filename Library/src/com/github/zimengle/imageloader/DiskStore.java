@@ -0,0 +1,67 @@
+package com.github.zimengle.imageloader;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 缩略图磁盘缓存的存储,按key读写整块的压缩数据
+ * 实现需要线程安全
+ */
+public interface DiskStore {
+
+	/**
+	 * 读取数据,并记录访问
+	 * @param key
+	 * @return 未命中或读取失败返回null
+	 */
+	public byte[] read(String key);
+
+	/**
+	 * 把数据映射到内存,并记录访问;数据不经过Java堆,适合未压缩的像素直接复制到bitmap
+	 * 数据之后被替换,删除或淘汰时映射仍然有效
+	 * @param key
+	 * @return 只读的buffer,未命中或读取失败返回null
+	 */
+	public ByteBuffer map(String key);
+
+	/**
+	 * 是否已保存,不记录访问
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(String key);
+
+	/**
+	 * 保存数据,已有时替换;超出容量时淘汰数据
+	 * @param key
+	 * @param data
+	 * @return 是否成功
+	 */
+	public boolean write(String key, byte[] data);
+
+	/**
+	 * 删除数据
+	 * @param key
+	 * @return 是否存在
+	 */
+	public boolean remove(String key);
+
+	/**
+	 * 淘汰数据,直到不超过指定字节数
+	 * @param maxSize
+	 */
+	public void trimToSize(long maxSize);
+
+	/**
+	 * 占用的字节数
+	 * @return
+	 */
+	public long size();
+
+	public long maxSize();
+
+	/**
+	 * 删除所有数据
+	 */
+	public void clear();
+
+}
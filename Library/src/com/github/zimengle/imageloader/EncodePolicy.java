@@ -0,0 +1,27 @@
+package com.github.zimengle.imageloader;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+/**
+ * 磁盘缓存中缩略图的压缩格式和质量,按每个缩略图选择
+ * 读取时由BitmapFactory识别格式,不同格式可以混合保存
+ */
+public interface EncodePolicy {
+
+	/**
+	 * 压缩格式
+	 * @param bitmap 要保存的缩略图
+	 * @return
+	 */
+	public CompressFormat getFormat(Bitmap bitmap);
+
+	/**
+	 * 压缩质量
+	 * @param bitmap 要保存的缩略图
+	 * @param format {@link #getFormat(Bitmap)}返回的格式
+	 * @return 0到100,PNG忽略
+	 */
+	public int getQuality(Bitmap bitmap, CompressFormat format);
+
+}
@@ -0,0 +1,227 @@
+package com.github.zimengle.imageloader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 压缩图片数据的内存缓存,位于解码后的bitmap缓存和磁盘缓存之间
+ * 数据存放在java堆外的direct ByteBuffer大块(slab)中,不占用bitmap的内存预算;
+ * 每块顺序写入,满了以后淘汰最早的块,块中被访问过的数据复制到新块中保留一次
+ */
+public class EncodedCache {
+
+	/**
+	 * 默认的块大小
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	/**
+	 * 数据在块中的位置
+	 */
+	private static class Entry {
+
+		private final Slab slab;
+
+		private final int offset;
+
+		private final int length;
+
+		//写入之后是否被访问过
+		private boolean accessed = false;
+
+		public Entry(Slab slab, int offset, int length) {
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+	/**
+	 * 顺序写入的数据块
+	 */
+	private static class Slab {
+
+		private final ByteBuffer buffer;
+
+		//块中数据的key,按写入顺序
+		private final List<String> keys = new ArrayList<String>();
+
+		private int position = 0;
+
+		public Slab(int size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+
+	}
+
+	private final int slabSize;
+
+	private int maxSlabs;
+
+	//从旧到新
+	private final LinkedList<Slab> slabs = new LinkedList<Slab>();
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	/**
+	 * 构造器
+	 * @param maxSize 最大字节数
+	 */
+	public EncodedCache(int maxSize) {
+		this(maxSize, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * 构造器
+	 * @param maxSize 最大字节数,按块大小向下取整,至少一块
+	 * @param slabSize 块大小,超过块大小的数据不缓存
+	 */
+	public EncodedCache(int maxSize, int slabSize) {
+		this.slabSize = slabSize;
+		this.maxSlabs = Math.max(1, maxSize / slabSize);
+	}
+
+	/**
+	 * 放入数据,已有时不替换
+	 * @param key
+	 * @param data
+	 */
+	public synchronized void put(String key, byte[] data) {
+		if (data == null || data.length == 0 || data.length > slabSize || entries.containsKey(key)) {
+			return;
+		}
+		Slab slab = slabs.isEmpty() ? null : slabs.getLast();
+		if (slab == null || slab.position + data.length > slabSize) {
+			slab = nextSlab();
+		}
+		write(slab, key, data);
+	}
+
+	/**
+	 * 获取数据,复制到堆中
+	 * @param key
+	 * @return 未命中返回null
+	 */
+	public synchronized byte[] get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		entry.accessed = true;
+		return read(entry);
+	}
+
+	/**
+	 * 删除数据,占用的空间在块被淘汰时回收
+	 * @param key
+	 */
+	public synchronized void remove(String key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * 淘汰最早的块,直到不超过指定字节数
+	 * @param maxSize
+	 */
+	public synchronized void trimToSize(int maxSize) {
+		while (!slabs.isEmpty() && slabs.size() * slabSize > maxSize) {
+			Slab slab = slabs.removeFirst();
+			for (String key : slab.keys) {
+				Entry entry = entries.get(key);
+				if (entry != null && entry.slab == slab) {
+					entries.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 清空缓存,释放所有块
+	 */
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * 已分配的字节数
+	 * @return
+	 */
+	public synchronized int size() {
+		return slabs.size() * slabSize;
+	}
+
+	public synchronized int maxSize() {
+		return maxSlabs * slabSize;
+	}
+
+	public synchronized long hitCount() {
+		return hitCount;
+	}
+
+	public synchronized long missCount() {
+		return missCount;
+	}
+
+	/**
+	 * 获取可以写入的新块,达到上限时淘汰最早的块并复用其内存
+	 * 最早的块中被访问过的数据复制到新块中,最多占用半块,保证有空间写入新数据
+	 * @return
+	 */
+	private Slab nextSlab() {
+		if (slabs.size() < maxSlabs) {
+			Slab slab = new Slab(slabSize);
+			slabs.addLast(slab);
+			return slab;
+		}
+		Slab eldest = slabs.removeFirst();
+		List<String> survivorKeys = new ArrayList<String>();
+		List<byte[]> survivors = new ArrayList<byte[]>();
+		int survivorSize = 0;
+		for (String key : eldest.keys) {
+			Entry entry = entries.get(key);
+			if (entry == null || entry.slab != eldest) {
+				continue;
+			}
+			entries.remove(key);
+			if (entry.accessed && survivorSize + entry.length <= slabSize / 2) {
+				survivorKeys.add(key);
+				survivors.add(read(entry));
+				survivorSize += entry.length;
+			}
+		}
+		eldest.keys.clear();
+		eldest.position = 0;
+		slabs.addLast(eldest);
+		for (int i = 0; i < survivors.size(); i++) {
+			write(eldest, survivorKeys.get(i), survivors.get(i));
+		}
+		return eldest;
+	}
+
+	private void write(Slab slab, String key, byte[] data) {
+		slab.buffer.position(slab.position);
+		slab.buffer.put(data);
+		entries.put(key, new Entry(slab, slab.position, data.length));
+		slab.keys.add(key);
+		slab.position += data.length;
+	}
+
+	private byte[] read(Entry entry) {
+		byte[] data = new byte[entry.length];
+		entry.slab.buffer.position(entry.offset);
+		entry.slab.buffer.get(data);
+		return data;
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.github.zimengle.imageloader;
+
+/**
+ * 估计访问频率的Count-Min Sketch,用于TinyLFU准入策略
+ * 每个计数器4位,最大15;4行共用一个数组,每个int存放8个计数器;
+ * 累计增加次数达到采样数时所有计数器减半,使频率随时间衰减
+ * 为了读取不加锁,并发修改时可能丢失少量计数,只影响估计的精度
+ */
+public class FrequencySketch {
+
+	private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+	//每个计数器保留低3位,用于减半
+	private static final int RESET_MASK = 0x77777777;
+
+	private final int[] table;
+
+	//计数器个数减一
+	private final int counterMask;
+
+	private final int sampleSize;
+
+	private int additions = 0;
+
+	/**
+	 * 构造器
+	 * @param expectedEntries 预计的不同key的个数,决定计数器个数
+	 */
+	public FrequencySketch(int expectedEntries) {
+		//每个key平均8个计数器,减少冲突
+		int width = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+		table = new int[width];
+		counterMask = width * 8 - 1;
+		sampleSize = 10 * Math.max(16, expectedEntries);
+	}
+
+	/**
+	 * 记录一次访问
+	 * @param hash key的hashCode
+	 */
+	public void increment(int hash) {
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int slot = indexOf(hash, i);
+			int index = slot >>> 3;
+			int shift = (slot & 7) << 2;
+			int value = table[index];
+			if (((value >>> shift) & 0xf) < 15) {
+				table[index] = value + (1 << shift);
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * 估计的访问频率
+	 * @param hash key的hashCode
+	 * @return 0到15
+	 */
+	public int frequency(int hash) {
+		int frequency = 15;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int slot = indexOf(hash, i);
+			int count = (table[slot >>> 3] >>> ((slot & 7) << 2)) & 0xf;
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * 所有计数器减半
+	 */
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions = additions / 2;
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = hash * SEEDS[row];
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		h ^= h >>> 16;
+		return h & counterMask;
+	}
+
+}
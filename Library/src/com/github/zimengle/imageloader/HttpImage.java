@@ -1,7 +1,11 @@
 package com.github.zimengle.imageloader;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
@@ -9,11 +13,13 @@ import java.net.URL;
 import com.github.zimengle.downloader.DefaultDownloader;
 import com.github.zimengle.downloader.DownloadListener;
 import com.github.zimengle.downloader.Downloader;
+import com.github.zimengle.downloader.SegmentedDownloader;
 import com.github.zimengle.downloader.UniqueURLDownloader;
 
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 
 /**
@@ -30,6 +36,9 @@ public class HttpImage extends Image{
 	
 	private File file;
 	
+	//下载文件所在的磁盘缓存,指定了下载位置时为null
+	private DiskLruCache diskCache;
+	
 	private Downloader downloader;
 	
 	private Image image;
@@ -40,21 +49,50 @@ public class HttpImage extends Image{
 	
 	private DownloadListener downloadListener;
 	
+	//大于1时分段并行下载
+	private int downloadSegments = 1;
+	
+	//正在使用的分段下载器,预览按它实际的进度读取临时文件
+	private volatile SegmentedDownloader segmentedDownloader;
+	
 	/**
 	 * 构造器
 	 * @param context
-	 * @param file 下载位置
+	 * @param file 下载位置,为null时下载到{@link ImageCache#getHttpDiskCache()}中
 	 * @param conn 
 	 * @param size 加载尺寸
 	 * @param options 图片选项
 	 */
 	public HttpImage(Context context,HttpURLConnection conn,File file,Size size,Options options) {
+		this(context, conn, file, file == null ? ImageCache.getInstance(context).getHttpDiskCache() : null, size, options);
+	}
+	
+	/**
+	 * 构造器
+	 * @param context
+	 * @param conn
+	 * @param diskCache 下载到的磁盘缓存
+	 * @param size 加载尺寸
+	 * @param options 图片选项
+	 */
+	public HttpImage(Context context,HttpURLConnection conn,DiskLruCache diskCache,Size size,Options options) {
+		this(context, conn, null, diskCache, size, options);
+	}
+	
+	private HttpImage(Context context,HttpURLConnection conn,File file,DiskLruCache diskCache,Size size,Options options) {
 		if(options == null){
 			options = new Options();
 		}
+		String url = conn.getURL().toString();
 		if(file == null){
-			file = new File(ImageCache.getDiskCacheDir(context,"http"),""+conn.getURL().toString().hashCode());
+			if(diskCache != null){
+				file = diskCache.getFile(url);
+			}else{
+				//磁盘缓存不可用
+				file = new File(ImageCache.getDiskCacheDir(context,"http"),DiskLruCache.hashKey(url));
+			}
 		}
+		this.diskCache = diskCache;
 		this.conn = conn;
 		this.file = file;
 		this.context = context;
@@ -67,6 +105,14 @@ public class HttpImage extends Image{
 		this.downloadListener = downloadListener;
 	}
 	
+	/**
+	 * 设置下载的最大段数,大于1时使用{@link SegmentedDownloader},较小的图片仍然只用一个连接
+	 * @param downloadSegments
+	 */
+	public void setDownloadSegments(int downloadSegments) {
+		this.downloadSegments = downloadSegments;
+	}
+	
 	public HttpImage(Context context,HttpURLConnection conn,File file,Size size){
 		this(context,conn,file,size,null);
 	}
@@ -79,13 +125,179 @@ public class HttpImage extends Image{
 		this(context,conn,null,null);
 	}
 	
+	/**
+	 * 是否已下载,只查磁盘缓存的索引,不记录访问
+	 */
+	@Override
+	public boolean isFetched() {
+		if(diskCache != null){
+			return diskCache.contains(toString());
+		}
+		return file.exists();
+	}
+	
+	/**
+	 * 下载图片到本地
+	 */
+	@Override
+	public boolean fetch() throws IOException {
+		if(cancel){
+			return false;
+		}
+		//磁盘缓存索引中已有时不再进入下载器检查文件,接下来要使用文件,记录这次访问
+		if(diskCache != null && diskCache.get(toString()) != null){
+			return true;
+		}
+		Downloader target;
+		if(downloadSegments > 1){
+			segmentedDownloader = new SegmentedDownloader(conn, file, downloadSegments);
+			target = segmentedDownloader;
+		}else{
+			target = new DefaultDownloader(conn, file);
+		}
+		downloader = new UniqueURLDownloader(target);
+		downloader.setDownloadListener(downloadListener);
+		//下载期间临时文件不会被磁盘缓存删除,中断后留下的计入容量
+		File[] partials = { DefaultDownloader.getTempFile(file), SegmentedDownloader.getTempFile(file) };
+		if(diskCache != null){
+			for(File partial : partials){
+				diskCache.beginPartial(partial);
+			}
+		}
+		boolean success;
+		try{
+			success = downloader.download();
+		}finally{
+			if(diskCache != null){
+				for(File partial : partials){
+					diskCache.endPartial(partial);
+				}
+			}
+		}
+		//下载完成后记入磁盘缓存,超出容量时淘汰最久未使用的文件
+		if(success && diskCache != null){
+			diskCache.commit(toString());
+		}
+		return success;
+	}
+	
+	/**
+	 * 从已下载的部分解码低分辨率的预览图
+	 * 渐进式JPEG得到完整但模糊的图片,普通JPEG只有已下载的上半部分
+	 * 分段下载时只读取临时文件开头连续的部分,服务器不支持分段或图片较小只用一个连接时和普通下载一样
+	 * @param maxWidth 预览的最大宽度
+	 * @param maxHeight 预览的最大高度
+	 * @return 没有开始下载,或者数据还不足以解析尺寸时返回null
+	 * @throws OutOfMemoryError
+	 */
+	public Bitmap decodePreview(int maxWidth,int maxHeight) throws OutOfMemoryError {
+		if(cancel){
+			return null;
+		}
+		File partial;
+		long length;
+		SegmentedDownloader segmented = segmentedDownloader;
+		if(segmented != null){
+			partial = SegmentedDownloader.getTempFile(file);
+			length = segmented.getContiguousLength();
+		}else{
+			partial = DefaultDownloader.getTempFile(file);
+			length = partial.length();
+		}
+		if(length <= 0){
+			return null;
+		}
+		Options options = new Options();
+		options.inJustDecodeBounds = true;
+		decodeHead(partial, length, options);
+		if(options.outWidth <= 0 || options.outHeight <= 0){
+			return null;
+		}
+		int sampleSize = 1;
+		while(options.outWidth / sampleSize > maxWidth || options.outHeight / sampleSize > maxHeight){
+			sampleSize <<= 1;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		//预览很快被替换,不使用复用池,用较小的格式
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		return decodeHead(partial, length, options);
+	}
+	
+	/**
+	 * 只解码文件开头指定长度的数据
+	 * @param file
+	 * @param length
+	 * @param options
+	 * @return 文件不存在或数据不足时返回null
+	 */
+	private static Bitmap decodeHead(File file,final long length,Options options){
+		InputStream input = null;
+		try {
+			input = new BufferedInputStream(new FilterInputStream(new FileInputStream(file)) {
+				
+				private long remaining = length;
+				
+				@Override
+				public int read() throws IOException {
+					if(remaining <= 0){
+						return -1;
+					}
+					int b = super.read();
+					if(b >= 0){
+						remaining--;
+					}
+					return b;
+				}
+				
+				@Override
+				public int read(byte[] buffer, int offset, int count) throws IOException {
+					if(remaining <= 0){
+						return -1;
+					}
+					int n = super.read(buffer, offset, (int) Math.min(count, remaining));
+					if(n > 0){
+						remaining -= n;
+					}
+					return n;
+				}
+				
+				@Override
+				public long skip(long n) throws IOException {
+					long skipped = super.skip(Math.min(n, remaining));
+					remaining -= skipped;
+					return skipped;
+				}
+				
+				@Override
+				public int available() throws IOException {
+					return (int) Math.min(super.available(), remaining);
+				}
+				
+				@Override
+				public boolean markSupported() {
+					return false;
+				}
+			}, 16 * 1024);
+			return BitmapFactory.decodeStream(input, null, options);
+		} catch (IOException e) {
+			//下载完成后临时文件已被改名
+			return null;
+		} finally {
+			if(input != null){
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
 	@Override
 	protected Bitmap generateImage() throws IOException {
 		Bitmap bitmap = null;
 		if(!cancel){
-			downloader = new UniqueURLDownloader(new DefaultDownloader(conn, file));
-			downloader.setDownloadListener(downloadListener);
-			if(downloader.download()){
+			if(fetch()){
 				 image = new LocalImage(context, file, size,options);
 				 bitmap = image.getImage();
 			}
@@ -31,6 +31,46 @@ public abstract class Image {
 			this.height = size;
 		}
 
+		/**
+		 * 规整到一组固定的尺寸,相近的尺寸共享缓存
+		 * 边长向上取整,(2^k,2^(k+1)]之间的步长为2^(k-2),比原尺寸大不到25%,例如100取整为112
+		 * @return
+		 */
+		public Size bucket() {
+			return new Size(bucket(width), bucket(height));
+		}
+
+		private static int bucket(int length) {
+			if (length <= 1) {
+				return length;
+			}
+			//步长小于边长的1/4
+			int step = Math.max(1, Integer.highestOneBit(length - 1) / 4);
+			return (length + step - 1) / step * step;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Size)) {
+				return false;
+			}
+			Size another = (Size) o;
+			return width == another.width && height == another.height;
+		}
+
+		@Override
+		public int hashCode() {
+			return width * 31 + height;
+		}
+
+		@Override
+		public String toString() {
+			return width + "*" + height;
+		}
+
 	}
 
 
@@ -52,6 +92,23 @@ public abstract class Image {
 	 */
 	protected abstract Bitmap generateImage() throws OutOfMemoryError,IOException;
 
+	/**
+	 * 图片数据是否已经在本地,不需要通过网络等慢速途径获取,子类可以覆盖
+	 * @return
+	 */
+	public boolean isFetched() {
+		return true;
+	}
+
+	/**
+	 * 将图片数据获取到本地,解码之前调用,子类可以覆盖
+	 * @return 是否获取成功
+	 * @throws IOException
+	 */
+	public boolean fetch() throws IOException {
+		return true;
+	}
+
 	/**
 	 * 获取图片
 	 * @return
@@ -73,12 +130,11 @@ public abstract class Image {
 	}
 
 	/**
-	 * 回收图片
+	 * 释放图片
+	 * 生成的图片可能已被缓存或正在显示,由缓存的引用计数决定何时放入复用池,这里不回收
 	 */
 	public void destory() {
-		if (bitmap != null && bitmap.isRecycled()) {
-			bitmap.recycle();
-		}
+		bitmap = null;
 	}
 	
 	public abstract String toString();
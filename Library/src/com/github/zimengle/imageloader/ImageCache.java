@@ -1,23 +1,51 @@
 package com.github.zimengle.imageloader;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.github.zimengle.imageloader.Image.Size;
 
 import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.Environment;
-import android.support.v4.util.LruCache;
 
 /**
  * 图片缓存器
+ * 内存缓存按照图片和规整后的尺寸缓存,没有对应尺寸时可以从内存中更大的尺寸缩小得到
  * @author zhangzimeng<zhangzimeng01@baidu.com>
  *
  */
@@ -60,15 +88,53 @@ public class ImageCache {
 	 */
 	public static class CacheParams{
 		/**
-		 * 图片缓存
+		 * 图片缓存,不大于0时按照应用可用内存和memoryPercent计算
 		 */
-		public int cacheSize = 20*1024*1024;
+		public int cacheSize = 0;
+		
+		/**
+		 * 未指定cacheSize时,内存缓存占应用可用内存的比例
+		 */
+		public float memoryPercent = 0.125f;
+		
+		/**
+		 * 内存缓存使用W-TinyLFU准入策略,快速滑动时大量只显示一次的缩略图不会挤掉常用的图片;
+		 * 没有反复出现的图片,或者常用的图片整体更换时命中率可能低于Lru,各种访问的对比见AdmissionReplay
+		 */
+		public boolean frequencyAdmission = false;
 		
 		/**
 		 * 磁盘缓存
 		 */
 		public File diskDir;
 		
+		/**
+		 * 磁盘缓存的最大字节数
+		 */
+		public long diskCacheSize = 50*1024*1024;
+		
+		/**
+		 * 缩略图打包保存到少数几个段文件中,而不是每个缩略图一个文件;
+		 * 外部存储上文件很多时目录操作很慢,打开后读写和启动扫描都是顺序的大文件操作
+		 */
+		public boolean segmentStore = false;
+		
+		/**
+		 * 下载的原图的缓存目录
+		 */
+		public File httpDir;
+		
+		/**
+		 * 下载的原图的最大字节数
+		 */
+		public long httpCacheSize = 50*1024*1024;
+		
+		/**
+		 * 磁盘缓存保存未压缩的像素,读取时直接复制到bitmap,不用解码;
+		 * 占用的磁盘空间是JPEG的几倍,适合低端设备上固定尺寸的缩略图.读取时按文件头识别,切换后旧的缓存仍然可用
+		 */
+		public boolean rawPixels = false;
+		
 		/**
 		 * 压缩格式
 		 */
@@ -79,14 +145,294 @@ public class ImageCache {
 		 */
 		public int quality = 90;
 		
+		/**
+		 * 按缩略图选择压缩格式和质量,例如{@link AdaptiveEncodePolicy};为null时使用{@link #format}和{@link #quality}
+		 */
+		public EncodePolicy encodePolicy;
+		
+		/**
+		 * bitmap复用池
+		 */
+		public int poolSize = 4*1024*1024;
+		
+		/**
+		 * 压缩数据的内存缓存,在java堆外,不大于0时不使用
+		 */
+		public int encodedCacheSize = 8*1024*1024;
+		
+		/**
+		 * 等待写入磁盘缓存的bitmap最大字节数,超出时丢弃新的写入
+		 */
+		public int writeQueueSize = 4*1024*1024;
+		
+		/**
+		 * 保存的最近使用的缩略图个数上限,重启后用于预热内存缓存,不大于0时不保存
+		 */
+		public int hotSetSize = 100;
+		
+	}
+	
+	//最近使用的缩略图列表,保存在磁盘缓存目录中
+	private static final String HOT_SET_FILE = "hotset";
+	
+	private static final int HOT_SET_MAGIC = 0x484f5431;
+	
+	/**
+	 * 内存缓存的key,包含图片和尺寸
+	 */
+	private static class MemoryKey {
+		
+		private String key;
+		
+		//原图为null
+		private Size size;
+		
+		public MemoryKey(String key, Size size) {
+			this.key = key;
+			this.size = size;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(this == o){
+				return true;
+			}
+			if(!(o instanceof MemoryKey)){
+				return false;
+			}
+			MemoryKey another = (MemoryKey) o;
+			return key.equals(another.key) && (size == null ? another.size == null : size.equals(another.size));
+		}
+		
+		@Override
+		public int hashCode() {
+			return key.hashCode() * 31 + (size == null ? 0 : size.hashCode());
+		}
+		
+	}
+	
+	/**
+	 * 按照对象比较的bitmap弱引用,作为引用计数的key
+	 */
+	private static class BitmapKey extends WeakReference<Bitmap> {
+		
+		private final int hash;
+		
+		public BitmapKey(Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+			super(bitmap, queue);
+			hash = System.identityHashCode(bitmap);
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(this == o){
+				return true;
+			}
+			if(!(o instanceof BitmapKey)){
+				return false;
+			}
+			Bitmap bitmap = get();
+			return bitmap != null && bitmap == ((BitmapKey) o).get();
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+	}
+	
+	/**
+	 * 一个bitmap的引用计数,在内存缓存中时缓存也持有一个引用
+	 * 计数减到0后标记为-1,之后不能再引用,bitmap可能已经放入复用池
+	 */
+	private static class Reference {
+		
+		private final BitmapKey key;
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		//放入过内存缓存,所有引用释放后放入复用池
+		private volatile boolean cached;
+		
+		//被lru淘汰后在弱缓存中的key
+		private volatile MemoryKey weakKey;
+		
+		public Reference(Bitmap bitmap, ReferenceQueue<Bitmap> queue) {
+			key = new BitmapKey(bitmap, queue);
+		}
+		
+		/**
+		 * 增加引用
+		 * @return 已经释放时返回false
+		 */
+		public boolean retain(){
+			while(true){
+				int current = count.get();
+				if(current < 0){
+					return false;
+				}
+				if(count.compareAndSet(current, current + 1)){
+					return true;
+				}
+			}
+		}
+		
+		/**
+		 * 减少引用
+		 * @return 减到0并标记为已释放时返回true
+		 */
+		public boolean release(){
+			while(true){
+				int current = count.get();
+				if(current <= 0){
+					return false;
+				}
+				if(count.compareAndSet(current, current - 1)){
+					//减到0之后其他线程仍可能再引用,标记成功才算释放
+					return current == 1 && count.compareAndSet(0, -1);
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * 内存整理监听,用于统计不同设备上的整理情况,调整缓存大小
+	 */
+	public static interface OnTrimListener {
+		
+		/**
+		 * 整理完成后回调
+		 * @param level 整理级别,同{@link ComponentCallbacks2}
+		 * @param memoryBefore 整理前内存缓存的字节数
+		 * @param memoryAfter 整理后内存缓存的字节数
+		 * @param poolBefore 整理前复用池的字节数
+		 * @param poolAfter 整理后复用池的字节数
+		 */
+		public void onTrim(int level,int memoryBefore,int memoryAfter,int poolBefore,int poolAfter);
+		
 	}
 	
 	private Context context;
 	
 	private CacheParams cacheParams;
 	
-	//Lru缓存器
-	private LruCache<String, Bitmap> memoryCache;
+	//应用可用内存,单位MB
+	private int memoryClass;
+	
+	private OnTrimListener onTrimListener;
+	
+	private int trimCount = 0;
+	
+	private long trimmedBytes = 0;
+	
+	//Lru缓存器,读取不加锁;引用计数在每个bitmap上,弱缓存在后台恢复,UI线程查找不会等待解码线程或淘汰
+	private ConcurrentLruCache<MemoryKey, Bitmap> memoryCache;
+	
+	//每张图片在内存缓存中的缩略图尺寸
+	private Map<String, List<Size>> variants = new HashMap<String, List<Size>>();
+	
+	//bitmap复用池
+	private BitmapPool bitmapPool;
+	
+	//压缩数据的内存缓存,key同磁盘缓存
+	private EncodedCache encodedCache;
+	
+	//缩略图的磁盘缓存,打开失败时为null
+	private DiskStore diskCache;
+	
+	//下载的原图的磁盘缓存,打开失败时为null
+	private DiskLruCache httpDiskCache;
+	
+	//正在显示或即将显示的bitmap的引用计数,被引用的bitmap从内存缓存移除时不能放入复用池
+	//按bitmap对象查找,弱引用key,视图被回收时不会泄漏
+	private final ConcurrentHashMap<BitmapKey, Reference> references = new ConcurrentHashMap<BitmapKey, Reference>();
+	
+	//已被回收的bitmap的key,访问引用计数时清理
+	private final ReferenceQueue<Bitmap> collectedBitmaps = new ReferenceQueue<Bitmap>();
+	
+	//被lru淘汰但仍在显示的bitmap,再次请求时直接使用并在后台恢复到lru中,不用重新解码;所有引用释放后放入复用池
+	private final ConcurrentHashMap<MemoryKey, Reference> weakCache = new ConcurrentHashMap<MemoryKey, Reference>();
+	
+	//弱缓存超过该数量时清理已被回收的条目
+	private volatile int weakCacheSweepSize = 64;
+	
+	//等待在后台恢复到lru的弱缓存key,相同key只恢复一次
+	private final ConcurrentHashMap<MemoryKey, Boolean> pendingRevivals = new ConcurrentHashMap<MemoryKey, Boolean>();
+	
+	//后台低优先级任务的单线程,不占用加载线程
+	private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "ImageCache-background");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+	
+	//等待写入磁盘缓存的bitmap,key为磁盘缓存key,相同key的写入合并;写入完成后才移除
+	private Map<String, Bitmap> pendingWrites = new LinkedHashMap<String, Bitmap>();
+	
+	//等待写入的bitmap字节数
+	private int pendingWriteBytes = 0;
+	
+	//队列已满被丢弃的写入次数
+	private long droppedWrites = 0;
+	
+	private boolean writePaused = false;
+	
+	//第一次写入时启动
+	private WriteThread writeThread;
+	
+	//等待写入的最近使用列表,多次保存只写入最后一次的;读写文件都在后台线程中进行,不用加锁
+	private final AtomicReference<List<MemoryKey>> pendingHotSet = new AtomicReference<List<MemoryKey>>();
+	
+	/**
+	 * 磁盘缓存写入线程,在后台压缩保存,不占用解码线程
+	 */
+	private class WriteThread extends Thread {
+		
+		public WriteThread() {
+			super("ImageCache-write");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+		
+		@Override
+		public void run() {
+			while(true){
+				String diskKey;
+				Bitmap bitmap;
+				synchronized (pendingWrites) {
+					while(pendingWrites.isEmpty() || writePaused){
+						try {
+							pendingWrites.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					Map.Entry<String, Bitmap> entry = pendingWrites.entrySet().iterator().next();
+					diskKey = entry.getKey();
+					bitmap = entry.getValue();
+				}
+				int bytes = Util.getBitmapSize(bitmap);
+				try{
+					save(diskKey, bitmap);
+				}catch (RuntimeException e) {
+					LogUtils.e(TAG, "write disk cache error", e);
+				}finally{
+					synchronized (pendingWrites) {
+						pendingWrites.remove(diskKey);
+						pendingWriteBytes -= bytes;
+					}
+					release(bitmap);
+				}
+			}
+		}
+		
+	}
 	
 	private ImageCache(Context context,CacheParams cacheParams) {
 		this.cacheParams = cacheParams;
@@ -102,125 +448,894 @@ public class ImageCache {
 			cacheParams.diskDir = getDiskCacheDir(context, "imageloader");	
 			LogUtils.d(TAG, "cacheDir"+cacheParams.diskDir);
 		}
-		if(!cacheParams.diskDir.exists()){
-			cacheParams.diskDir.mkdirs();
+		if(cacheParams.httpDir == null){
+			cacheParams.httpDir = getDiskCacheDir(context, "http");
+		}
+		if(cacheParams.segmentStore){
+			diskCache = openSegmentStore(cacheParams.diskDir, cacheParams.diskCacheSize);
+		}else{
+			diskCache = openDiskCache(cacheParams.diskDir, cacheParams.diskCacheSize);
+		}
+		httpDiskCache = openDiskCache(cacheParams.httpDir, cacheParams.httpCacheSize);
+		memoryClass = getMemoryClass(context);
+		if(cacheParams.cacheSize <= 0){
+			cacheParams.cacheSize = Math.round(cacheParams.memoryPercent * memoryClass * 1024 * 1024);
 		}
-		memoryCache = new LruCache<String, Bitmap>(cacheParams.cacheSize){
+		LogUtils.d(TAG, "memoryClass:"+memoryClass+",cacheSize:"+cacheParams.cacheSize);
+		if(Util.hasIceCreamSandwich()){
+			registerTrimCallbacks();
+		}
+		bitmapPool = new BitmapPool(cacheParams.poolSize);
+		if(cacheParams.encodedCacheSize > 0){
+			encodedCache = new EncodedCache(cacheParams.encodedCacheSize);
+		}
+		FrequencySketch sketch = null;
+		if(cacheParams.frequencyAdmission){
+			//按照平均128*128的RGB_565缩略图估计条目数
+			sketch = new FrequencySketch(cacheParams.cacheSize / (128 * 128 * 2));
+		}
+		memoryCache = new ConcurrentLruCache<MemoryKey, Bitmap>(cacheParams.cacheSize, sketch){
 			@Override
-			protected int sizeOf(String key, Bitmap value) {
+			protected int sizeOf(MemoryKey key, Bitmap value) {
 				// TODO Auto-generated method stub
 				return Util.getBitmapSize(value);
 			}
+			
+			@Override
+			protected void entryRemoved(boolean evicted, MemoryKey key, Bitmap oldValue, Bitmap newValue) {
+				if(newValue == null){
+					removeVariant(key);
+				}
+				if(oldValue != newValue){
+					Reference reference = references.get(new BitmapKey(oldValue, null));
+					if(reference == null){
+						return;
+					}
+					//先放入弱缓存,释放缓存的引用后没有其他引用时再移除
+					if(evicted){
+						addToWeakCache(key, reference);
+					}
+					release(oldValue, reference);
+				}
+			}
 		};
 		
 	}
+	
+	/**
+	 * 打开段文件存储
+	 * @param directory
+	 * @param maxSize
+	 * @return 失败时返回null,例如存储卡不可用
+	 */
+	private static SegmentStore openSegmentStore(File directory,long maxSize){
+		try {
+			return SegmentStore.open(directory, maxSize);
+		} catch (IOException e) {
+			LogUtils.e(TAG, "open segment store error:"+directory, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * 打开每个条目一个文件的磁盘缓存
+	 * @param directory
+	 * @param maxSize
+	 * @return 失败时返回null,例如存储卡不可用
+	 */
+	private static DiskLruCache openDiskCache(File directory,long maxSize){
+		try {
+			return DiskLruCache.open(directory, maxSize);
+		} catch (IOException e) {
+			LogUtils.e(TAG, "open disk cache error:"+directory, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * 应用可用内存,取堆大小等级和虚拟机最大内存中的较小者
+	 * @param context
+	 * @return 单位MB
+	 */
+	public static int getMemoryClass(Context context){
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024 / 1024);
+		return Math.min(activityManager.getMemoryClass(), maxMemory);
+	}
+	
+	/**
+	 * 注册系统的内存整理回调
+	 */
+	@TargetApi(14)
+	private void registerTrimCallbacks(){
+		context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+			
+			public void onTrimMemory(int level) {
+				trimMemory(level);
+			}
+			
+			public void onLowMemory() {
+				trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+			}
+			
+			public void onConfigurationChanged(Configuration newConfig) {
+			}
+		});
+	}
+	
+	/**
+	 * 根据内存紧张程度整理内存缓存和复用池,API 14以下需要在onLowMemory中手动调用
+	 * 后台被杀的风险大或者运行时内存严重不足时全部清空,内存较低时清掉一半,界面隐藏时只整理复用池;
+	 * 仍在显示的bitmap会进入弱缓存,不会被回收
+	 * @param level 同{@link ComponentCallbacks2}的级别
+	 */
+	public void trimMemory(int level){
+		//进入后台时在整理之前保存最近使用的缩略图
+		if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN){
+			saveHotSet();
+		}
+		int memoryBefore = memoryCache.size();
+		int poolBefore = bitmapPool.size();
+		if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL){
+			memoryCache.evictAll();
+			bitmapPool.clear();
+			if(encodedCache != null){
+				encodedCache.clear();
+			}
+		}else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW){
+			memoryCache.trimToSize(memoryCache.maxSize() / 2);
+			bitmapPool.clear();
+			if(encodedCache != null){
+				encodedCache.trimToSize(encodedCache.maxSize() / 2);
+			}
+		}else if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE){
+			bitmapPool.trimToSize(bitmapPool.maxSize() / 2);
+		}
+		int memoryAfter = memoryCache.size();
+		int poolAfter = bitmapPool.size();
+		OnTrimListener listener;
+		synchronized (this) {
+			trimCount++;
+			trimmedBytes += Math.max(0, memoryBefore - memoryAfter) + Math.max(0, poolBefore - poolAfter);
+			listener = onTrimListener;
+		}
+		LogUtils.d(TAG, "trim level:"+level+",memory:"+memoryBefore+"->"+memoryAfter+",pool:"+poolBefore+"->"+poolAfter);
+		if(listener != null){
+			listener.onTrim(level, memoryBefore, memoryAfter, poolBefore, poolAfter);
+		}
+	}
+	
+	/**
+	 * 在后台线程保存内存缓存中最近使用的缩略图的key和尺寸,最多占内存缓存的一半,下次启动时用于{@link #prewarm()}
+	 * 进入后台时自动调用,也可以在退出时调用;列表在调用时取得,还没写入时再次调用只写入新的列表
+	 */
+	public void saveHotSet(){
+		if(cacheParams.hotSetSize <= 0){
+			return;
+		}
+		final List<MemoryKey> keys = new ArrayList<MemoryKey>();
+		List<Map.Entry<MemoryKey, Bitmap>> entries = new ArrayList<Map.Entry<MemoryKey,Bitmap>>(memoryCache.snapshot().entrySet());
+		long bytes = 0;
+		//从最近访问的开始
+		for(int i = entries.size() - 1;i >= 0 && keys.size() < cacheParams.hotSetSize;i--){
+			Map.Entry<MemoryKey, Bitmap> entry = entries.get(i);
+			if(entry.getKey().size == null){
+				continue;
+			}
+			bytes += Util.getBitmapSize(entry.getValue());
+			if(bytes > memoryCache.maxSize() / 2){
+				break;
+			}
+			keys.add(entry.getKey());
+		}
+		if(pendingHotSet.getAndSet(keys) != null){
+			return;
+		}
+		backgroundExecutor.execute(new Runnable() {
+			
+			public void run() {
+				writeHotSet(pendingHotSet.getAndSet(null));
+			}
+		});
+	}
+	
+	/**
+	 * 写入临时文件后替换
+	 * @param keys
+	 */
+	private void writeHotSet(List<MemoryKey> keys){
+		File file = new File(cacheParams.diskDir, HOT_SET_FILE);
+		File tmp = new File(cacheParams.diskDir, HOT_SET_FILE + ".tmp");
+		DataOutputStream output = null;
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			output.writeInt(HOT_SET_MAGIC);
+			output.writeInt(keys.size());
+			for(MemoryKey key : keys){
+				output.writeUTF(key.key);
+				output.writeInt(key.size.width);
+				output.writeInt(key.size.height);
+			}
+			output.close();
+			output = null;
+			if(!tmp.renameTo(file)){
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch (IOException e) {
+			LogUtils.e(TAG, "write hot set error", e);
+		} finally {
+			if(output != null){
+				try {
+					output.close();
+				} catch (IOException e) {
+				}
+				tmp.delete();
+			}
+		}
+	}
+	
+	/**
+	 * 读取保存的最近使用的缩略图
+	 * @return 从最近访问的开始,没有时返回空列表
+	 */
+	private List<MemoryKey> readHotSet(){
+		List<MemoryKey> keys = new ArrayList<MemoryKey>();
+		File file = new File(cacheParams.diskDir, HOT_SET_FILE);
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if(input.readInt() != HOT_SET_MAGIC){
+				return keys;
+			}
+			int count = input.readInt();
+			for(int i = 0;i < count;i++){
+				String key = input.readUTF();
+				keys.add(new MemoryKey(key, new Size(input.readInt(), input.readInt())));
+			}
+		} catch (IOException e) {
+			//没有保存过或者文件不完整,使用已读到的部分
+		} finally {
+			if(input != null){
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * 按上次保存的最近使用列表,从磁盘缓存预热内存缓存,立即返回
+	 * 在低优先级的后台线程中逐个读取解码,最近使用的先加载,内存中已有的跳过;启动时调用,缩短第一屏的显示时间
+	 * 每个缩略图单独排队,期间后台的其他任务不用等待预热全部完成
+	 */
+	public void prewarm(){
+		backgroundExecutor.execute(new Runnable() {
+			
+			public void run() {
+				List<MemoryKey> keys = readHotSet();
+				if(!keys.isEmpty()){
+					backgroundExecutor.execute(new Prewarm(keys));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * 预热一个缩略图后把下一个重新排队
+	 */
+	private class Prewarm implements Runnable {
+		
+		private final List<MemoryKey> keys;
+		
+		private int next = 0;
+		
+		public Prewarm(List<MemoryKey> keys) {
+			this.keys = keys;
+		}
+		
+		public void run() {
+			if(!prewarm(keys.get(next++))){
+				return;
+			}
+			if(next < keys.size()){
+				backgroundExecutor.execute(this);
+			}else{
+				LogUtils.d(TAG, "prewarm "+keys.size());
+			}
+		}
+		
+	}
+	
+	/**
+	 * 从磁盘缓存加载一个缩略图到内存缓存
+	 * @param memoryKey
+	 * @return 内存不足时返回false,停止预热
+	 */
+	private boolean prewarm(MemoryKey memoryKey){
+		//预热不算访问
+		if(memoryCache.peek(memoryKey) != null){
+			return true;
+		}
+		try{
+			ByteBuffer data = readDiskCache(memoryKey.key, memoryKey.size);
+			Bitmap bitmap = data == null ? null : decodeDiskCache(data, memoryKey.size, null);
+			if(bitmap != null && cache(memoryKey, bitmap) != null){
+				//同时被正常加载了,没有其他引用
+				bitmapPool.put(bitmap);
+			}
+			return true;
+		}catch(OutOfMemoryError e){
+			LogUtils.w(TAG, "prewarm oom");
+			return false;
+		}
+	}
+	
+	private MemoryKey getMemoryKey(String key,Size size){
+		return new MemoryKey(key, size == null ? null : size.bucket());
+	}
+	
+	private void addVariant(MemoryKey key){
+		if(key.size == null){
+			return;
+		}
+		synchronized (variants) {
+			List<Size> sizes = variants.get(key.key);
+			if(sizes == null){
+				sizes = new ArrayList<Size>(2);
+				variants.put(key.key, sizes);
+			}
+			if(!sizes.contains(key.size)){
+				sizes.add(key.size);
+			}
+		}
+	}
+	
+	private void removeVariant(MemoryKey key){
+		if(key.size == null){
+			return;
+		}
+		synchronized (variants) {
+			List<Size> sizes = variants.get(key.key);
+			if(sizes != null){
+				sizes.remove(key.size);
+				if(sizes.isEmpty()){
+					variants.remove(key.key);
+				}
+			}
+		}
+	}
 
+	/**
+	 * 添加原图到内存缓存
+	 * @param key
+	 * @param bitmap
+	 */
 	public void addBitmapToMemoryCache(String key,Bitmap bitmap){
+		addBitmapToMemoryCache(key, null, bitmap);
+	}
+	
+	/**
+	 * 添加内存缓存
+	 * @param key
+	 * @param size 缩略图尺寸,原图为null
+	 * @param bitmap
+	 */
+	public void addBitmapToMemoryCache(String key,Size size,Bitmap bitmap){
 		if(bitmap != null && !bitmap.isRecycled()){
-			if(memoryCache.get(key) == null){
-				memoryCache.put(key, bitmap);
-			}
+			cache(getMemoryKey(key, size), bitmap);
 		}
 	}
 	
-	public void addBitmapToDiskCache(String key,Bitmap bitmap){
+	/**
+	 * 放入内存缓存,成功时缓存持有一个引用
+	 * @param memoryKey
+	 * @param bitmap
+	 * @return 已有的值,放入成功时返回null
+	 */
+	private Bitmap cache(MemoryKey memoryKey,Bitmap bitmap){
+		Reference reference = retainReference(bitmap);
+		Bitmap existing = memoryCache.putIfAbsent(memoryKey, bitmap);
+		if(existing != null){
+			release(bitmap, reference);
+			return existing;
+		}
+		reference.cached = true;
+		addVariant(memoryKey);
+		return null;
+	}
+	
+	/**
+	 * 添加磁盘缓存,放入写入队列后立即返回
+	 * @param key
+	 * @param bitmap
+	 * @return 是否进入写入队列
+	 */
+	public boolean addBitmapToDiskCache(String key,Bitmap bitmap){
 		if(bitmap != null && !bitmap.isRecycled()){
-			final File file = getDiskCacheFile(key,new Size(bitmap.getWidth(), bitmap.getHeight()));
-			if(!file.exists()){
-				save(file, bitmap);
-			}
+			return enqueueWrite(getDiskKey(key, new Size(bitmap.getWidth(), bitmap.getHeight())), bitmap);
 		}
+		return false;
 	}
 	
 	/***
-	 * 添加缓存,包括内存缓存和磁盘缓存
+	 * 添加缓存,包括内存缓存和磁盘缓存,磁盘缓存异步写入
 	 * @param key 
 	 * @param bitmap
 	 */
 	public void addBitmapToCache(String key,final Bitmap bitmap){
 		if(bitmap != null && !bitmap.isRecycled()){
-			if(memoryCache.get(key) == null){
-				memoryCache.put(key, bitmap);
+			addBitmapToMemoryCache(key, new Size(bitmap.getWidth(), bitmap.getHeight()), bitmap);
+			enqueueWrite(getDiskKey(key, new Size(bitmap.getWidth(), bitmap.getHeight())), bitmap);
+		}
+	}
+	
+	/**
+	 * 放入写入队列,写入完成前bitmap被引用,不会放入复用池
+	 * @param diskKey
+	 * @param bitmap
+	 * @return 已缓存,相同key正在等待写入或者队列已满时返回false
+	 */
+	private boolean enqueueWrite(String diskKey,Bitmap bitmap){
+		if(diskCache != null && diskCache.contains(diskKey)){
+			return false;
+		}
+		int bytes = Util.getBitmapSize(bitmap);
+		synchronized (pendingWrites) {
+			if(pendingWrites.containsKey(diskKey)){
+				return false;
+			}
+			//写入跟不上时丢弃,下次显示时重新解码再写入;队列为空时总是接受
+			if(!pendingWrites.isEmpty() && pendingWriteBytes + bytes > cacheParams.writeQueueSize){
+				droppedWrites++;
+				LogUtils.d(TAG, "write queue full, drop "+diskKey);
+				return false;
 			}
-			final File file = getDiskCacheFile(key,new Size(bitmap.getWidth(), bitmap.getHeight()));
-			if(!file.exists()){
-				save(file, bitmap);
+			retain(bitmap);
+			pendingWrites.put(diskKey, bitmap);
+			pendingWriteBytes += bytes;
+			if(writeThread == null){
+				writeThread = new WriteThread();
+				writeThread.start();
 			}
+			pendingWrites.notifyAll();
+		}
+		return true;
+	}
+	
+	/**
+	 * 暂停或恢复磁盘缓存写入,例如快速滑动时让出IO;暂停期间队列满后丢弃新的写入
+	 * @param paused
+	 */
+	public void setWritePaused(boolean paused) {
+		synchronized (pendingWrites) {
+			writePaused = paused;
+			pendingWrites.notifyAll();
+		}
+	}
+	
+	/**
+	 * 等待写入磁盘缓存的个数
+	 * @return
+	 */
+	public int getPendingWriteCount() {
+		synchronized (pendingWrites) {
+			return pendingWrites.size();
+		}
+	}
+	
+	/**
+	 * 写入队列已满被丢弃的写入次数
+	 * @return
+	 */
+	public long getDroppedWriteCount() {
+		synchronized (pendingWrites) {
+			return droppedWrites;
 		}
 	}
 	
 	/**
 	 * 获取内存缓存
+	 * 返回的bitmap没有被引用,随时可能被放入复用池,要显示时使用{@link #acquireBitmapFromMemoryCache(String, Size)}
 	 * @param key
-	 * @param size
+	 * @param size 缩略图尺寸,原图为null
 	 * @return
 	 */
 	public Bitmap getBitmapFromMemoryCache(String key,Size size){
-		return memoryCache.get(key);
+		MemoryKey memoryKey = getMemoryKey(key, size);
+		Bitmap bitmap = memoryCache.get(memoryKey);
+		if(bitmap != null){
+			return bitmap;
+		}
+		Reference reference = weakCache.get(memoryKey);
+		bitmap = reference == null ? null : reference.key.get();
+		if(bitmap == null || bitmap.isRecycled()){
+			return null;
+		}
+		revive(memoryKey);
+		return bitmap;
 	}
 	
 	/**
-	 * 从磁盘中获取缓存图片
+	 * 是否在内存缓存中,不算访问,不改变淘汰顺序,也不从弱缓存中恢复
 	 * @param key
-	 * @param Size
-	 * @param bitmapOptions
+	 * @param size 缩略图尺寸,原图为null
 	 * @return
 	 */
-	public Bitmap getBitmapFromDiskCache(String key,Size Size,Options bitmapOptions){
-		Bitmap bitmap = null;
-		File diskCacheFile = getDiskCacheFile(key,Size);
-		if(diskCacheFile.exists()){
-			if(bitmapOptions == null){
-				 bitmapOptions = new BitmapFactory.Options();
-			}
-			bitmapOptions.inJustDecodeBounds = false;
-			bitmapOptions.inPreferredConfig = Bitmap.Config.RGB_565; 
-			bitmapOptions.inPurgeable = true;
-			bitmapOptions.inInputShareable = true;
-			return BitmapFactory.decodeFile(diskCacheFile.toString(),bitmapOptions);
+	public boolean isInMemoryCache(String key,Size size){
+		return memoryCache.peek(getMemoryKey(key, size)) != null;
+	}
+	
+	/**
+	 * 获取内存缓存并增加引用,用完后需要调用{@link #release(Bitmap)}
+	 * @param key
+	 * @param size 缩略图尺寸,原图为null
+	 * @return
+	 */
+	public Bitmap acquireBitmapFromMemoryCache(String key,Size size){
+		return acquire(getMemoryKey(key, size));
+	}
+	
+	/**
+	 * 查找并引用,不加锁;弱缓存命中时直接使用,恢复到lru在后台进行
+	 * @param memoryKey
+	 * @return
+	 */
+	private Bitmap acquire(MemoryKey memoryKey){
+		Bitmap bitmap = memoryCache.get(memoryKey);
+		if(bitmap != null){
+			//引用之前可能已被淘汰并放入复用池,此时计数已经释放或属于复用后的新图片,引用之后仍在缓存中才是安全的
+			Reference reference = references.get(new BitmapKey(bitmap, null));
+			if(reference != null && reference.retain()){
+				if(memoryCache.peek(memoryKey) == bitmap){
+					return bitmap;
+				}
+				release(bitmap, reference);
+			}
 		}
+		Reference reference = weakCache.get(memoryKey);
+		bitmap = reference == null ? null : reference.key.get();
+		//计数对象和这一次的bitmap对应,放入复用池前已经释放,引用成功说明还没有被复用
+		if(bitmap == null || bitmap.isRecycled() || !reference.retain()){
+			return null;
+		}
+		revive(memoryKey);
 		return bitmap;
 	}
 	
+	/**
+	 * 增加bitmap的引用,被引用的bitmap不会放入复用池
+	 * @param bitmap
+	 */
+	public void retain(Bitmap bitmap){
+		retainReference(bitmap);
+	}
 	
 	/**
-	 * 获取文件名,不同的尺寸图片会不一样
-	 * @param name
-	 * @param size
+	 * 增加引用,计数不存在或者已经释放时重新创建
+	 * @param bitmap
 	 * @return
 	 */
-	private String getFileName(String name,Size size){
-		String filename = name;
-		if(size != null){
-			filename += "_"+size.width+"*"+size.height;
+	private Reference retainReference(Bitmap bitmap){
+		expungeCollectedBitmaps();
+		BitmapKey key = new BitmapKey(bitmap, null);
+		while(true){
+			Reference reference = references.get(key);
+			if(reference != null && reference.retain()){
+				return reference;
+			}
+			Reference created = new Reference(bitmap, collectedBitmaps);
+			created.count.set(1);
+			if(reference == null ? references.putIfAbsent(created.key, created) == null : references.replace(key, reference, created)){
+				return created;
+			}
+		}
+	}
+	
+	/**
+	 * 释放bitmap的引用
+	 * @param bitmap
+	 */
+	public void release(Bitmap bitmap){
+		Reference reference = references.get(new BitmapKey(bitmap, null));
+		if(reference != null){
+			release(bitmap, reference);
+		}
+	}
+	
+	/**
+	 * 释放引用,最后一个引用释放后移除计数,放入过内存缓存的bitmap放入复用池
+	 * @param bitmap
+	 * @param reference
+	 */
+	private void release(Bitmap bitmap,Reference reference){
+		if(!reference.release()){
+			return;
+		}
+		references.remove(reference.key, reference);
+		MemoryKey weakKey = reference.weakKey;
+		if(weakKey != null){
+			weakCache.remove(weakKey, reference);
+		}
+		//只用于显示没有放入缓存的bitmap由其他代码管理
+		if(reference.cached){
+			bitmapPool.put(bitmap);
+		}
+	}
+	
+	/**
+	 * 清理已被回收的bitmap的计数
+	 */
+	private void expungeCollectedBitmaps(){
+		java.lang.ref.Reference<? extends Bitmap> key;
+		while((key = collectedBitmaps.poll()) != null){
+			references.remove(key);
+		}
+	}
+	
+	/**
+	 * 在后台把弱缓存中的bitmap恢复到lru,淘汰和放入复用池都不在查找线程上进行
+	 * @param memoryKey
+	 */
+	private void revive(final MemoryKey memoryKey){
+		if(pendingRevivals.putIfAbsent(memoryKey, Boolean.TRUE) != null){
+			return;
+		}
+		backgroundExecutor.execute(new Runnable() {
+			
+			public void run() {
+				pendingRevivals.remove(memoryKey);
+				Reference reference = weakCache.get(memoryKey);
+				Bitmap bitmap = reference == null ? null : reference.key.get();
+				//所有引用已经释放的不再恢复
+				if(bitmap == null || !reference.retain()){
+					return;
+				}
+				if(memoryCache.putIfAbsent(memoryKey, bitmap) != null){
+					//其他线程已经放入了新的,弱缓存保持原样
+					release(bitmap, reference);
+					return;
+				}
+				weakCache.remove(memoryKey, reference);
+				addVariant(memoryKey);
+			}
+		});
+	}
+	
+	/**
+	 * 加入弱缓存
+	 * @param memoryKey
+	 * @param reference
+	 */
+	private void addToWeakCache(MemoryKey memoryKey,Reference reference){
+		reference.weakKey = memoryKey;
+		weakCache.put(memoryKey, reference);
+		if(weakCache.size() > weakCacheSweepSize){
+			Iterator<Reference> iterator = weakCache.values().iterator();
+			while(iterator.hasNext()){
+				if(iterator.next().key.get() == null){
+					iterator.remove();
+				}
+			}
+			weakCacheSweepSize = Math.max(64, weakCache.size() * 2);
 		}
-		return ""+filename.hashCode();
 	}
 	
 	/**
-	 * 获取磁盘缓存文件路径
+	 * 从内存中更大的缩略图缩小得到需要的尺寸,并加入内存缓存
+	 * 缩略图都是原图中间的正方形区域,所以可以直接缩放;
+	 * 返回的bitmap已被引用,用完后需要调用{@link #release(Bitmap)}
+	 * @param key
+	 * @param size 缩略图尺寸
+	 * @return 没有更大的缩略图时返回null
+	 */
+	public Bitmap acquireScaledBitmapFromMemoryCache(String key,Size size){
+		if(size == null){
+			return null;
+		}
+		size = size.bucket();
+		List<Size> candidates;
+		synchronized (variants) {
+			List<Size> sizes = variants.get(key);
+			if(sizes == null){
+				return null;
+			}
+			candidates = new ArrayList<Size>(sizes);
+		}
+		//选择满足要求的最小尺寸,查找时同时引用,避免缩放期间源图被放入复用池
+		Collections.sort(candidates, new Comparator<Size>() {
+
+			public int compare(Size lhs, Size rhs) {
+				return lhs.width * lhs.height - rhs.width * rhs.height;
+			}
+		});
+		Bitmap source = null;
+		for(Size candidate : candidates){
+			if(candidate.width < size.width || candidate.height < size.height || candidate.equals(size)){
+				continue;
+			}
+			source = acquire(new MemoryKey(key, candidate));
+			if(source != null){
+				break;
+			}
+		}
+		if(source == null){
+			return null;
+		}
+		try{
+			Bitmap bitmap = bitmapPool.get(size.width, size.height, source.getConfig());
+			if(bitmap == null){
+				bitmap = Bitmap.createBitmap(size.width, size.height, source.getConfig() == null ? Bitmap.Config.RGB_565 : source.getConfig());
+			}
+			Canvas canvas = new Canvas(bitmap);
+			canvas.drawBitmap(source, null, new Rect(0, 0, size.width, size.height), new Paint(Paint.FILTER_BITMAP_FLAG));
+			retain(bitmap);
+			addBitmapToMemoryCache(key, size, bitmap);
+			return bitmap;
+		}finally{
+			release(source);
+		}
+	}
+	
+	/**
+	 * 从磁盘中获取缓存图片
+	 * @param key
+	 * @param Size
+	 * @param bitmapOptions
+	 * @return
+	 */
+	public Bitmap getBitmapFromDiskCache(String key,Size Size,Options bitmapOptions){
+		ByteBuffer data = readDiskCache(key, Size);
+		if(data != null){
+			return decodeDiskCache(data, Size, bitmapOptions);
+		}
+		return null;
+	}
+	
+	/**
+	 * 读取磁盘缓存的图片数据,只做IO不解码
+	 * 磁盘上的数据先映射到内存,未压缩的像素直接返回映射,由解码复制到bitmap,不经过Java堆也不放入压缩数据缓存;
+	 * 压缩数据复制到数组后放入压缩数据缓存
 	 * @param key
 	 * @param size
+	 * @return 未命中返回null
+	 */
+	public ByteBuffer readDiskCache(String key,Size size){
+		String diskKey = getDiskKey(key, size);
+		if(encodedCache != null){
+			byte[] data = encodedCache.get(diskKey);
+			if(data != null){
+				return ByteBuffer.wrap(data);
+			}
+		}
+		ByteBuffer buffer = diskCache == null ? null : diskCache.map(diskKey);
+		if(buffer == null || BitmapUtils.isRaw(buffer)){
+			return buffer;
+		}
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		if(encodedCache != null){
+			encodedCache.put(diskKey, data);
+		}
+		return ByteBuffer.wrap(data);
+	}
+	
+	/**
+	 * 解码磁盘缓存的图片数据
+	 * @param data
+	 * @param bitmapOptions
 	 * @return
 	 */
-	private File getDiskCacheFile(String key,Size size){
-		
-		return new File(cacheParams.diskDir,getFileName(key,size)+"."+cacheParams.format);
+	public Bitmap decodeDiskCache(byte[] data,Options bitmapOptions){
+		return decodeDiskCache(ByteBuffer.wrap(data), null, bitmapOptions);
+	}
+	
+	/**
+	 * 解码磁盘缓存的图片数据,知道尺寸时复用复用池中的bitmap
+	 * @param data
+	 * @param size 缩略图尺寸,原图为null
+	 * @param bitmapOptions
+	 * @return
+	 */
+	public Bitmap decodeDiskCache(byte[] data,Size size,Options bitmapOptions){
+		return decodeDiskCache(ByteBuffer.wrap(data), size, bitmapOptions);
+	}
+	
+	/**
+	 * 解码{@link #readDiskCache(String, Size)}读取的数据,知道尺寸时复用复用池中的bitmap
+	 * @param buffer
+	 * @param size 缩略图尺寸,原图为null
+	 * @param bitmapOptions
+	 * @return
+	 */
+	public Bitmap decodeDiskCache(ByteBuffer buffer,Size size,Options bitmapOptions){
+		//未压缩的像素直接复制到bitmap
+		if(BitmapUtils.isRaw(buffer)){
+			return BitmapUtils.decodeRaw(buffer, bitmapPool);
+		}
+		byte[] data;
+		int offset,length = buffer.remaining();
+		if(buffer.hasArray()){
+			data = buffer.array();
+			offset = buffer.arrayOffset() + buffer.position();
+		}else{
+			data = new byte[length];
+			buffer.duplicate().get(data);
+			offset = 0;
+		}
+		if(bitmapOptions == null){
+			 bitmapOptions = new BitmapFactory.Options();
+		}
+		bitmapOptions.inJustDecodeBounds = false;
+		bitmapOptions.inPreferredConfig = Bitmap.Config.RGB_565; 
+		bitmapOptions.inInputShareable = true;
+		if(size == null){
+			bitmapOptions.inPurgeable = true;
+			return BitmapFactory.decodeByteArray(data, offset, length, bitmapOptions);
+		}
+		//复用的bitmap由复用池管理,不能是purgeable的
+		bitmapOptions.inPurgeable = false;
+		size = size.bucket();
+		bitmapPool.prepare(bitmapOptions, size.width, size.height);
+		Bitmap bitmap;
+		try{
+			bitmap = BitmapFactory.decodeByteArray(data, offset, length, bitmapOptions);
+		}catch(IllegalArgumentException e){
+			//文件中的实际尺寸和规整后的尺寸不一致
+			bitmapPool.reject(bitmapOptions);
+			bitmap = BitmapFactory.decodeByteArray(data, offset, length, bitmapOptions);
+		}
+		if(bitmap == null){
+			bitmapPool.reject(bitmapOptions);
+		}else{
+			BitmapPool.clear(bitmapOptions);
+		}
+		return bitmap;
 	}
 	
 	
+	/**
+	 * 获取磁盘缓存的key,不同的尺寸图片会不一样,磁盘缓存中会转换为SHA-1文件名
+	 * @param name
+	 * @param size
+	 * @return
+	 */
+	private String getDiskKey(String name,Size size){
+		String diskKey = name;
+		if(size != null){
+			size = size.bucket();
+			diskKey += "_"+size.width+"*"+size.height;
+		}
+		return diskKey;
+	}
 	
-	private void save(File file,Bitmap bitmap){
-		try {
-			if(!file.exists()){
-				file.createNewFile();
+	private void save(String diskKey,Bitmap bitmap){
+		//先压缩到内存,同时放入压缩数据缓存
+		byte[] data = cacheParams.rawPixels ? BitmapUtils.encodeRaw(bitmap) : null;
+		boolean raw = data != null;
+		if(!raw){
+			CompressFormat format = cacheParams.format;
+			int quality = cacheParams.quality;
+			if(cacheParams.encodePolicy != null){
+				format = cacheParams.encodePolicy.getFormat(bitmap);
+				quality = cacheParams.encodePolicy.getQuality(bitmap, format);
 			}
-			bitmap.compress(cacheParams.format, cacheParams.quality, new FileOutputStream(file));
-		} catch (FileNotFoundException e) {
-			
-		} catch (IOException e) {
-			e.printStackTrace();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			if(!bitmap.compress(format, quality, buffer)){
+				return;
+			}
+			data = buffer.toByteArray();
+		}
+		//未压缩的像素命中时从映射读取,不占用压缩数据缓存
+		if(encodedCache != null && !raw){
+			encodedCache.put(diskKey, data);
 		}
+		if(diskCache == null){
+			return;
+		}
+		diskCache.write(diskKey, data);
 	}
 	
 	public static File getDiskCacheDir(Context context, String uniqueName) {
@@ -250,5 +1365,57 @@ public class ImageCache {
 		return cacheParams;
 	}
 	
+	public BitmapPool getBitmapPool() {
+		return bitmapPool;
+	}
+	
+	/**
+	 * 缩略图的磁盘缓存
+	 * @return 打开失败时返回null
+	 */
+	public DiskStore getDiskCache() {
+		return diskCache;
+	}
+	
+	/**
+	 * 下载的原图的磁盘缓存
+	 * @return 打开失败时返回null
+	 */
+	public DiskLruCache getHttpDiskCache() {
+		return httpDiskCache;
+	}
+	
+	/**
+	 * 压缩数据的内存缓存
+	 * @return 未启用时返回null
+	 */
+	public EncodedCache getEncodedCache() {
+		return encodedCache;
+	}
+	
+	public int getMemoryClass() {
+		return memoryClass;
+	}
+	
+	/**
+	 * 内存整理的次数
+	 * @return
+	 */
+	public synchronized int getTrimCount() {
+		return trimCount;
+	}
+	
+	/**
+	 * 内存整理释放的总字节数,包括内存缓存和复用池
+	 * @return
+	 */
+	public synchronized long getTrimmedBytes() {
+		return trimmedBytes;
+	}
+	
+	public synchronized void setOnTrimListener(OnTrimListener onTrimListener) {
+		this.onTrimListener = onTrimListener;
+	}
+	
 	
 }
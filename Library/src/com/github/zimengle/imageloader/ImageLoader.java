@@ -2,42 +2,87 @@ package com.github.zimengle.imageloader;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.github.zimengle.downloader.DownloadListener;
 import com.github.zimengle.imageloader.Image.Size;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory.Options;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.view.View;
-import android.view.ViewTreeObserver.OnDrawListener;
+import android.view.View.OnAttachStateChangeListener;
+import android.view.ViewTreeObserver;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.widget.ImageView;
 
 /**
- * 图片加载器,支持多线程并发加载,支持暂停任务
+ * 图片加载器,支持多线程并发加载,支持暂停任务,支持按优先级调度任务
+ * 加载过程分为网络下载,磁盘读取,解码,磁盘写入四个阶段,每个阶段有独立的线程和并发上限
+ * 视图移出窗口的任务在下载,解码之前丢弃,不可见的任务降低优先级
+ * 快速滑动时暂停网络下载和耗时的解码,磁盘缓存命中和小缩略图照常加载
+ * 支持低优先级预加载即将出现的图片,见{@link #prefetch(List, Size, boolean)}
  * @author zhangzimeng<zhangzimeng01@baidu.com>
  *
  */
 public class ImageLoader {
 
 	private static final String TAG = "ImageLoader";
-
-	//任务队列,多线程会同步获取该队列执行
-	private List<WorkItem> queue = new LinkedList<WorkItem>();
 	
-	//用于视图,任务映射,特别是在listview,gridview对象复用的时候,及时终止之前的任务
-	private Map<View, WorkItem> map = new HashMap<View, ImageLoader.WorkItem>();
+	/**
+	 * 滑动状态,与AbsListView.OnScrollListener中的取值一致
+	 */
+	public static final int SCROLL_STATE_IDLE = 0;
+	
+	public static final int SCROLL_STATE_TOUCH_SCROLL = 1;
 	
-	//线程池队列
-	private WorkThread[] threadPool;
+	public static final int SCROLL_STATE_FLING = 2;
+	
+	/**
+	 * 按总数分配线程时的最少线程个数:网络下载,磁盘读取,解码和缓存写入各一个
+	 */
+	public static final int MIN_THREAD_COUNT = 4;
 
+	//网络下载阶段
+	private Stage networkStage;
+	
+	//磁盘缓存读取阶段
+	private Stage diskStage;
+	
+	//解码阶段
+	private Stage decodeStage;
+	
+	//用于视图,目标映射,特别是在listview,gridview对象复用的时候,及时终止之前的任务,目标结束后删除
+	private Map<View, Target> map = new HashMap<View, ImageLoader.Target>();
+	
+	//视图当前显示的由加载器设置的bitmap,持有缓存中的引用,只在UI线程使用
+	private Map<View, Bitmap> displayed = new WeakHashMap<View, Bitmap>();
+	
+	//视图跟踪器,跟踪视图是否在窗口中,是否可见
+	private Map<View, ViewTracker> trackers = new WeakHashMap<View, ImageLoader.ViewTracker>();
+	
+	//计算视图可见区域用,只在UI线程使用
+	private Rect visibleRect = new Rect();
+	
+	//正在进行中的任务,用于合并相同图片相同尺寸的请求
+	private Map<String, WorkItem> inflight = new HashMap<String, ImageLoader.WorkItem>();
+	
 	private Handler handler = new Handler();
 	
 	//图片缓存对象
@@ -51,240 +96,1184 @@ public class ImageLoader {
 
 	private Context context;
 	
-	private boolean pause;
-	
-	private File httpCacheDir;
+	//setHttpCacheDir指定的下载缓存,为null时使用ImageCache的下载缓存
+	private DiskLruCache httpDiskCache;
 	
 	private Options bitmapOptions;
 	
+	private volatile boolean pause;
+	
+	private volatile int scrollState = SCROLL_STATE_IDLE;
+	
+	//快速滑动时推迟的解码任务,滑动停止后按优先级恢复
+	private List<WorkItem> deferred = new ArrayList<WorkItem>();
+	
+	//快速滑动时仍然解码的缩略图面积上限
+	private volatile int flingDecodeArea = 160 * 160;
+	
+	//同时下载的预加载任务上限,保证可见的任务总有空闲的网络线程,只有一个网络线程时为0
+	private int maxPrefetchFetching;
+	
+	//正在下载的预加载任务数
+	private int prefetchFetching = 0;
+	
+	//超出下载上限等待的预加载任务
+	private List<WorkItem> prefetchWaiting = new ArrayList<WorkItem>();
+	
+	//http图片下载的最大段数
+	private volatile int downloadSegments = 1;
+	
+	//下载过程中解码预览的最小间隔,毫秒,0为不生成预览
+	private volatile int previewInterval = 0;
+	
+	//两次预览之间至少新下载的字节数
+	private static final int PREVIEW_MIN_BYTES = 16 * 1024;
+	
+	//没有指定加载尺寸时预览的最大边长
+	private static final int PREVIEW_MAX_SIZE = 256;
+	
 	/**
-	 * 任务线程内部类
-	 * @author zhangzimeng<zhangzimeng01@baidu.com>
-	 *
+	 * 加载请求,用于视图重新加入窗口时重新加载被丢弃的任务,不持有视图
 	 */
-	private class WorkThread extends Thread {
-		
-		//停止线程的标示
-		private boolean stop = false;
+	private static class Request {
+
+		private WorkItemFactory factory;
+
+		private Drawable loadBitmap;
+
+		private LoadListener loadListener;
+
+		private int priority;
+
+		public Request(WorkItemFactory factory, Drawable loadBitmap, LoadListener loadListener, int priority) {
+			this.factory = factory;
+			this.loadBitmap = loadBitmap;
+			this.loadListener = loadListener;
+			this.priority = priority;
+		}
+
+	}
+
+	/**
+	 * 加载目标,每个视图对应一个目标,加载同一张图片的多个目标共享同一个任务
+	 */
+	private class Target {
+
+		private ImageView imageView;
+
+		private LoadListener loadListener;
+
+		private DownloadListener downloadListener;
+
+		private Runnable uiRunnable;
+
+		private volatile boolean cancel = false;
+
+		//视图是否在窗口中
+		private volatile boolean attached = true;
+
+		//视图是否在可见区域内
+		private volatile boolean visible = true;
+
+		private int priority;
+
+		private Request request;
 
-		//当前任务
 		private WorkItem workItem;
-		
-		public WorkThread() {
-			//优先级调至低一级,避免争夺UI线程,导致卡顿
-			setPriority(NORM_PRIORITY - 1);
+
+		//等待在UI线程显示的图片,持有一个引用
+		private Bitmap pending;
+
+		//等待在UI线程显示的预览
+		private Runnable previewRunnable;
+
+		//已经提交了最终的图片,不再显示预览
+		private volatile boolean completed = false;
+
+		public Target(ImageView imageView, Request request) {
+			this.imageView = imageView;
+			this.request = request;
+			this.loadListener = request.loadListener;
+			this.priority = request.priority;
+			if(loadListener instanceof HttpLoaderListener){
+				downloadListener = ((HttpLoaderListener)loadListener).getDownloadListener();
+			}
 		}
 
-		@Override
-		public void run() {
-			while(!stop){
-				//获取任务队列,木有就主动睡掉
-				synchronized (queue) {
-					if(queue.size() == 0 || pause){
-						try {
-							queue.wait();
-						} catch (InterruptedException e) {
+		/**
+		 * 在UI线程中显示图片,并结束目标
+		 * @param bitmap 加载失败时为null
+		 */
+		private void complete(final Bitmap bitmap){
+			completed = true;
+			if(bitmap != null){
+				imageCache.retain(bitmap);
+			}
+			synchronized (this) {
+				pending = bitmap;
+			}
+			uiRunnable = new Runnable() {
+
+				public void run() {
+					Bitmap bitmap = takePending();
+					if(!cancel){
+						if(bitmap != null && !bitmap.isRecycled()){
+							bind(imageView, bitmap);
 						}
-						continue;
-						
+						completeTarget(Target.this);
+					}
+					if(bitmap != null){
+						imageCache.release(bitmap);
 					}
-					workItem = queue.remove(0);
 				}
-				try{
-					workItem.run();
-				}catch(Exception e){
-					LogUtils.e(TAG, "error",e);
-					
+			};
+			handler.post(uiRunnable);
+		}
+
+		/**
+		 * 在UI线程中显示下载过程中的预览,只保留最新的一个,最终的图片显示后不再显示
+		 * 预览不在内存缓存中,替换后由系统回收
+		 * @param bitmap
+		 */
+		private void preview(final Bitmap bitmap){
+			if(completed){
+				return;
+			}
+			Runnable runnable = new Runnable() {
+
+				public void run() {
+					if(!cancel && !completed){
+						bind(imageView, bitmap);
+					}
 				}
-				workItem = null;
-				continue;
-				
+			};
+			synchronized (this) {
+				if(previewRunnable != null){
+					handler.removeCallbacks(previewRunnable);
+				}
+				previewRunnable = runnable;
 			}
+			handler.post(runnable);
 		}
-		
+
+		/**
+		 * 取出等待显示的图片,取出后由调用者释放引用
+		 * @return
+		 */
+		private synchronized Bitmap takePending() {
+			Bitmap bitmap = pending;
+			pending = null;
+			return bitmap;
+		}
+
+		/**
+		 * 更新视图是否在窗口中,UI线程调用
+		 * @param attached
+		 */
+		private void setAttached(boolean attached) {
+			this.attached = attached;
+			if(attached && workItem != null){
+				workItem.promote();
+			}
+		}
+
+		/**
+		 * 更新视图是否可见,UI线程调用
+		 * @param visible
+		 */
+		private void setVisible(boolean visible) {
+			boolean changed = this.visible != visible;
+			this.visible = visible;
+			if(changed && visible && workItem != null){
+				workItem.promote();
+			}
+		}
+
 		/**
-		 * 停止线程
+		 * 取消目标,只有任务没有其他目标时才会真正停止加载
 		 */
-		public void quit(){
-			stop = true;
+		public void cancel() {
+			cancel = true;
+			//从hanlder中删除ui更新
+			if (uiRunnable != null) {
+				handler.removeCallbacks(uiRunnable);
+			}
+			synchronized (this) {
+				if(previewRunnable != null){
+					handler.removeCallbacks(previewRunnable);
+				}
+			}
+			Bitmap bitmap = takePending();
+			if(bitmap != null){
+				imageCache.release(bitmap);
+			}
+			if(loadListener != null){
+				loadListener.cancel();
+			}
 			if(workItem != null){
-				workItem.cancel();
+				workItem.removeTarget(this);
 			}
 		}
-		
-		
+
+		public ImageView getImageView() {
+			return imageView;
+		}
+
 	}
 
 	/**
-	 * 任务内部类
+	 * 任务内部类,同一图片同一尺寸的重复请求会合并到正在执行的任务中,加载完成后分发给所有目标
+	 * 任务依次经过磁盘读取,网络下载(需要时),解码阶段
 	 * @author zhangzimeng<zhangzimeng01@baidu.com>
 	 */
-	private class WorkItem  {
-
-		private ImageView imageView;
+	private class WorkItem implements Scheduler.Task {
 
 		private Image image;
 
-		private Runnable uiRunnable;
+		private Size size;
 		
 		private Options options;
 		
-		private boolean cancel = false;
+		private volatile boolean cancel = false;
 		
-		private LoadListener loadListener;
+		private volatile int priority = Scheduler.PRIORITY_NORMAL;
+		
+		//目标视图都不可见时降低了优先级
+		private volatile boolean demoted = false;
+		
+		//预加载任务,没有目标时也会继续执行
+		private volatile boolean prefetch = false;
+		
+		//预加载是否放入内存缓存
+		private volatile boolean toMemory = false;
+		
+		//是否占用了预加载的下载名额
+		private boolean prefetchFetch = false;
+		
+		//等待该任务结果的目标
+		private List<Target> targets = new ArrayList<Target>();
+		
+		private boolean started = false;
+		
+		private boolean done = false;
+		
+		//任务当前所处的阶段
+		private volatile Stage stage;
 		
-		public WorkItem(ImageView imageView, File localFile,Size size,Options options,LoadListener loadListener) {
+		//从磁盘缓存中读取的图片数据,未压缩的像素是文件的映射
+		private ByteBuffer data;
+		
+		public WorkItem(File localFile,Size size,Options options) {
 			if(size == null){
 				size = ImageLoader.this.size;
 			}
-			if(options == null){
-				options =  ImageLoader.this.bitmapOptions;
+			//相近的尺寸共享缓存
+			if(size != null){
+				size = size.bucket();
+			}
+			if(options == null && ImageLoader.this.bitmapOptions != null){
+				//解码时会修改选项并设置复用的bitmap,每个任务使用自己的副本
+				options = BitmapUtils.copyOptions(ImageLoader.this.bitmapOptions);
 			}
+			this.size = size;
 			this.options = options;
-			this.imageView = imageView;
 			this.image = new LocalImage(context,localFile,size,options);
-			this.loadListener = loadListener;
 		}
 		
-		public WorkItem(ImageView imageView, HttpURLConnection conn,File diskFile,Size size,Options options,HttpLoaderListener loadListener) {
+		public WorkItem(HttpURLConnection conn,File diskFile,Size size,Options options) {
 			if(size == null){
 				size = ImageLoader.this.size;
 			}
-			if(diskFile == null && httpCacheDir != null){
-				diskFile = new File(httpCacheDir,""+conn.getURL().toString().hashCode());
+			//相近的尺寸共享缓存
+			if(size != null){
+				size = size.bucket();
 			}
-			if(options == null){
-				options =  ImageLoader.this.bitmapOptions;
+			if(options == null && ImageLoader.this.bitmapOptions != null){
+				//解码时会修改选项并设置复用的bitmap,每个任务使用自己的副本
+				options = BitmapUtils.copyOptions(ImageLoader.this.bitmapOptions);
 			}
-			this.imageView = imageView;
+			this.size = size;
 			this.options = options;
-			this.image = new HttpImage(context, conn, diskFile, size, options);
-			this.loadListener = loadListener;
-			if(loadListener != null){
-				((HttpImage)image).setDownloadListener(loadListener.getDownloadListener());
+			HttpImage httpImage;
+			if(diskFile == null && httpDiskCache != null){
+				httpImage = new HttpImage(context, conn, httpDiskCache, size, options);
+			}else{
+				httpImage = new HttpImage(context, conn, diskFile, size, options);
+			}
+			httpImage.setDownloadListener(new FanOutDownloadListener());
+			httpImage.setDownloadSegments(downloadSegments);
+			this.image = httpImage;
+		}
+		
+		/**
+		 * 合并请求使用的key,包含图片和尺寸
+		 * @return
+		 */
+		public String getKey() {
+			return image.toString()+"_"+size;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+		
+		/**
+		 * 添加目标
+		 * @param target
+		 * @return 任务已经完成或取消时返回false
+		 */
+		public boolean addTarget(Target target) {
+			boolean start;
+			synchronized (targets) {
+				if(done || cancel){
+					return false;
+				}
+				targets.add(target);
+				target.workItem = this;
+				priority = Math.max(priority, target.priority);
+				start = started;
+			}
+			if(start && target.loadListener != null){
+				target.loadListener.start();
+			}
+			return true;
+		}
+		
+		/**
+		 * 标记为预加载任务
+		 * @param toMemory 是否放入内存缓存
+		 * @return 任务已经完成或取消时返回false
+		 */
+		public boolean addPrefetch(boolean toMemory) {
+			synchronized (targets) {
+				if(done || cancel){
+					return false;
+				}
+				prefetch = true;
+				this.toMemory |= toMemory;
 			}
+			return true;
 		}
 		
+		/**
+		 * 删除目标,没有目标时取消任务,预加载任务降回低优先级继续执行
+		 * @param target
+		 */
+		public void removeTarget(Target target) {
+			synchronized (targets) {
+				targets.remove(target);
+				if(!targets.isEmpty() || done){
+					return;
+				}
+				if(prefetch){
+					priority = Scheduler.PRIORITY_LOW;
+					return;
+				}
+				cancel = true;
+			}
+			cancel();
+		}
 		
+		/**
+		 * 取消预加载,已经有目标等待的任务继续执行
+		 */
+		public void cancelPrefetch() {
+			synchronized (targets) {
+				prefetch = false;
+				if(!targets.isEmpty() || done){
+					return;
+				}
+				cancel = true;
+			}
+			cancel();
+		}
+		
+		/**
+		 * 是否只是预加载,没有目标等待
+		 * @return
+		 */
+		private boolean isPrefetchOnly() {
+			synchronized (targets) {
+				return prefetch && targets.isEmpty();
+			}
+		}
+		
+		private List<Target> getTargets() {
+			synchronized (targets) {
+				return new ArrayList<Target>(targets);
+			}
+		}
 
-		private void run() throws OutOfMemoryError,IOException{
-			
-			//从磁盘缓存中获取图片
-			if(!cancel){
-				if(loadListener != null){
-					loadListener.start();
-				}
-				Bitmap bitmap = imageCache.getBitmapFromDiskCache(image.toString(), size, options);
-				if (bitmap == null) {
-					//加载网络图片
-					bitmap = image.getImage();
-					
-				}
-				final Bitmap bm = bitmap;
-				//图片木有被回收的时候才更新
-				if (bitmap != null && !bm.isRecycled()) {
-					uiRunnable = new Runnable() {
+		/**
+		 * 提交到下一个阶段
+		 * @param stage
+		 */
+		private void submit(Stage stage) {
+			this.stage = stage;
+			stage.submit(this);
+			//提交过程中被取消了
+			if(cancel){
+				stage.remove(this);
+			}
+		}
 
-						public void run() {
-							if(!cancel){
-								imageView.setImageBitmap(bm);	
-							}
+		public void run() throws OutOfMemoryError,IOException{
+			
+			if(cancel){
+				return;
+			}
+			try{
+				Stage stage = this.stage;
+				if(stage == networkStage){
+					if(checkViewport() && acquireFetch()){
+						try{
+							fetch();
+						}finally{
+							releaseFetch();
 						}
-					};
-					handler.post(uiRunnable);
-					if(size == null){
-						imageCache.addBitmapToMemoryCache(image.toString(), bm);
-					}else{
-						imageCache.addBitmapToCache(image.toString(), bm);
 					}
-					
+				}else if(stage == decodeStage){
+					if(checkViewport() && checkScrollState()){
+						decode();
+					}
+				}else{
+					readDiskCache();
 				}
-				if(loadListener != null){
-					loadListener.end();
+			}catch(IOException e){
+				finish(null);
+				throw e;
+			}catch(RuntimeException e){
+				finish(null);
+				throw e;
+			}catch(OutOfMemoryError e){
+				finish(null);
+				throw e;
+			}
+		}
+		
+		/**
+		 * 磁盘读取阶段,命中磁盘缓存或者图片已在本地则交给解码阶段,否则交给网络阶段
+		 * @throws IOException
+		 */
+		private void readDiskCache() throws IOException {
+			synchronized (targets) {
+				started = true;
+			}
+			for(Target target : getTargets()){
+				if(target.loadListener != null){
+					target.loadListener.start();
 				}
 			}
-			
-
+			String key = image.toString();
+			//其他任务可能已经加载过了,或者内存中有更大的尺寸可以直接缩小
+			Bitmap bitmap = imageCache.acquireBitmapFromMemoryCache(key, size);
+			if (bitmap == null) {
+				bitmap = imageCache.acquireScaledBitmapFromMemoryCache(key, size);
+			}
+			if (bitmap != null) {
+				finish(bitmap);
+				return;
+			}
+			data = imageCache.readDiskCache(key, size);
+			//预加载只需要磁盘缓存,已经命中则不用解码
+			if(data != null && !toMemory && finishPrefetch()){
+				data = null;
+				return;
+			}
+			if(data != null || image.isFetched()){
+				submit(decodeStage);
+			}else{
+				submit(networkStage);
+			}
+		}
+		
+		/**
+		 * 下载,解码之前检查目标视图,视图都已移出窗口则丢弃任务,都不可见则降低优先级重新排队
+		 * @return 是否继续执行
+		 */
+		private boolean checkViewport() {
+			if(isPrefetchOnly()){
+				return true;
+			}
+			boolean attached = false,visible = false;
+			for(Target target : getTargets()){
+				if(target.attached){
+					attached = true;
+					visible |= target.visible;
+				}
+			}
+			if(!attached){
+				drop();
+				return false;
+			}
+			if(!visible && !demoted){
+				demoted = true;
+				priority = Scheduler.PRIORITY_LOW;
+				submit(stage);
+				return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * 预加载的下载数量有上限,超出时等待其他预加载下载完成
+		 * @return 是否继续执行
+		 */
+		private boolean acquireFetch() {
+			synchronized (prefetchWaiting) {
+				//加锁后检查,新增的目标在加入之后才会唤醒等待的任务
+				if(!isPrefetchOnly()){
+					return true;
+				}
+				if(prefetchFetching >= maxPrefetchFetching){
+					prefetchWaiting.add(this);
+					return false;
+				}
+				prefetchFetching++;
+				prefetchFetch = true;
+			}
+			return true;
+		}
+		
+		/**
+		 * 等待下载名额的预加载任务有了目标后立即重新提交,不再等待其他预加载下载完成
+		 */
+		private void unpark() {
+			boolean waiting;
+			synchronized (prefetchWaiting) {
+				waiting = prefetchWaiting.remove(this);
+			}
+			if(waiting){
+				submit(networkStage);
+			}
+		}
+		
+		/**
+		 * 释放预加载的下载名额,唤醒等待的预加载任务
+		 */
+		private void releaseFetch() {
+			List<WorkItem> items;
+			synchronized (prefetchWaiting) {
+				if(!prefetchFetch){
+					return;
+				}
+				prefetchFetch = false;
+				prefetchFetching--;
+				items = new ArrayList<WorkItem>(prefetchWaiting);
+				prefetchWaiting.clear();
+			}
+			for(WorkItem item : items){
+				item.submit(networkStage);
+			}
+		}
+		
+		/**
+		 * 快速滑动时推迟耗时的解码,只解码磁盘缓存和小缩略图
+		 * @return 是否继续执行
+		 */
+		private boolean checkScrollState() {
+			if(scrollState != SCROLL_STATE_FLING || !isExpensive()){
+				return true;
+			}
+			synchronized (deferred) {
+				//加锁后再次检查,避免滑动刚好停止
+				if(scrollState != SCROLL_STATE_FLING){
+					return true;
+				}
+				deferred.add(this);
+			}
+			return false;
+		}
+		
+		/**
+		 * 是否是耗时的解码,从原图解码全尺寸或者大尺寸的图片
+		 * @return
+		 */
+		private boolean isExpensive() {
+			return data == null && (size == null || size.width * size.height > flingDecodeArea);
+		}
+		
+		/**
+		 * 有目标视图重新可见时恢复优先级,UI线程调用
+		 */
+		private void promote() {
+			if(!demoted){
+				return;
+			}
+			demoted = false;
+			int priority = Scheduler.PRIORITY_LOW;
+			for(Target target : getTargets()){
+				priority = Math.max(priority, target.priority);
+			}
+			this.priority = priority;
+			Stage stage = this.stage;
+			if(stage != null && stage.remove(this)){
+				stage.submit(this);
+			}
+		}
+		
+		/**
+		 * 丢弃移出窗口的目标,在UI线程中执行,期间重新加入窗口的目标继续加载
+		 */
+		private void drop() {
+			handler.post(new Runnable() {
+				
+				public void run() {
+					for(Target target : getTargets()){
+						if(!target.attached){
+							dropTarget(target);
+						}
+					}
+					submit(stage);
+				}
+			});
+		}
+		
+		/**
+		 * 网络阶段,下载图片到本地
+		 * @throws IOException
+		 */
+		private void fetch() throws IOException {
+			if(image.fetch()){
+				//全尺寸的预加载只需要下载,不用解码
+				if(size == null && !toMemory && finishPrefetch()){
+					return;
+				}
+				submit(decodeStage);
+			}else{
+				finish(null);
+			}
+		}
+		
+		/**
+		 * 解码阶段,解码图片后加入缓存,磁盘写入交给缓存的写入队列
+		 * @throws OutOfMemoryError
+		 * @throws IOException
+		 */
+		private void decode() throws OutOfMemoryError,IOException {
+			String key = image.toString();
+			Bitmap bitmap = null;
+			ByteBuffer data = this.data;
+			this.data = null;
+			boolean fromSource = false;
+			//内存不足时释放缓存后重试一次
+			for(int retry = 1;;retry--){
+				try{
+					if(data != null){
+						bitmap = imageCache.decodeDiskCache(data, size, options);
+					}
+					fromSource = bitmap == null;
+					if(fromSource){
+						bitmap = image.getImage();
+					}
+					break;
+				}catch(OutOfMemoryError e){
+					if(retry == 0){
+						throw e;
+					}
+					LogUtils.w(TAG, "decode oom, trim memory and retry "+key);
+					imageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+				}
+			}
+			//先引用再放入缓存,分发完成前不会被放入复用池
+			if(bitmap != null){
+				imageCache.retain(bitmap);
+			}
+			//图片木有被回收的时候才缓存
+			if (bitmap != null && !bitmap.isRecycled() && !cancel) {
+				if(toMemory || !isPrefetchOnly()){
+					imageCache.addBitmapToMemoryCache(key, size, bitmap);
+				}
+				//放入写入队列后立即返回,由缓存的写入线程压缩保存
+				if(fromSource && size != null){
+					imageCache.addBitmapToDiskCache(key, bitmap);
+				}
+			}
+			finish(bitmap);
+		}
+		
+		/**
+		 * 没有目标等待时结束预加载任务
+		 * @return 是否已经结束
+		 */
+		private boolean finishPrefetch() {
+			synchronized (inflight) {
+				synchronized (targets) {
+					if(!prefetch || !targets.isEmpty()){
+						return false;
+					}
+					done = true;
+				}
+				if(inflight.get(getKey()) == this){
+					inflight.remove(getKey());
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * 任务结束,将图片分发给所有目标
+		 * @param bitmap
+		 */
+		private void finish(Bitmap bitmap) {
+			synchronized (inflight) {
+				if(inflight.get(getKey()) == this){
+					inflight.remove(getKey());
+				}
+			}
+			List<Target> targets;
+			synchronized (this.targets) {
+				done = true;
+				targets = new ArrayList<Target>(this.targets);
+			}
+			for(Target target : targets){
+				if(target.cancel){
+					continue;
+				}
+				//图片木有被回收的时候才更新
+				target.complete(bitmap);
+				if(target.loadListener != null){
+					target.loadListener.end();
+				}
+			}
+			//释放任务自己持有的引用,目标各自持有引用直到显示
+			if(bitmap != null){
+				imageCache.release(bitmap);
+			}
 		}
 
+		/**
+		 * 停止任务
+		 */
 		public void cancel() {
 			
 			cancel = true;
+			Stage stage = this.stage;
+			if(stage != null){
+				stage.remove(this);
+			}
+			synchronized (deferred) {
+				deferred.remove(this);
+			}
+			synchronized (prefetchWaiting) {
+				prefetchWaiting.remove(this);
+			}
+			synchronized (inflight) {
+				if(inflight.get(getKey()) == this){
+					inflight.remove(getKey());
+				}
+			}
 			//立即停止加载
 			if (image != null) {
 				image.cancel();
 			}
-			//从hanlder中删除ui更新
-			if (uiRunnable != null) {
-				handler.removeCallbacks(uiRunnable);
+		}
+		
+		/**
+		 * 将下载进度分发给所有目标,按间隔从已下载的部分解码预览
+		 */
+		private class FanOutDownloadListener implements DownloadListener {
+			
+			//上次预览的时间和已下载的字节数
+			private long lastPreviewTime = 0;
+			
+			private long lastPreviewLoaded = 0;
+			
+			//预览已在解码阶段排队,排队期间的进度不再提交
+			private final AtomicBoolean previewQueued = new AtomicBoolean();
+			
+			//在解码阶段以低优先级解码预览,不占用下载线程
+			private final Scheduler.Task previewTask = new Scheduler.Task() {
+				
+				public int getPriority() {
+					return Scheduler.PRIORITY_LOW;
+				}
+				
+				public void run() {
+					previewQueued.set(false);
+					decodePreview();
+				}
+			};
+
+			public void start(HttpURLConnection connection) {
+				for(Target target : getTargets()){
+					if(target.downloadListener != null){
+						target.downloadListener.start(connection);
+					}
+				}
 			}
-			if(loadListener != null){
-				loadListener.cancel();
+
+			public void transfer(long loaded, long total, HttpURLConnection connection) {
+				for(Target target : getTargets()){
+					if(target.downloadListener != null){
+						target.downloadListener.transfer(loaded, total, connection);
+					}
+				}
+				preview(loaded, total);
+			}
+			
+			/**
+			 * 距上次预览超过间隔并且有足够的新数据时,把预览交给解码阶段
+			 * 快速滑动,暂停或者没有可见的目标时不解码
+			 * @param loaded
+			 * @param total
+			 */
+			private void preview(long loaded, long total) {
+				int interval = previewInterval;
+				if(interval <= 0 || cancel || pause || scrollState == SCROLL_STATE_FLING
+						|| (total > 0 && loaded >= total) || loaded - lastPreviewLoaded < PREVIEW_MIN_BYTES){
+					return;
+				}
+				long now = System.currentTimeMillis();
+				if(now - lastPreviewTime < interval || !hasPreviewTargets()){
+					return;
+				}
+				if(!previewQueued.compareAndSet(false, true)){
+					return;
+				}
+				lastPreviewTime = now;
+				lastPreviewLoaded = loaded;
+				decodeStage.submit(previewTask);
+			}
+			
+			private boolean hasPreviewTargets() {
+				return !getPreviewTargets().isEmpty();
+			}
+			
+			private List<Target> getPreviewTargets() {
+				List<Target> targets = new ArrayList<Target>();
+				for(Target target : getTargets()){
+					if(target.attached && target.visible && !target.cancel){
+						targets.add(target);
+					}
+				}
+				return targets;
+			}
+			
+			/**
+			 * 在解码线程中解码预览,排队期间已取消或目标都不可见时不解码;最终的图片已显示的目标会忽略预览
+			 */
+			private void decodePreview() {
+				if(cancel){
+					return;
+				}
+				List<Target> targets = getPreviewTargets();
+				if(targets.isEmpty()){
+					return;
+				}
+				int maxWidth = size == null ? PREVIEW_MAX_SIZE : Math.max(1, size.width / 2);
+				int maxHeight = size == null ? PREVIEW_MAX_SIZE : Math.max(1, size.height / 2);
+				Bitmap bitmap;
+				try{
+					bitmap = ((HttpImage) image).decodePreview(maxWidth, maxHeight);
+				}catch(OutOfMemoryError e){
+					LogUtils.w(TAG, "preview oom "+image);
+					return;
+				}
+				if(bitmap == null){
+					return;
+				}
+				for(Target target : targets){
+					target.preview(bitmap);
+				}
+			}
+
+			public void success(HttpURLConnection connection) {
+				for(Target target : getTargets()){
+					if(target.downloadListener != null){
+						target.downloadListener.success(connection);
+					}
+				}
+			}
+
+			public void cancel(HttpURLConnection connection) {
+				for(Target target : getTargets()){
+					if(target.downloadListener != null){
+						target.downloadListener.cancel(connection);
+					}
+				}
 			}
+
 		}
 		
-		
-		
 		public Image getImage() {
 			return image;
 		}
+
+	}
+	
+	/**
+	 * 预加载组,可以整体取消
+	 */
+	public class PrefetchGroup {
 		
-		public ImageView getImageView() {
-			return imageView;
+		private List<WorkItem> items = new ArrayList<WorkItem>();
+		
+		/**
+		 * 取消组内的预加载,已经有视图等待的任务继续执行
+		 */
+		public void cancel() {
+			cancelExcept(null);
 		}
-
+		
+		/**
+		 * 取消不在另一组中的预加载,用于替换预加载范围时保留重叠的部分
+		 * @param group
+		 */
+		public void cancelExcept(PrefetchGroup group) {
+			for(WorkItem item : items){
+				if(group == null || !group.items.contains(item)){
+					item.cancelPrefetch();
+				}
+			}
+		}
+		
+		/**
+		 * 组内预加载任务个数
+		 * @return
+		 */
+		public int size() {
+			return items.size();
+		}
+		
 	}
+	
+	/**
+	 * 视图跟踪器,每个视图一个,跟踪视图是否在窗口中以及是否在可见区域内
+	 */
+	@TargetApi(12)
+	private class ViewTracker implements OnAttachStateChangeListener, OnPreDrawListener {
+		
+		private WeakReference<View> viewRef;
+		
+		private ViewTreeObserver observer;
+		
+		//因视图移出窗口而丢弃的请求,重新加入窗口时重新加载
+		private Request dropped;
+		
+		public ViewTracker(View view) {
+			viewRef = new WeakReference<View>(view);
+			view.addOnAttachStateChangeListener(this);
+			if(view.getWindowToken() != null){
+				register(view);
+			}
+		}
+		
+		private void register(View view) {
+			unregister();
+			observer = view.getViewTreeObserver();
+			observer.addOnPreDrawListener(this);
+		}
+		
+		private void unregister() {
+			if(observer != null && observer.isAlive()){
+				observer.removeOnPreDrawListener(this);
+			}
+			observer = null;
+		}
+
+		public void onViewAttachedToWindow(View v) {
+			register(v);
+			synchronized (ImageLoader.this) {
+				Target target = map.get(v);
+				if(target != null){
+					target.setAttached(true);
+				}else if(dropped != null && v instanceof ImageView){
+					Request request = dropped;
+					dropped = null;
+					load((ImageView)v, request.factory, request.loadBitmap, request.loadListener, request.priority);
+				}
+			}
+		}
+
+		public void onViewDetachedFromWindow(View v) {
+			unregister();
+			synchronized (ImageLoader.this) {
+				Target target = map.get(v);
+				if(target != null){
+					target.setAttached(false);
+				}
+			}
+		}
 
+		public boolean onPreDraw() {
+			View view = viewRef.get();
+			if(view != null){
+				synchronized (ImageLoader.this) {
+					Target target = map.get(view);
+					if(target != null){
+						target.setVisible(view.isShown() && view.getGlobalVisibleRect(visibleRect));
+					}
+				}
+			}
+			return true;
+		}
+		
+	}
+	
 	/**
-	 * 构造器
+	 * 构造器,按照线程个数分配各阶段的线程:网络下载约五分之二,磁盘读取和缓存写入各一个,其余用于解码,总数正好是threadCount
 	 * @param context
-	 * @param threadCount 线程个数
+	 * @param threadCount 线程个数,包括缓存写入线程,至少{@link #MIN_THREAD_COUNT}个
+	 * @throws IllegalArgumentException threadCount小于{@link #MIN_THREAD_COUNT}
 	 */
 	public ImageLoader(Context context, int threadCount) {
+		this(context, networkThreads(threadCount), 1, threadCount - networkThreads(threadCount) - 2);
+	}
+	
+	private static int networkThreads(int threadCount) {
+		if(threadCount < MIN_THREAD_COUNT){
+			throw new IllegalArgumentException("threadCount < " + MIN_THREAD_COUNT);
+		}
+		return Math.max(1, threadCount * 2 / 5);
+	}
+	
+	/**
+	 * 构造器
+	 * @param context
+	 * @param networkThreads 网络下载线程个数
+	 * @param diskThreads 磁盘读取线程个数
+	 * @param decodeThreads 解码线程个数
+	 */
+	public ImageLoader(Context context, int networkThreads, int diskThreads, int decodeThreads) {
 		this.context = context;
 		imageCache = ImageCache.getInstance(context);
-		threadPool = new WorkThread[threadCount];
-		for(int i = 0;i<threadCount;i++ ){
-			WorkThread thread = new WorkThread();
-			threadPool[i] = thread;
-			thread.start();
-		}
+		networkStage = new Stage("network", networkThreads, createScheduler());
+		diskStage = new Stage("disk", diskThreads, createScheduler());
+		decodeStage = new Stage("decode", decodeThreads, createScheduler());
+		//预加载至少留一个网络线程给可见的任务
+		maxPrefetchFetching = Math.max(0, networkThreads - 1);
+	}
+
+	/**
+	 * 创建任务调度器,每个阶段一个,子类可以覆盖该方法替换调度策略
+	 * @return
+	 */
+	protected Scheduler createScheduler(){
+		return new PriorityScheduler();
 	}
 
 	private static interface WorkItemFactory{
 		public WorkItem createWorkItem();
 	}
 	
-	public synchronized void load(WorkItemFactory factory,Drawable loadBitmap){
-		LogUtils.d(TAG, "workItemCount:"+queue.size());
+	/**
+	 * 跟踪视图的状态,需要API 12以上
+	 * @param view
+	 */
+	private void track(View view) {
+		if(Util.hasHoneycombMR1()){
+			ViewTracker tracker = trackers.get(view);
+			if(tracker == null){
+				trackers.put(view, new ViewTracker(view));
+			}else{
+				tracker.dropped = null;
+			}
+		}
+	}
+	
+	/**
+	 * 显示图片并引用,视图之前显示的图片释放引用,UI线程调用
+	 * @param imageView
+	 * @param bitmap
+	 */
+	private void bind(ImageView imageView, Bitmap bitmap) {
+		imageCache.retain(bitmap);
+		imageView.setImageBitmap(bitmap);
+		Bitmap old = displayed.put(imageView, bitmap);
+		if(old != null){
+			imageCache.release(old);
+		}
+	}
+	
+	/**
+	 * 显示占位图,视图之前显示的图片释放引用,UI线程调用
+	 * @param imageView
+	 * @param drawable
+	 */
+	private void unbind(ImageView imageView, Drawable drawable) {
+		imageView.setImageDrawable(drawable);
+		Bitmap old = displayed.remove(imageView);
+		if(old != null){
+			imageCache.release(old);
+		}
+	}
+	
+	/**
+	 * 目标结束,UI线程调用
+	 * @param target
+	 */
+	private synchronized void completeTarget(Target target) {
+		if(map.get(target.imageView) == target){
+			map.remove(target.imageView);
+		}
+	}
+	
+	/**
+	 * 丢弃目标,视图重新加入窗口时重新加载,UI线程调用
+	 * @param target
+	 */
+	private synchronized void dropTarget(Target target) {
+		if(map.get(target.imageView) == target){
+			map.remove(target.imageView);
+			ViewTracker tracker = trackers.get(target.imageView);
+			if(tracker != null){
+				tracker.dropped = target.request;
+			}
+		}
+		target.cancel();
+	}
+	
+	public synchronized void load(ImageView imageView,WorkItemFactory factory,Drawable loadBitmap,LoadListener loadListener,int priority){
+		LogUtils.d(TAG, "workItemCount:"+diskStage.size()+","+networkStage.size()+","+decodeStage.size());
 		if(loadBitmap == null){
 			loadBitmap = this.loadBitmap;
 		}
 		
 		WorkItem newItem = factory.createWorkItem();
-		ImageView imageView = newItem.getImageView();
 		String key = newItem.getImage().toString();
 		
-		WorkItem item = map.get(imageView);
+		Target target = map.remove(imageView);
 		//如果是对象复用的,则立即停止图片加载
-		if(item != null){
-			item.cancel();
+		if(target != null){
+			target.cancel();
 		}
 		
 		//从内存中获取图片
-		Bitmap bitmap = imageCache.getBitmapFromMemoryCache(key, size);
+		Bitmap bitmap = imageCache.acquireBitmapFromMemoryCache(key, newItem.size);
 		if (bitmap != null) {
-			imageView.setImageBitmap(bitmap);
+			bind(imageView, bitmap);
+			imageCache.release(bitmap);
 		} else {
 			//设置图片加载提示
-			imageView.setImageDrawable(loadBitmap);
+			unbind(imageView, loadBitmap);
 			
-			synchronized (queue) {
-				queue.remove(item);
-				map.put(imageView, newItem);
-				queue.add(newItem);
-				//新增任务,唤醒线程继续执行
-				queue.notifyAll();
+			target = new Target(imageView, new Request(factory, loadBitmap, loadListener, priority));
+			map.put(imageView, target);
+			track(imageView);
+			WorkItem item;
+			boolean created = false;
+			synchronized (inflight) {
+				item = inflight.get(newItem.getKey());
+				//相同的图片正在加载,则合并到该任务
+				if(item == null || !item.addTarget(target)){
+					item = newItem;
+					item.addTarget(target);
+					inflight.put(item.getKey(), item);
+					created = true;
+				}
+			}
+			if(created){
+				//新增任务从磁盘读取阶段开始,调度器只唤醒一个线程执行
+				item.submit(diskStage);
+			}else{
+				Stage stage = item.stage;
+				if(stage != null && stage.remove(item)){
+					//任务还在排队,按照新的优先级重新排队
+					stage.submit(item);
+				}else{
+					item.unpark();
+				}
 			}
 		}
 	}
@@ -294,16 +1283,21 @@ public class ImageLoader {
 	 * @param path 加载
 	 * @param imageView 
 	 * @param loadBitmap 加载提示
+	 * @param priority 优先级,见{@link Scheduler#PRIORITY_NORMAL}
 	 */
 	
-	public void load(final ImageView imageView,final File localImage, final Size size,Drawable loadBitmap,final Options options,final LoadListener loadListener) {
-		load(new WorkItemFactory() {
+	public void load(final ImageView imageView,final File localImage, final Size size,Drawable loadBitmap,final Options options,final LoadListener loadListener,int priority) {
+		load(imageView,new WorkItemFactory() {
 			
 			public WorkItem createWorkItem() {
 				// TODO Auto-generated method stub
-				return new WorkItem(imageView, localImage, size, options,loadListener);
+				return new WorkItem(localImage, size, options);
 			}
-		}, loadBitmap);
+		}, loadBitmap,loadListener,priority);
+	}
+	
+	public void load(final ImageView imageView,final File localImage, final Size size,Drawable loadBitmap,final Options options,final LoadListener loadListener) {
+		load(imageView,localImage,size,loadBitmap,options,loadListener,Scheduler.PRIORITY_NORMAL);
 	}
 	
 	public void load(final ImageView imageView,final File localImage, final Size size,Drawable loadBitmap,final LoadListener loadListener) {
@@ -322,14 +1316,18 @@ public class ImageLoader {
 		load(imageView,localImage,null,null,null,null);
 	}
 	
-	public void load(final ImageView imageView,final HttpURLConnection conn,final Size size,final File saveFile,Drawable loadBitmap,final Options options,final HttpLoaderListener loaderListener){
-		load(new WorkItemFactory() {
+	public void load(final ImageView imageView,final HttpURLConnection conn,final Size size,final File saveFile,Drawable loadBitmap,final Options options,final HttpLoaderListener loaderListener,int priority){
+		load(imageView,new WorkItemFactory() {
 			
 			public WorkItem createWorkItem() {
 				// TODO Auto-generated method stub
-				return new WorkItem(imageView, conn, saveFile, size, options,loaderListener);
+				return new WorkItem(conn, saveFile, size, options);
 			}
-		},loadBitmap);
+		},loadBitmap,loaderListener,priority);
+	}
+	
+	public void load(final ImageView imageView,final HttpURLConnection conn,final Size size,final File saveFile,Drawable loadBitmap,final Options options,final HttpLoaderListener loaderListener){
+		load(imageView,conn,size,saveFile,loadBitmap,options,loaderListener,Scheduler.PRIORITY_NORMAL);
 	}
 	
 	public void load(final ImageView imageView,final HttpURLConnection conn,final Size size,final File saveFile,Drawable loadBitmap,final HttpLoaderListener loaderListener){
@@ -352,8 +1350,72 @@ public class ImageLoader {
 	}
 	
 	
+	/**
+	 * 低优先级预加载图片,预热磁盘缓存,可选预热内存缓存
+	 * 预加载不会占用所有网络线程,只有一个网络线程时只从磁盘缓存预加载,需要下载的等到有视图加载时再下载;快速滑动时和其他下载一起暂停
+	 * @param sources 图片,{@link File}或者{@link URL}
+	 * @param size 尺寸,为null时使用全局尺寸
+	 * @param toMemory 是否放入内存缓存
+	 * @return 预加载组,可以整体取消
+	 */
+	public PrefetchGroup prefetch(List<?> sources,Size size,boolean toMemory){
+		PrefetchGroup group = new PrefetchGroup();
+		for(Object source : sources){
+			WorkItem newItem;
+			try {
+				if(source instanceof File){
+					newItem = new WorkItem((File)source, size, null);
+				}else if(source instanceof URL){
+					//file:,content:等其他协议不支持下载
+					URLConnection connection = ((URL)source).openConnection();
+					if(!(connection instanceof HttpURLConnection)){
+						LogUtils.w(TAG, "unsupported prefetch source:"+source);
+						continue;
+					}
+					newItem = new WorkItem((HttpURLConnection)connection, null, size, null);
+				}else{
+					LogUtils.w(TAG, "unsupported prefetch source:"+source);
+					continue;
+				}
+			} catch (IOException e) {
+				LogUtils.e(TAG, "prefetch error", e);
+				continue;
+			}
+			//预加载不算访问
+			if(imageCache.isInMemoryCache(newItem.getImage().toString(), newItem.size)){
+				continue;
+			}
+			WorkItem item;
+			boolean created = false;
+			synchronized (inflight) {
+				item = inflight.get(newItem.getKey());
+				//已经在加载的任务标记为预加载即可
+				if(item == null || !item.addPrefetch(toMemory)){
+					item = newItem;
+					item.priority = Scheduler.PRIORITY_LOW;
+					item.addPrefetch(toMemory);
+					inflight.put(item.getKey(), item);
+					created = true;
+				}
+			}
+			group.items.add(item);
+			if(created){
+				item.submit(diskStage);
+			}
+		}
+		return group;
+	}
+	
+	/**
+	 * 指定下载的原图的缓存目录,容量同{@link ImageCache.CacheParams#httpCacheSize}
+	 * @param httpCacheDir
+	 */
 	public void setHttpCacheDir(File httpCacheDir) {
-		this.httpCacheDir = httpCacheDir;
+		try {
+			this.httpDiskCache = DiskLruCache.open(httpCacheDir, imageCache.getCacheParams().httpCacheSize);
+		} catch (IOException e) {
+			LogUtils.e(TAG, "open http cache error:"+httpCacheDir, e);
+		}
 	}
 
 
@@ -394,27 +1456,104 @@ public class ImageLoader {
 		this.size = new Size(width, height);
 	}
 	
-	public void setPause(boolean pause) {
+	/**
+	 * 暂停/恢复全部任务
+	 * @param pause
+	 */
+	public synchronized void setPause(boolean pause) {
 		this.pause = pause;
-		if(!pause){
-			queue.notifyAll();
-		}
+		updatePause();
 	}
-	public boolean isPause() {
+	public synchronized boolean isPause() {
 		return pause;
 	}
 	
+	/**
+	 * 设置滑动状态,可以直接传入AbsListView.OnScrollListener的滑动状态
+	 * 快速滑动时暂停网络下载,磁盘写入和耗时的解码,停止后按优先级恢复
+	 * @param scrollState {@link #SCROLL_STATE_IDLE},{@link #SCROLL_STATE_TOUCH_SCROLL},{@link #SCROLL_STATE_FLING}
+	 */
+	public synchronized void setScrollState(int scrollState) {
+		if(this.scrollState == scrollState){
+			return;
+		}
+		List<WorkItem> items = null;
+		synchronized (deferred) {
+			this.scrollState = scrollState;
+			if(scrollState != SCROLL_STATE_FLING && !deferred.isEmpty()){
+				items = new ArrayList<WorkItem>(deferred);
+				deferred.clear();
+			}
+		}
+		updatePause();
+		if(items != null){
+			//调度器会按照优先级重新排序
+			for(WorkItem item : items){
+				item.submit(decodeStage);
+			}
+		}
+	}
+	
+	public int getScrollState() {
+		return scrollState;
+	}
+	
+	/**
+	 * 设置快速滑动时仍然解码的缩略图面积上限
+	 * @param flingDecodeArea 宽*高
+	 */
+	public void setFlingDecodeArea(int flingDecodeArea) {
+		this.flingDecodeArea = flingDecodeArea;
+	}
+	
+	/**
+	 * 设置下载http图片时解码预览的最小间隔,预览从已下载的部分解码,分辨率较低,下载完成后被替换
+	 * @param previewInterval 毫秒,0为不生成预览,默认为0
+	 */
+	public void setPreviewInterval(int previewInterval) {
+		this.previewInterval = previewInterval;
+	}
+	
+	/**
+	 * 设置http图片下载的最大段数,大于1时较大的图片分段并行下载,默认为1
+	 * @param downloadSegments
+	 */
+	public void setDownloadSegments(int downloadSegments) {
+		this.downloadSegments = downloadSegments;
+	}
+	
+	private void updatePause() {
+		boolean fling = scrollState == SCROLL_STATE_FLING;
+		networkStage.setPause(pause || fling);
+		diskStage.setPause(pause);
+		decodeStage.setPause(pause);
+		imageCache.setWritePaused(pause || fling);
+	}
+	
 	/**
 	 * 摧毁
 	 */
 	public void destory(){
-		for(WorkThread thread : threadPool){
-			thread.quit();
+		networkStage.quit();
+		diskStage.quit();
+		decodeStage.quit();
+		imageCache.setWritePaused(false);
+		imageCache.saveHotSet();
+		List<WorkItem> items;
+		synchronized (inflight) {
+			items = new ArrayList<WorkItem>(inflight.values());
 		}
-		map.clear();
-		synchronized (queue) {
-			queue.clear();
+		for(WorkItem item : items){
+			item.cancel();
 		}
+		synchronized (deferred) {
+			deferred.clear();
+		}
+		synchronized (prefetchWaiting) {
+			prefetchWaiting.clear();
+		}
+		map.clear();
+		trackers.clear();
 	}
 
 }
@@ -53,11 +53,22 @@ public class LocalImage extends Image {
 	protected Bitmap generateImage() throws OutOfMemoryError {
 		Bitmap bitmap = null;
 		if(!cancel){
+			BitmapPool pool = ImageCache.getInstance(context).getBitmapPool();
 			if(size == null){
+				//先获取尺寸,以便复用同样尺寸的bitmap
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFile(file.toString(),options);
 				options.inJustDecodeBounds = false;
-				bitmap = BitmapFactory.decodeFile(file.toString(),options);
+				options.inPurgeable = false;
+				pool.prepare(options, options.outWidth, options.outHeight);
+				bitmap = BitmapUtils.decodeFile(file.toString(), options, pool);
+				if(bitmap == null){
+					pool.reject(options);
+				}else{
+					BitmapPool.clear(options);
+				}
 			}else{
-				bitmap = BitmapUtils.getThumbnail(context, file.toString(), size.width, size.height,options );
+				bitmap = BitmapUtils.getThumbnail(context, file.toString(), size.width, size.height,options,pool);
 			}
 		}
 		return bitmap;
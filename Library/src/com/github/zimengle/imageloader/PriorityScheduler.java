@@ -0,0 +1,175 @@
+package com.github.zimengle.imageloader;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 默认的优先级调度器
+ * 优先级高的任务先执行,同一优先级后加入的任务先执行(LIFO),保证屏幕上最新绑定的视图最先加载;
+ * 删除任务只做标记,出队时跳过,删除的复杂度为O(1)
+ */
+public class PriorityScheduler implements Scheduler {
+
+	//被删除的任务超过该数量并且超过一半时,重建堆
+	private static final int COMPACT_THRESHOLD = 64;
+
+	/**
+	 * 队列中的任务条目
+	 */
+	private static class Entry implements Comparable<Entry> {
+
+		private final Task task;
+
+		private final int priority;
+
+		private final long sequence;
+
+		private boolean removed = false;
+
+		public Entry(Task task, int priority, long sequence) {
+			this.task = task;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Entry another) {
+			if (priority != another.priority) {
+				return priority > another.priority ? -1 : 1;
+			}
+			if (sequence != another.sequence) {
+				return sequence > another.sequence ? -1 : 1;
+			}
+			return 0;
+		}
+
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	//每次只唤醒一个等待的线程
+	private final Condition available = lock.newCondition();
+
+	private PriorityQueue<Entry> heap = new PriorityQueue<Entry>();
+
+	//任务到条目的映射,用于O(1)删除
+	private final Map<Task, Entry> entries = new HashMap<Task, Entry>();
+
+	private long sequence = 0;
+
+	private int removedCount = 0;
+
+	private boolean pause = false;
+
+	public void schedule(Task task) {
+		lock.lock();
+		try {
+			Entry old = entries.remove(task);
+			if (old != null) {
+				markRemoved(old);
+			}
+			Entry entry = new Entry(task, task.getPriority(), ++sequence);
+			entries.put(task, entry);
+			heap.offer(entry);
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Task take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				while (pause || entries.isEmpty()) {
+					available.await();
+				}
+				Entry entry = heap.poll();
+				if (entry.removed) {
+					removedCount--;
+					continue;
+				}
+				entries.remove(entry.task);
+				return entry.task;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean remove(Task task) {
+		if (task == null) {
+			return false;
+		}
+		lock.lock();
+		try {
+			Entry entry = entries.remove(task);
+			if (entry == null) {
+				return false;
+			}
+			markRemoved(entry);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void setPause(boolean pause) {
+		lock.lock();
+		try {
+			this.pause = pause;
+			if (!pause) {
+				available.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isPause() {
+		lock.lock();
+		try {
+			return pause;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			entries.clear();
+			heap.clear();
+			removedCount = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 标记删除,失效条目过多时重建堆,避免堆无限增长
+	 * @param entry
+	 */
+	private void markRemoved(Entry entry) {
+		entry.removed = true;
+		removedCount++;
+		if (removedCount > COMPACT_THRESHOLD && removedCount > heap.size() / 2) {
+			PriorityQueue<Entry> compacted = new PriorityQueue<Entry>(Math.max(1, entries.size()));
+			compacted.addAll(entries.values());
+			heap = compacted;
+			removedCount = 0;
+		}
+	}
+
+}
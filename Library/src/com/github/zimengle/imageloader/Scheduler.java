@@ -0,0 +1,81 @@
+package com.github.zimengle.imageloader;
+
+/**
+ * 任务调度器,工作线程通过调度器获取任务,可以自行实现替换默认的优先级调度
+ * @see PriorityScheduler
+ */
+public interface Scheduler {
+
+	/**
+	 * 低优先级,预加载等后台任务
+	 */
+	public static final int PRIORITY_LOW = 0;
+
+	/**
+	 * 默认优先级
+	 */
+	public static final int PRIORITY_NORMAL = 5;
+
+	/**
+	 * 高优先级
+	 */
+	public static final int PRIORITY_HIGH = 10;
+
+	/**
+	 * 可调度的任务
+	 */
+	public static interface Task {
+
+		/**
+		 * 任务优先级,数值越大越先执行
+		 * @return
+		 */
+		public int getPriority();
+
+		/**
+		 * 执行任务
+		 * @throws Exception
+		 */
+		public void run() throws Exception;
+	}
+
+	/**
+	 * 添加任务,已在队列中的任务会按照新的优先级重新排队
+	 * @param task
+	 */
+	public void schedule(Task task);
+
+	/**
+	 * 获取下一个任务,没有任务或暂停时阻塞
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Task take() throws InterruptedException;
+
+	/**
+	 * 删除任务
+	 * @param task
+	 * @return 任务是否还在队列中
+	 */
+	public boolean remove(Task task);
+
+	/**
+	 * 暂停/恢复任务的分发
+	 * @param pause
+	 */
+	public void setPause(boolean pause);
+
+	public boolean isPause();
+
+	/**
+	 * 等待执行的任务数
+	 * @return
+	 */
+	public int size();
+
+	/**
+	 * 清空任务
+	 */
+	public void clear();
+
+}
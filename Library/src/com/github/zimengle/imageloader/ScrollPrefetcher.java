@@ -0,0 +1,168 @@
+package com.github.zimengle.imageloader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.zimengle.imageloader.Image.Size;
+import com.github.zimengle.imageloader.ImageLoader.PrefetchGroup;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * 滑动预加载,作为AbsListView的OnScrollListener使用
+ * 根据滑动方向预加载前方即将出现的图片,滑动越快预加载得越远,同时把滑动状态同步给ImageLoader
+ */
+public class ScrollPrefetcher implements OnScrollListener {
+
+	/**
+	 * 预加载的数据源
+	 */
+	public static interface SourceProvider {
+
+		/**
+		 * 获取位置对应的图片
+		 * @param position
+		 * @return {@link java.io.File}或者{@link java.net.URL},没有图片返回null
+		 */
+		public Object getSource(int position);
+
+	}
+
+	//最多预加载的屏数
+	private static final int MAX_SCREENS = 3;
+
+	//按当前滑动速度预加载多长时间内会出现的图片
+	private static final long LOOKAHEAD_MILLIS = 1000;
+
+	private ImageLoader imageLoader;
+
+	private SourceProvider provider;
+
+	private Size size;
+
+	private boolean toMemory;
+
+	private OnScrollListener onScrollListener;
+
+	private int lastFirst = -1;
+
+	private long lastTime;
+
+	//滑动方向,向下/向右为true
+	private boolean forward = true;
+
+	private int prefetchStart = -1;
+
+	private int prefetchEnd = -1;
+
+	private boolean prefetchForward = true;
+
+	private PrefetchGroup group;
+
+	/**
+	 * 构造器
+	 * @param imageLoader
+	 * @param provider 数据源
+	 * @param size 预加载尺寸,为null时使用ImageLoader的全局尺寸
+	 * @param toMemory 是否预热内存缓存
+	 */
+	public ScrollPrefetcher(ImageLoader imageLoader, SourceProvider provider, Size size, boolean toMemory) {
+		this.imageLoader = imageLoader;
+		this.provider = provider;
+		this.size = size;
+		this.toMemory = toMemory;
+	}
+
+	/**
+	 * AbsListView只能设置一个OnScrollListener,需要自己监听时通过该方法设置
+	 * @param onScrollListener
+	 */
+	public void setOnScrollListener(OnScrollListener onScrollListener) {
+		this.onScrollListener = onScrollListener;
+	}
+
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		imageLoader.setScrollState(scrollState);
+		if(onScrollListener != null){
+			onScrollListener.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if(onScrollListener != null){
+			onScrollListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		}
+		if(visibleItemCount <= 0){
+			return;
+		}
+		//滑动速度,每秒经过的条目数
+		long velocity = 0;
+		long now = SystemClock.uptimeMillis();
+		if(firstVisibleItem != lastFirst){
+			if(lastFirst >= 0){
+				forward = firstVisibleItem > lastFirst;
+				velocity = Math.abs(firstVisibleItem - lastFirst) * 1000L / Math.max(1, now - lastTime);
+			}
+			lastFirst = firstVisibleItem;
+			lastTime = now;
+		}
+		int count = visibleItemCount + (int) Math.min(velocity * LOOKAHEAD_MILLIS / 1000, visibleItemCount * (MAX_SCREENS - 1));
+		int start,end;
+		if(forward){
+			start = firstVisibleItem + visibleItemCount;
+			end = Math.min(totalItemCount, start + count);
+		}else{
+			end = firstVisibleItem;
+			start = Math.max(0, end - count);
+		}
+		//预加载范围变化不到半屏时不重新预加载
+		int threshold = Math.max(1, visibleItemCount / 2);
+		if(forward == prefetchForward && Math.abs(start - prefetchStart) < threshold && Math.abs(end - prefetchEnd) < threshold){
+			return;
+		}
+		prefetch(start, end);
+	}
+
+	private void prefetch(int start, int end) {
+		prefetchStart = start;
+		prefetchEnd = end;
+		prefetchForward = forward;
+		List<Object> sources = new ArrayList<Object>();
+		//离屏幕近的后加入,同一优先级后加入的先执行
+		if(forward){
+			for(int i = end - 1;i >= start;i--){
+				addSource(sources, i);
+			}
+		}else{
+			for(int i = start;i < end;i++){
+				addSource(sources, i);
+			}
+		}
+		PrefetchGroup newGroup = imageLoader.prefetch(sources, size, toMemory);
+		if(group != null){
+			group.cancelExcept(newGroup);
+		}
+		group = newGroup;
+	}
+
+	private void addSource(List<Object> sources, int position) {
+		Object source = provider.getSource(position);
+		if(source != null){
+			sources.add(source);
+		}
+	}
+
+	/**
+	 * 取消当前的预加载
+	 */
+	public void cancel() {
+		if(group != null){
+			group.cancel();
+			group = null;
+		}
+		prefetchStart = prefetchEnd = -1;
+	}
+
+}
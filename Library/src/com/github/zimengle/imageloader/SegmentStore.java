@@ -0,0 +1,760 @@
+package com.github.zimengle.imageloader;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 把大量小缩略图打包到少数几个大文件中的磁盘存储,减少外部存储上的文件个数和目录操作
+ * 数据只追加写入当前段文件,段满后写新段;内存中保存每个key所在的段和偏移,读取时定位后读整块数据
+ * <p>
+ * 删除和替换只在段中留下无效数据,写入后检查无效数据超过一半的段,把有效数据复制到当前段后删除段文件;
+ * 超出容量时淘汰最早的段,其中被访问过的数据复制到当前段保留一次
+ * <p>
+ * 淘汰时先在store的锁内把段移出段列表,再在锁外按段加锁读出要保留的数据,最后重新加锁写入当前段并删除段文件,
+ * 复制期间其他线程的读取和索引查询不用等待;复制期间被替换或删除的数据不再复制
+ * <p>
+ * 启动时在后台线程中按顺序扫描段文件恢复索引,段尾写入不完整的记录被截掉,操作会等待扫描完成;
+ * 目录中{@link DiskLruCache}的缓存文件(切换存储方式之前留下的)复制到段中后删除
+ * <p>
+ * 读写使用RandomAccessFile并按段加锁,不用FileChannel:线程被中断时FileChannel会被关闭,影响其他线程;
+ * 映射时每次单独打开段文件,映射后即关闭
+ */
+public class SegmentStore implements DiskStore {
+
+	private static final String TAG = "SegmentStore";
+
+	private static final String SEGMENT_PREFIX = "segment.";
+
+	/**
+	 * 默认的段大小
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	//记录头:魔数,key的hash,数据长度
+	private static final int RECORD_MAGIC = 0x494d4731;
+
+	private static final int HEADER_SIZE = 16;
+
+	//数据长度为该值表示删除
+	private static final int TOMBSTONE = -1;
+
+	/**
+	 * 段文件
+	 */
+	private static class Segment {
+
+		private final File file;
+
+		private final RandomAccessFile raf;
+
+		//文件长度,只在持有store的锁时修改
+		private long length;
+
+		//无效数据的字节数,包括删除记录
+		private long deadBytes = 0;
+
+		private boolean deleted = false;
+
+		//以下只在持有store的锁时访问,淘汰时只处理本段的数据和删除记录,不用遍历全部
+		//段中的有效数据
+		private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+		//删除了本段中数据的删除记录
+		private final Set<Long> targetTombstones = new HashSet<Long>();
+
+		//保存在本段中的删除记录
+		private final Set<Long> heldTombstones = new HashSet<Long>();
+
+		public Segment(File file) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.length = raf.length();
+		}
+
+	}
+
+	/**
+	 * 数据的位置
+	 */
+	private static class Entry {
+
+		private final Segment segment;
+
+		//数据的偏移,不包括记录头
+		private final long offset;
+
+		private final int length;
+
+		//写入之后是否被访问过
+		private boolean accessed = false;
+
+		public Entry(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+	/**
+	 * 删除记录,被删除的数据所在段还存在时需要保留,否则重新打开时数据会恢复
+	 */
+	private static class Tombstone {
+
+		//被删除的数据所在段
+		private final Segment target;
+
+		//删除记录所在段
+		private Segment segment;
+
+		public Tombstone(Segment target, Segment segment) {
+			this.target = target;
+			this.segment = segment;
+		}
+
+	}
+
+	/**
+	 * 已移出段列表等待删除的段,以及要复制到当前段的数据
+	 */
+	private static class Retired {
+
+		private final Segment segment;
+
+		private final List<Long> keep = new ArrayList<Long>();
+
+		private final List<Entry> keepEntries = new ArrayList<Entry>();
+
+		public Retired(Segment segment) {
+			this.segment = segment;
+		}
+
+	}
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	private long maxSize;
+
+	//从旧到新,最后一个是当前写入的段
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+	private final Map<Long, Tombstone> tombstones = new HashMap<Long, Tombstone>();
+
+	//所有段文件的字节数
+	private long size = 0;
+
+	private long nextId = 0;
+
+	private final CountDownLatch loaded = new CountDownLatch(1);
+
+	private SegmentStore(File directory, long maxSize, int segmentSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * 打开存储目录,在后台线程中扫描段文件
+	 * @param directory
+	 * @param maxSize 最大字节数
+	 * @return
+	 * @throws IOException 目录不可用
+	 */
+	public static SegmentStore open(File directory, long maxSize) throws IOException {
+		return open(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * 打开存储目录,在后台线程中扫描段文件
+	 * @param directory
+	 * @param maxSize 最大字节数,至少保留一个段
+	 * @param segmentSize 段大小,超过段大小的数据单独成段
+	 * @return
+	 * @throws IOException 目录不可用
+	 */
+	public static SegmentStore open(File directory, long maxSize, int segmentSize) throws IOException {
+		if (maxSize <= 0 || segmentSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0 || segmentSize <= 0");
+		}
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("can not create " + directory);
+		}
+		final SegmentStore store = new SegmentStore(directory, maxSize, segmentSize);
+		Thread thread = new Thread("SegmentStore-" + directory.getName()) {
+
+			@Override
+			public void run() {
+				store.load();
+			}
+		};
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+		return store;
+	}
+
+	/**
+	 * 按编号顺序扫描所有段文件,只读记录头,跳过数据
+	 */
+	private void load() {
+		List<Retired> retired = new ArrayList<Retired>();
+		try {
+			synchronized (this) {
+				String[] names = directory.list();
+				List<Long> ids = new ArrayList<Long>();
+				if (names != null) {
+					for (String name : names) {
+						if (name.startsWith(SEGMENT_PREFIX)) {
+							try {
+								ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length())));
+							} catch (NumberFormatException e) {
+							}
+						}
+					}
+				}
+				Collections.sort(ids);
+				for (Long id : ids) {
+					try {
+						Segment segment = new Segment(new File(directory, SEGMENT_PREFIX + id));
+						scan(segment);
+						segments.addLast(segment);
+						size += segment.length;
+						nextId = id + 1;
+					} catch (IOException e) {
+						LogUtils.e(TAG, "load segment error:" + id, e);
+					}
+				}
+				if (names != null) {
+					migrate(names);
+				}
+				trim(maxSize, retired);
+			}
+			release(retired);
+		} finally {
+			loaded.countDown();
+		}
+	}
+
+	/**
+	 * 段文件名
+	 * @param name
+	 * @return
+	 */
+	static boolean isSegmentName(String name) {
+		return name.startsWith(SEGMENT_PREFIX);
+	}
+
+	/**
+	 * 接管{@link DiskLruCache}的缓存文件:数据追加到段中,已有的不覆盖,然后删除文件;日志和未完成的文件直接删除
+	 * @param names 目录中的文件名
+	 */
+	private void migrate(String[] names) {
+		int migrated = 0;
+		for (String name : names) {
+			if (!DiskLruCache.isCacheFileName(name)) {
+				continue;
+			}
+			File file = new File(directory, name);
+			if (DiskLruCache.isEntryName(name)) {
+				long hash = DiskLruCache.parseName(name);
+				try {
+					if (!entries.containsKey(hash)) {
+						put(hash, readFile(file));
+						migrated++;
+					}
+				} catch (IOException e) {
+					LogUtils.e(TAG, "migrate error:" + file, e);
+				}
+			}
+			file.delete();
+		}
+		if (migrated > 0) {
+			LogUtils.d(TAG, "migrate " + migrated + " files from DiskLruCache");
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[(int) input.length()];
+			input.readFully(data);
+			return data;
+		} finally {
+			input.close();
+		}
+	}
+
+	private void scan(Segment segment) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 64 * 1024));
+		long position = 0;
+		try {
+			while (position + HEADER_SIZE <= segment.length) {
+				if (input.readInt() != RECORD_MAGIC) {
+					break;
+				}
+				long hash = input.readLong();
+				int length = input.readInt();
+				if (length == TOMBSTONE) {
+					segment.deadBytes += HEADER_SIZE;
+					Entry old = removeEntry(hash);
+					if (old != null) {
+						addTombstone(hash, old.segment, segment);
+					}
+					position += HEADER_SIZE;
+					continue;
+				}
+				if (length < 0 || position + HEADER_SIZE + length > segment.length) {
+					break;
+				}
+				skipFully(input, length);
+				addEntry(hash, new Entry(segment, position + HEADER_SIZE, length));
+				position += HEADER_SIZE + length;
+			}
+		} catch (EOFException e) {
+		} finally {
+			input.close();
+		}
+		if (position < segment.length) {
+			LogUtils.w(TAG, "truncate " + segment.file + " at " + position);
+			segment.raf.setLength(position);
+			segment.length = position;
+		}
+	}
+
+	private static void skipFully(DataInputStream input, int length) throws IOException {
+		while (length > 0) {
+			int skipped = input.skipBytes(length);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			length -= skipped;
+		}
+	}
+
+	private void awaitLoaded() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				loaded.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 读取数据,查找索引时加锁,读文件时只锁所在段
+	 * @param key
+	 * @return 未命中或读取失败返回null
+	 */
+	public byte[] read(String key) {
+		long hash = DiskLruCache.hash(key);
+		awaitLoaded();
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(hash);
+			if (entry == null) {
+				return null;
+			}
+			entry.accessed = true;
+		}
+		byte[] data = new byte[entry.length];
+		Segment segment = entry.segment;
+		synchronized (segment) {
+			//段可能已被淘汰
+			if (segment.deleted) {
+				return null;
+			}
+			try {
+				segment.raf.seek(entry.offset);
+				segment.raf.readFully(data);
+				return data;
+			} catch (IOException e) {
+				LogUtils.e(TAG, "read error:" + segment.file, e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * 映射数据所在的区域,查找索引时加锁,映射时只锁所在段
+	 * @param key
+	 * @return 未命中或读取失败返回null
+	 */
+	public ByteBuffer map(String key) {
+		long hash = DiskLruCache.hash(key);
+		awaitLoaded();
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(hash);
+			if (entry == null) {
+				return null;
+			}
+			entry.accessed = true;
+		}
+		Segment segment = entry.segment;
+		synchronized (segment) {
+			//段可能已被淘汰
+			if (segment.deleted) {
+				return null;
+			}
+			RandomAccessFile input = null;
+			try {
+				input = new RandomAccessFile(segment.file, "r");
+				return input.getChannel().map(MapMode.READ_ONLY, entry.offset, entry.length);
+			} catch (IOException e) {
+				LogUtils.e(TAG, "map error:" + segment.file, e);
+				return null;
+			} finally {
+				if (input != null) {
+					try {
+						input.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+
+	public boolean contains(String key) {
+		long hash = DiskLruCache.hash(key);
+		awaitLoaded();
+		synchronized (this) {
+			return entries.containsKey(hash);
+		}
+	}
+
+	/**
+	 * 追加写入当前段,然后淘汰超出容量的段,并压缩一个无效数据过多的段
+	 * 持有store的锁时只修改索引和追加写入,复制淘汰段中的数据在锁外进行
+	 * @param key
+	 * @param data
+	 * @return 是否成功
+	 */
+	public boolean write(String key, byte[] data) {
+		long hash = DiskLruCache.hash(key);
+		awaitLoaded();
+		List<Retired> retired = new ArrayList<Retired>();
+		try {
+			synchronized (this) {
+				put(hash, data);
+				trim(maxSize, retired);
+				compact(retired);
+			}
+			return true;
+		} catch (IOException e) {
+			LogUtils.e(TAG, "write error:" + directory, e);
+			return false;
+		} finally {
+			release(retired);
+		}
+	}
+
+	public boolean remove(String key) {
+		long hash = DiskLruCache.hash(key);
+		awaitLoaded();
+		synchronized (this) {
+			Entry old = removeEntry(hash);
+			if (old == null) {
+				return false;
+			}
+			try {
+				Segment segment = append(hash, null);
+				segment.deadBytes += HEADER_SIZE;
+				addTombstone(hash, old.segment, segment);
+			} catch (IOException e) {
+				LogUtils.e(TAG, "remove error:" + directory, e);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 淘汰最早的段,直到不超过指定字节数
+	 * @param maxSize
+	 */
+	public void trimToSize(long maxSize) {
+		awaitLoaded();
+		List<Retired> retired = new ArrayList<Retired>();
+		synchronized (this) {
+			trim(maxSize, retired);
+		}
+		release(retired);
+	}
+
+	public long size() {
+		awaitLoaded();
+		synchronized (this) {
+			return size;
+		}
+	}
+
+	public synchronized long maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * 数据个数
+	 * @return
+	 */
+	public int count() {
+		awaitLoaded();
+		synchronized (this) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * 段文件个数
+	 * @return
+	 */
+	public int segmentCount() {
+		awaitLoaded();
+		synchronized (this) {
+			return segments.size();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public void clear() {
+		trimToSize(0);
+	}
+
+	private void put(long hash, byte[] data) throws IOException {
+		Segment segment = append(hash, data);
+		addEntry(hash, new Entry(segment, segment.length - data.length, data.length));
+	}
+
+	/**
+	 * 加入索引和所在段,替换的旧数据变为无效,同一个key的删除记录不再需要
+	 * @param hash
+	 * @param entry
+	 */
+	private void addEntry(long hash, Entry entry) {
+		removeEntry(hash);
+		entries.put(hash, entry);
+		entry.segment.entries.put(hash, entry);
+		removeTombstone(hash);
+	}
+
+	/**
+	 * 从索引和所在段中删除,数据变为无效
+	 * @param hash
+	 * @return 删除的数据,不存在时返回null
+	 */
+	private Entry removeEntry(long hash) {
+		Entry old = entries.remove(hash);
+		if (old != null) {
+			old.segment.entries.remove(hash);
+			kill(old);
+		}
+		return old;
+	}
+
+	private void addTombstone(long hash, Segment target, Segment segment) {
+		removeTombstone(hash);
+		tombstones.put(hash, new Tombstone(target, segment));
+		target.targetTombstones.add(hash);
+		segment.heldTombstones.add(hash);
+	}
+
+	private void removeTombstone(long hash) {
+		Tombstone tombstone = tombstones.remove(hash);
+		if (tombstone != null) {
+			tombstone.target.targetTombstones.remove(hash);
+			tombstone.segment.heldTombstones.remove(hash);
+		}
+	}
+
+	/**
+	 * 追加一条记录到当前段,当前段放不下时写新段
+	 * @param hash
+	 * @param data 为null时写删除记录
+	 * @return 写入的段
+	 * @throws IOException
+	 */
+	private Segment append(long hash, byte[] data) throws IOException {
+		int length = data == null ? 0 : data.length;
+		Segment segment = segments.isEmpty() ? null : segments.getLast();
+		if (segment == null || (segment.length > 0 && segment.length + HEADER_SIZE + length > segmentSize)) {
+			segment = new Segment(new File(directory, SEGMENT_PREFIX + nextId));
+			nextId++;
+			segments.addLast(segment);
+			size += segment.length;
+		}
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+		record.putInt(RECORD_MAGIC);
+		record.putLong(hash);
+		record.putInt(data == null ? TOMBSTONE : length);
+		if (data != null) {
+			record.put(data);
+		}
+		synchronized (segment) {
+			segment.raf.seek(segment.length);
+			segment.raf.write(record.array());
+		}
+		segment.length += record.capacity();
+		size += record.capacity();
+		return segment;
+	}
+
+	private void kill(Entry entry) {
+		entry.segment.deadBytes += HEADER_SIZE + entry.length;
+	}
+
+	private void trim(long maxSize, List<Retired> retired) {
+		while (size > maxSize && !segments.isEmpty()) {
+			retired.add(retire(segments.getFirst(), segments.size() > 1));
+		}
+	}
+
+	/**
+	 * 压缩一个无效数据超过一半的段,不包括当前写入的段
+	 * @param retired
+	 */
+	private void compact(List<Retired> retired) {
+		for (int i = 0; i < segments.size() - 1; i++) {
+			Segment segment = segments.get(i);
+			if (segment.deadBytes * 2 > segment.length) {
+				LogUtils.d(TAG, "compact " + segment.file + " dead:" + segment.deadBytes + "/" + segment.length);
+				retired.add(retire(segment, true));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 把段移出段列表,不再计入容量,要复制的数据仍留在索引中,可以继续读取
+	 * @param segment
+	 * @param copy 是否把数据复制到当前段:无效数据超过一半时复制全部有效数据,否则只复制被访问过的,最多半段
+	 * @return
+	 */
+	private Retired retire(Segment segment, boolean copy) {
+		Retired retired = new Retired(segment);
+		boolean compacting = copy && segment.deadBytes * 2 > segment.length;
+		int keepSize = 0;
+		List<Long> dropped = new ArrayList<Long>();
+		for (Map.Entry<Long, Entry> item : segment.entries.entrySet()) {
+			Entry entry = item.getValue();
+			if (copy && (compacting || (entry.accessed && keepSize + entry.length <= segmentSize / 2))) {
+				retired.keep.add(item.getKey());
+				retired.keepEntries.add(entry);
+				keepSize += entry.length;
+			} else {
+				dropped.add(item.getKey());
+			}
+		}
+		for (Long hash : dropped) {
+			removeEntry(hash);
+		}
+		segments.remove(segment);
+		size -= segment.length;
+		return retired;
+	}
+
+	/**
+	 * 在store的锁外读出要保留的数据,再加锁复制到当前段并删除段文件;
+	 * 复制的数据可能再次超出容量,继续淘汰,淘汰的段加到列表后面一起处理
+	 * @param retired
+	 */
+	private void release(List<Retired> retired) {
+		for (int n = 0; n < retired.size(); n++) {
+			Retired item = retired.get(n);
+			Segment segment = item.segment;
+			byte[][] data = new byte[item.keep.size()][];
+			synchronized (segment) {
+				for (int i = 0; i < data.length; i++) {
+					Entry entry = item.keepEntries.get(i);
+					try {
+						byte[] bytes = new byte[entry.length];
+						segment.raf.seek(entry.offset);
+						segment.raf.readFully(bytes);
+						data[i] = bytes;
+					} catch (IOException e) {
+						LogUtils.e(TAG, "read error:" + segment.file, e);
+					}
+				}
+			}
+			synchronized (this) {
+				delete(item, data);
+				trim(maxSize, retired);
+			}
+		}
+	}
+
+	/**
+	 * 复制读出的数据,转移段中的删除记录,然后删除段文件
+	 * @param retired
+	 * @param data 读取失败的为null
+	 */
+	private void delete(Retired retired, byte[][] data) {
+		Segment segment = retired.segment;
+		//被删除的数据随段一起删除,删除记录不再需要
+		for (Long hash : new ArrayList<Long>(segment.targetTombstones)) {
+			removeTombstone(hash);
+		}
+		try {
+			for (Long hash : new ArrayList<Long>(segment.heldTombstones)) {
+				Segment to = append(hash, null);
+				to.deadBytes += HEADER_SIZE;
+				Tombstone tombstone = tombstones.get(hash);
+				segment.heldTombstones.remove(hash);
+				tombstone.segment = to;
+				to.heldTombstones.add(hash);
+			}
+			for (int i = 0; i < data.length; i++) {
+				Long hash = retired.keep.get(i);
+				//复制期间被替换或删除的不再复制
+				if (entries.get(hash) != retired.keepEntries.get(i)) {
+					continue;
+				}
+				if (data[i] == null) {
+					removeEntry(hash);
+				} else {
+					put(hash, data[i]);
+				}
+			}
+		} catch (IOException e) {
+			LogUtils.e(TAG, "copy error:" + directory, e);
+		}
+		//复制失败时剩下的数据随段文件一起删除
+		for (Long hash : new ArrayList<Long>(segment.entries.keySet())) {
+			removeEntry(hash);
+		}
+		synchronized (segment) {
+			segment.deleted = true;
+			try {
+				segment.raf.close();
+			} catch (IOException e) {
+			}
+		}
+		segment.file.delete();
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.github.zimengle.imageloader;
+
+/**
+ * 加载流水线中的一个阶段,拥有独立的调度器和固定数量的工作线程,
+ * 慢速的网络读取不会占用解码等其他阶段的线程
+ */
+public class Stage {
+
+	private static final String TAG = "Stage";
+
+	private String name;
+
+	private Scheduler scheduler;
+
+	//线程池队列
+	private WorkThread[] threadPool;
+
+	/**
+	 * 任务线程内部类
+	 * @author zhangzimeng<zhangzimeng01@baidu.com>
+	 *
+	 */
+	private class WorkThread extends Thread {
+
+		//停止线程的标示
+		private volatile boolean stop = false;
+
+		public WorkThread(String name) {
+			super(name);
+			//优先级调至低一级,避免争夺UI线程,导致卡顿
+			setPriority(NORM_PRIORITY - 1);
+		}
+
+		@Override
+		public void run() {
+			while(!stop){
+				Scheduler.Task task;
+				//获取任务,木有任务或者暂停时调度器会让线程睡掉
+				try {
+					task = scheduler.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				try{
+					task.run();
+				}catch(Exception e){
+					LogUtils.e(TAG, name+" error",e);
+				}catch(OutOfMemoryError e){
+					LogUtils.e(TAG, name+" oom",e);
+				}
+			}
+		}
+
+		/**
+		 * 停止线程
+		 */
+		public void quit(){
+			stop = true;
+			interrupt();
+		}
+
+	}
+
+	/**
+	 * 构造器
+	 * @param name 阶段名称
+	 * @param threadCount 线程个数,即该阶段的并发上限
+	 * @param scheduler 调度器
+	 */
+	public Stage(String name, int threadCount, Scheduler scheduler) {
+		this.name = name;
+		this.scheduler = scheduler;
+		threadPool = new WorkThread[Math.max(1, threadCount)];
+		for(int i = 0;i<threadPool.length;i++ ){
+			WorkThread thread = new WorkThread("ImageLoader-"+name+"-"+i);
+			threadPool[i] = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * 提交任务
+	 * @param task
+	 */
+	public void submit(Scheduler.Task task) {
+		scheduler.schedule(task);
+	}
+
+	/**
+	 * 删除排队中的任务
+	 * @param task
+	 * @return 任务是否还在排队
+	 */
+	public boolean remove(Scheduler.Task task) {
+		return scheduler.remove(task);
+	}
+
+	public void setPause(boolean pause) {
+		scheduler.setPause(pause);
+	}
+
+	public boolean isPause() {
+		return scheduler.isPause();
+	}
+
+	/**
+	 * 排队中的任务数
+	 * @return
+	 */
+	public int size() {
+		return scheduler.size();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 停止所有线程并清空任务
+	 */
+	public void quit() {
+		for(WorkThread thread : threadPool){
+			thread.quit();
+		}
+		scheduler.clear();
+	}
+
+}